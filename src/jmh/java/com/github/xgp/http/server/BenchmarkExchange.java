@@ -0,0 +1,123 @@
+package com.github.xgp.http.server;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+/** An exchange that never touches the network, to measure the server's own work. */
+class BenchmarkExchange extends HttpExchange {
+  private static final InetSocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 8080);
+
+  private final String method;
+  private final URI uri;
+  private final Headers requestHeaders = new Headers();
+  private final Headers responseHeaders = new Headers();
+  private final Map<String, Object> attributes = new HashMap<String, Object>();
+  private final ByteArrayOutputStream body = new ByteArrayOutputStream(1024);
+  private InputStream in = new ByteArrayInputStream(new byte[0]);
+  private OutputStream out = body;
+  private int code = -1;
+
+  BenchmarkExchange(String method, String uri) {
+    this.method = method;
+    this.uri = URI.create(uri);
+  }
+
+  /** The bytes written as the response body. */
+  int written() {
+    return body.size();
+  }
+
+  @Override
+  public Headers getRequestHeaders() {
+    return requestHeaders;
+  }
+
+  @Override
+  public Headers getResponseHeaders() {
+    return responseHeaders;
+  }
+
+  @Override
+  public URI getRequestURI() {
+    return uri;
+  }
+
+  @Override
+  public String getRequestMethod() {
+    return method;
+  }
+
+  @Override
+  public HttpContext getHttpContext() {
+    return null;
+  }
+
+  @Override
+  public void close() {}
+
+  @Override
+  public InputStream getRequestBody() {
+    return in;
+  }
+
+  @Override
+  public OutputStream getResponseBody() {
+    return out;
+  }
+
+  @Override
+  public void sendResponseHeaders(int code, long length) {
+    this.code = code;
+  }
+
+  @Override
+  public InetSocketAddress getRemoteAddress() {
+    return ADDRESS;
+  }
+
+  @Override
+  public int getResponseCode() {
+    return code;
+  }
+
+  @Override
+  public InetSocketAddress getLocalAddress() {
+    return ADDRESS;
+  }
+
+  @Override
+  public String getProtocol() {
+    return "HTTP/1.1";
+  }
+
+  @Override
+  public Object getAttribute(String name) {
+    return attributes.get(name);
+  }
+
+  @Override
+  public void setAttribute(String name, Object value) {
+    attributes.put(name, value);
+  }
+
+  @Override
+  public void setStreams(InputStream i, OutputStream o) {
+    if (i != null) in = i;
+    if (o != null) out = o;
+  }
+
+  @Override
+  public HttpPrincipal getPrincipal() {
+    return null;
+  }
+}
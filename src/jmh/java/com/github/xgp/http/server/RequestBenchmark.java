@@ -0,0 +1,86 @@
+package com.github.xgp.http.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Parsing query strings, and constructing and reading a {@link Request}. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestBenchmark {
+  private static final String URI =
+      "/users/42?name=J%C3%BCrgen+M&tag=a&tag=b&page=3&sort=created&q=hello%20world";
+
+  Router router;
+  RouteMatch match;
+  BenchmarkExchange exchange;
+  BenchmarkExchange large;
+  String[] largeNames;
+
+  @Setup
+  public void setup() {
+    router = new Router();
+    router.GET(
+        "/users/{id}",
+        (request, response) -> {
+          response.body("ok");
+        });
+    match = new RouteIndex(router.getRoutes()).find("GET", "/users/42").get();
+    exchange = new BenchmarkExchange("GET", URI);
+    exchange.getRequestHeaders().add("Cookie", "session=abc123; theme=dark; lang=en");
+    // Past QueryString.INDEX_THRESHOLD, as a form submitted with GET might be
+    largeNames = new String[64];
+    StringBuilder uri = new StringBuilder("/users/42?");
+    for (int i = 0; i < largeNames.length; i++) {
+      largeNames[i] = "field" + i;
+      uri.append(i == 0 ? "" : "&").append(largeNames[i]).append('=').append(i);
+    }
+    large = new BenchmarkExchange("GET", uri.toString());
+  }
+
+  @Benchmark
+  public Map<String, List<String>> parseQueryParameters() {
+    return HttpExchanges.parseQueryParameters(exchange, StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public Request construct() {
+    return new Request(new InternalHttpExchange(exchange, match, router));
+  }
+
+  @Benchmark
+  public String queryAndParam() {
+    Request request = new Request(new InternalHttpExchange(exchange, match, router));
+    return request.queryFirst("page") + request.param("id");
+  }
+
+  @Benchmark
+  public int readLargeQuery() {
+    Request request = new Request(new InternalHttpExchange(large, match, router));
+    int length = 0;
+    for (String name : largeNames) {
+      length += request.queryFirst(name).length();
+    }
+    return length;
+  }
+
+  @Benchmark
+  public int cookies() {
+    return new Request(new InternalHttpExchange(exchange, match, router)).cookies().size();
+  }
+}
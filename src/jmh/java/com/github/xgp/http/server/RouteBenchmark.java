@@ -0,0 +1,54 @@
+package com.github.xgp.http.server;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Compiling a {@link Route}'s regex, and matching and extracting parameters with it. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RouteBenchmark {
+  private static final String PATTERN = "/users/{user}/posts/{post: [0-9]+}";
+  private static final String URI = "/users/42/posts/7";
+
+  Route route;
+
+  @Setup
+  public void setup() {
+    route = compile();
+  }
+
+  @Benchmark
+  public Route compile() {
+    return new Route("GET", PATTERN, ex -> {}, Optional.empty());
+  }
+
+  @Benchmark
+  public boolean matches() {
+    return route.matches("GET", URI);
+  }
+
+  @Benchmark
+  public boolean mismatches() {
+    return route.matches("GET", "/users/42/comments/7");
+  }
+
+  @Benchmark
+  public Map<String, String> pathParameters() {
+    return route.getPathParametersEncoded(URI);
+  }
+}
@@ -0,0 +1,80 @@
+package com.github.xgp.http.server;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link Router#handle} with a number of routes, from dispatch through rendering the body, on
+ * exchanges that don't touch the network.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RouterBenchmark {
+
+  @Param({"10", "100", "1000"})
+  int routes;
+
+  Router router;
+  String first;
+  String last;
+
+  @Setup
+  public void setup() {
+    router = new Router();
+    for (int i = 0; i < routes; i++) {
+      router.GET(
+          "/api/resource" + i + "/{id}",
+          (request, response) -> {
+            response.body(request.param("id"));
+          });
+    }
+    router.GET(
+        "/api/static",
+        (request, response) -> {
+          response.body("static");
+        });
+    first = "/api/resource0/42";
+    last = "/api/resource" + (routes - 1) + "/42";
+  }
+
+  @Benchmark
+  public int first() throws IOException {
+    return handle(first);
+  }
+
+  @Benchmark
+  public int last() throws IOException {
+    return handle(last);
+  }
+
+  @Benchmark
+  public int literal() throws IOException {
+    return handle("/api/static");
+  }
+
+  @Benchmark
+  public int notFound() throws IOException {
+    return handle("/nowhere/42");
+  }
+
+  private int handle(String uri) throws IOException {
+    BenchmarkExchange ex = new BenchmarkExchange("GET", uri);
+    router.handle(ex);
+    return ex.written();
+  }
+}
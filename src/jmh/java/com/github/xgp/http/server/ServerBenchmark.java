@@ -0,0 +1,75 @@
+package com.github.xgp.http.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Requests to an in-process {@link Server}, over keep-alive connections on the loopback. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ServerBenchmark {
+
+  @Param({"16", "65536"})
+  int size;
+
+  Server server;
+  URL url;
+
+  @Setup
+  public void setup() throws Exception {
+    int port;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    String body = new String(new char[size]).replace('\0', 'x');
+    server = new Server(port);
+    server
+        .router()
+        .GET(
+            "/body/{id}",
+            (request, response) -> {
+              response.body(body);
+            });
+    server.start();
+    url = new URL("http://localhost:" + port + "/body/42?page=1");
+  }
+
+  @TearDown
+  public void tearDown() {
+    server.stop();
+  }
+
+  @Benchmark
+  public long get() throws IOException {
+    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    byte[] buf = new byte[8192];
+    long total = 0;
+    // Reading to the end returns the connection to the keep-alive cache
+    try (InputStream in = conn.getInputStream()) {
+      int n;
+      while ((n = in.read(buf)) != -1) total += n;
+    }
+    return total;
+  }
+}
@@ -0,0 +1,77 @@
+package com.github.xgp.xml;
+
+import com.github.xgp.xml.slurpersupport.GPathResult;
+import java.io.ByteArrayInputStream;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Navigating a parsed document with GPath expressions. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GPathBenchmark {
+
+  @Param({"SMALL", "MEDIUM"})
+  XmlDocuments.Size size;
+
+  GPathResult root;
+
+  @Setup
+  public void setup() throws Exception {
+    root = new XmlSlurper().parse(new ByteArrayInputStream(XmlDocuments.bytes(size)));
+  }
+
+  /** Building a child path, which is lazy. */
+  @Benchmark
+  public Object getProperty() {
+    return ((GPathResult) root.getProperty("item")).getProperty("title");
+  }
+
+  @Benchmark
+  public int size() {
+    return root.e("item").size();
+  }
+
+  /** Every tag of every item, which walks the document. */
+  @Benchmark
+  public int nestedSize() {
+    return root.e("item").e("tags").e("tag").size();
+  }
+
+  @Benchmark
+  public String text() {
+    return ((GPathResult) root.e("item").getAt(size.items / 2)).e("title").text();
+  }
+
+  @Benchmark
+  public int depthFirst() {
+    int count = 0;
+    for (Iterator<GPathResult> it = root.depthFirst(); it.hasNext(); it.next()) {
+      count++;
+    }
+    return count;
+  }
+
+  @Benchmark
+  public int attributes() {
+    int active = 0;
+    for (Iterator<GPathResult> it = root.e("item").iterator(); it.hasNext(); ) {
+      if ("active".equals(it.next().a("status").text())) active++;
+    }
+    return active;
+  }
+}
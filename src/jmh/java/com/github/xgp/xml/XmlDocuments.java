@@ -0,0 +1,85 @@
+package com.github.xgp.xml;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Generates vendor-feed-like documents for the benchmarks: a flat list of items, each with
+ * attributes, a few text fields and a nested list of tags. The output is the same for a size every
+ * time, so results can be compared across runs.
+ */
+final class XmlDocuments {
+
+  /** Sizes, by number of items. An item is about 370 bytes, and 12 elements. */
+  enum Size {
+    SMALL(100),
+    MEDIUM(10_000),
+    LARGE(400_000);
+
+    final int items;
+
+    Size(int items) {
+      this.items = items;
+    }
+
+    /** The number of elements in a document of this size, including the root. */
+    long elements() {
+      return 1 + 12L * items;
+    }
+  }
+
+  private XmlDocuments() {}
+
+  static byte[] bytes(Size size) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(size.items * 320);
+    write(size.items, out);
+    return out.toByteArray();
+  }
+
+  /** Writes a document to a temporary file, for those too large to keep in memory as well. */
+  static Path file(Size size) throws IOException {
+    Path file = Files.createTempFile("xml-benchmark-", ".xml");
+    try (OutputStream out = Files.newOutputStream(file)) {
+      write(size.items, out);
+    }
+    return file;
+  }
+
+  static void write(int items, OutputStream out) throws IOException {
+    Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+    w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<feed vendor=\"acme\">\n");
+    for (int i = 0; i < items; i++) {
+      w.write("  <item id=\"");
+      w.write(Integer.toString(i));
+      w.write("\" status=\"");
+      w.write(i % 7 == 0 ? "inactive" : "active");
+      w.write("\">\n    <sku>SKU-");
+      w.write(Integer.toString(1_000_000 + i));
+      w.write("</sku>\n    <title>Product number ");
+      w.write(Integer.toString(i));
+      w.write(" &amp; accessories</title>\n    <price currency=\"USD\">");
+      w.write(Integer.toString(i % 1000));
+      w.write('.');
+      w.write(Integer.toString(10 + i % 90));
+      w.write("</price>\n    <stock>");
+      w.write(Integer.toString(i % 250));
+      w.write("</stock>\n    <description>Lorem ipsum dolor sit amet, consectetur adipiscing");
+      w.write(" elit.</description>\n    <tags>");
+      for (int t = 0; t < 5; t++) {
+        w.write("<tag>t");
+        w.write(Integer.toString((i + t) % 50));
+        w.write("</tag>");
+      }
+      w.write("</tags>\n  </item>\n");
+    }
+    w.write("</feed>\n");
+    w.flush();
+  }
+}
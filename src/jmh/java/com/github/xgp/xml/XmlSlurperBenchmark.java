@@ -0,0 +1,66 @@
+package com.github.xgp.xml;
+
+import com.github.xgp.xml.slurpersupport.GPathResult;
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Parsing small and medium documents from memory. With the GC profiler, {@code
+ * gc.alloc.rate.norm} divided by the document's element count, which is logged at setup, is the
+ * heap allocated per node. {@link #main} runs all the XML benchmarks with it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class XmlSlurperBenchmark {
+
+  @Param({"SMALL", "MEDIUM"})
+  XmlDocuments.Size size;
+
+  byte[] document;
+  XmlSlurper slurper;
+
+  @Setup
+  public void setup() throws Exception {
+    document = XmlDocuments.bytes(size);
+    slurper = new XmlSlurper();
+    System.out.printf("%n%s: %,d bytes, %,d elements%n", size, document.length, size.elements());
+  }
+
+  @Benchmark
+  public GPathResult parse() throws Exception {
+    return slurper.parse(new ByteArrayInputStream(document));
+  }
+
+  /** Includes creating the parser, as code that parses a document once does. */
+  @Benchmark
+  public GPathResult parseWithNewSlurper() throws Exception {
+    return new XmlSlurper().parse(new ByteArrayInputStream(document));
+  }
+
+  public static void main(String[] args) throws Exception {
+    new Runner(
+            new OptionsBuilder()
+                .include(XmlSlurperBenchmark.class.getPackage().getName())
+                .addProfiler(GCProfiler.class)
+                .build())
+        .run();
+  }
+}
@@ -0,0 +1,50 @@
+package com.github.xgp.xml;
+
+import com.github.xgp.xml.slurpersupport.GPathResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing a document of over 100MB from a file, as a batch job does. Each parse takes seconds, so
+ * they are timed one at a time, with a heap large enough to hold the result.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class XmlSlurperLargeBenchmark {
+
+  Path document;
+
+  @Setup
+  public void setup() throws Exception {
+    document = XmlDocuments.file(XmlDocuments.Size.LARGE);
+    System.out.printf(
+        "%nLARGE: %,d bytes, %,d elements%n",
+        Files.size(document), XmlDocuments.Size.LARGE.elements());
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    Files.deleteIfExists(document);
+  }
+
+  @Benchmark
+  public GPathResult parse() throws Exception {
+    return new XmlSlurper().parse(document.toFile());
+  }
+}
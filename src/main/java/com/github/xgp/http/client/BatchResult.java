@@ -0,0 +1,66 @@
+package com.github.xgp.http.client;
+
+/** The outcome of one request of an {@link HttpClient#batch}, and how long it took. */
+public class BatchResult {
+
+  private final HttpRequest request;
+  private final long queued = System.nanoTime();
+  private volatile long started;
+  private volatile long finished;
+  private volatile HttpResponse response;
+  private volatile Throwable error;
+
+  BatchResult(HttpRequest request) {
+    this.request = request;
+  }
+
+  void started() {
+    started = System.nanoTime();
+  }
+
+  void complete(HttpResponse response, Throwable error) {
+    this.finished = System.nanoTime();
+    if (started == 0) started = finished;
+    this.response = response;
+    this.error = error;
+  }
+
+  public HttpRequest request() {
+    return request;
+  }
+
+  /** @return the response, or null if the request failed */
+  public HttpResponse response() {
+    return response;
+  }
+
+  /** @return why the request failed, or null if it didn't */
+  public Throwable error() {
+    return error;
+  }
+
+  /** @return true if a response was received, whatever its status */
+  public boolean completed() {
+    return response != null;
+  }
+
+  /** @return nanoseconds spent waiting for a connection */
+  public long waitNanos() {
+    return started - queued;
+  }
+
+  /** @return nanoseconds from getting a connection to having read the whole response */
+  public long durationNanos() {
+    return finished - started;
+  }
+
+  @Override
+  public String toString() {
+    return request
+        + " -> "
+        + (response != null ? response.code() : String.valueOf(error))
+        + " in "
+        + durationNanos() / 1000
+        + "us";
+  }
+}
@@ -0,0 +1,299 @@
+package com.github.xgp.http.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Kept-alive connections for an {@link HttpClient}, grouped by origin. Each origin has a limit on
+ * the number of connections open at once, which is enforced with permits. Blocking callers wait for
+ * a permit. Tasks {@link Host#submit submitted} to an origin are queued until a permit is free, so
+ * they don't hold a thread while they wait. Connections that have been idle for longer than the
+ * idle timeout are closed.
+ */
+class ConnectionPool implements Closeable {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final int maxConnectionsPerHost;
+  private final long idleTimeoutMillis;
+  private final long acquireTimeoutMillis;
+  private final SSLSocketFactory sslSocketFactory;
+  private final Executor executor;
+  private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+  private volatile boolean closed = false;
+
+  ConnectionPool(
+      int maxConnectionsPerHost,
+      long idleTimeoutMillis,
+      long acquireTimeoutMillis,
+      SSLSocketFactory sslSocketFactory,
+      Executor executor) {
+    this.maxConnectionsPerHost = maxConnectionsPerHost;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.acquireTimeoutMillis = acquireTimeoutMillis;
+    this.sslSocketFactory = sslSocketFactory;
+    this.executor = executor;
+  }
+
+  /** @return the connections to the origin of the url */
+  Host host(URL url) {
+    String protocol = url.getProtocol().toLowerCase(Locale.ROOT);
+    String name = url.getHost().toLowerCase(Locale.ROOT);
+    int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+    String key = protocol + "://" + name + ":" + port;
+    Host host = hosts.get(key);
+    if (host == null) {
+      Host created = new Host(protocol, name, port);
+      host = hosts.putIfAbsent(key, created);
+      if (host == null) host = created;
+    }
+    return host;
+  }
+
+  /** Closes connections that have been idle for longer than the idle timeout. */
+  void evictIdle() {
+    long now = System.currentTimeMillis();
+    for (Host host : hosts.values()) host.evictIdle(now);
+  }
+
+  /** @return the number of idle connections, across all origins */
+  int idleCount() {
+    int count = 0;
+    for (Host host : hosts.values()) count += host.idleCount();
+    return count;
+  }
+
+  /** Closes all idle connections. Connections in use are closed when they are released. */
+  @Override
+  public void close() {
+    closed = true;
+    for (Host host : hosts.values()) host.evictIdle(Long.MAX_VALUE);
+  }
+
+  /** The connections to one origin. */
+  final class Host {
+    final String protocol;
+    final String name;
+    final int port;
+    private int permits = maxConnectionsPerHost;
+    private final Deque<Connection> idle = new ArrayDeque<Connection>();
+    private final Deque<Task> queued = new ArrayDeque<Task>();
+
+    Host(String protocol, String name, int port) {
+      this.protocol = protocol;
+      this.name = name;
+      this.port = port;
+    }
+
+    /**
+     * Takes a permit, blocking until one is free.
+     *
+     * @param timeoutMillis how long to wait, or 0 to wait for the pool's acquire timeout
+     * @throws SocketTimeoutException if no permit was freed in time
+     */
+    void acquire(long timeoutMillis) throws IOException {
+      if (timeoutMillis <= 0) timeoutMillis = acquireTimeoutMillis;
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      synchronized (this) {
+        try {
+          while (permits == 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+              throw new SocketTimeoutException("Timed out waiting for a connection to " + this);
+            }
+            wait(remaining);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted waiting for a connection to " + this);
+        }
+        permits--;
+      }
+    }
+
+    /**
+     * Runs a task on the executor once a permit is free. The task owns the permit and must {@link
+     * #release} it.
+     */
+    void submit(Task task) {
+      synchronized (this) {
+        if (permits == 0 || !queued.isEmpty()) {
+          queued.add(task);
+          return;
+        }
+        permits--;
+      }
+      try {
+        executor.execute(task);
+      } catch (RejectedExecutionException e) {
+        task.rejected(e);
+        release();
+      }
+    }
+
+    /** Returns a permit, handing it to the next queued task if there is one. */
+    void release() {
+      while (true) {
+        Task next;
+        synchronized (this) {
+          next = queued.poll();
+          if (next == null) {
+            permits++;
+            notify();
+            return;
+          }
+        }
+        try {
+          executor.execute(next);
+          return;
+        } catch (RejectedExecutionException e) {
+          // the permit is still ours to hand on
+          next.rejected(e);
+        }
+      }
+    }
+
+    /**
+     * Opens a connection, or reuses an idle one. A permit must be held.
+     *
+     * @param connectTimeout socket connect timeout in milliseconds
+     * @param reuse false to always open a new connection
+     * @return the connection
+     */
+    Connection open(int connectTimeout, boolean reuse) throws IOException {
+      if (reuse) {
+        long now = System.currentTimeMillis();
+        List<Connection> expired = null;
+        Connection connection = null;
+        synchronized (this) {
+          while (connection == null && !idle.isEmpty()) {
+            Connection c = idle.pop();
+            if (now - c.idleSince < idleTimeoutMillis && !c.socket.isClosed()) {
+              connection = c;
+            } else {
+              if (expired == null) expired = new ArrayList<Connection>();
+              expired.add(c);
+            }
+          }
+        }
+        if (expired != null) for (Connection c : expired) c.close();
+        if (connection != null) {
+          connection.reused = true;
+          return connection;
+        }
+      }
+      return connect(connectTimeout);
+    }
+
+    private Connection connect(int connectTimeout) throws IOException {
+      Socket socket = new Socket();
+      try {
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(name, port), connectTimeout);
+        if ("https".equals(protocol)) {
+          SSLSocket ssl = (SSLSocket) sslSocketFactory.createSocket(socket, name, port, true);
+          SSLParameters parameters = ssl.getSSLParameters();
+          parameters.setEndpointIdentificationAlgorithm("HTTPS");
+          ssl.setSSLParameters(parameters);
+          ssl.startHandshake();
+          socket = ssl;
+        }
+        return new Connection(socket);
+      } catch (IOException | RuntimeException e) {
+        try {
+          socket.close();
+        } catch (IOException ignored) {
+          // Ignored
+        }
+        throw e;
+      }
+    }
+
+    /** Keeps a connection whose response has been fully read for reuse. */
+    void recycle(Connection connection) {
+      if (closed) {
+        connection.close();
+        return;
+      }
+      connection.idleSince = System.currentTimeMillis();
+      synchronized (this) {
+        idle.push(connection);
+      }
+    }
+
+    void evictIdle(long now) {
+      List<Connection> expired = new ArrayList<Connection>();
+      synchronized (this) {
+        Iterator<Connection> it = idle.descendingIterator();
+        while (it.hasNext()) {
+          Connection c = it.next();
+          if (now - c.idleSince >= idleTimeoutMillis) {
+            expired.add(c);
+            it.remove();
+          }
+        }
+      }
+      for (Connection c : expired) c.close();
+    }
+
+    synchronized int idleCount() {
+      return idle.size();
+    }
+
+    @Override
+    public String toString() {
+      return protocol + "://" + name + ":" + port;
+    }
+  }
+
+  /** A task for {@link Host#submit}. */
+  interface Task extends Runnable {
+    /** Called instead of running the task, if the executor won't take it. */
+    void rejected(RejectedExecutionException e);
+  }
+
+  /** A socket, and buffered streams over it. */
+  static final class Connection {
+    final Socket socket;
+    final InputStream in;
+    final OutputStream out;
+    long idleSince;
+    boolean reused = false;
+
+    Connection(Socket socket) throws IOException {
+      this.socket = socket;
+      this.in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+      this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException ignored) {
+        // Ignored
+      }
+    }
+  }
+}
@@ -0,0 +1,391 @@
+package com.github.xgp.http.client;
+
+import com.github.xgp.http.client.HttpRequest.ConnectionFactory;
+import com.github.xgp.http.client.HttpRequest.HttpRequestException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * An HTTP client with its own pool of kept-alive connections, rather than the JVM wide one
+ * configured by {@link HttpRequest#keepAlive} and {@link HttpRequest#maxConnections}. Each origin
+ * has a limit on the number of open connections, and connections that sit idle are closed.
+ *
+ * <p>Requests are created with the usual {@link HttpRequest} API, and can be run synchronously, or
+ * with {@link #send}, which completes with the fully read response. Sent requests wait in a queue
+ * for a connection to their origin, so only requests that have a connection occupy a thread, and
+ * thousands can be in flight at once.
+ *
+ * <p>A synchronous request holds its connection until the response body has been read or closed.
+ * Bodies of up to 8KiB are read along with the status, so {@link HttpRequest#code()} alone is
+ * enough for those. Requests that wait longer than the {@link Builder#acquireTimeout} for a
+ * connection fail.
+ *
+ * <pre>{@code
+ * HttpClient client = new HttpClient.Builder().maxConnectionsPerHost(32).build();
+ * String body = client.GET("http://localhost:8080/test").body();
+ * CompletableFuture<HttpResponse> f = client.send(client.POST(url).send("data"));
+ * }</pre>
+ *
+ * <p>Many requests to one origin can be run as a {@link #batch}, which bounds how many are in
+ * flight and times each of them.
+ *
+ * <p>Connections are always made directly. Requests given a {@link Proxy} fall back to {@link
+ * HttpURLConnection}.
+ */
+public class HttpClient implements ConnectionFactory, Closeable {
+
+  /** Default maximum number of open connections to a single origin. */
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+
+  /** Default time, in milliseconds, after which idle connections are closed. */
+  public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+  /** Default time, in milliseconds, that a request waits for a connection to its origin. */
+  public static final long DEFAULT_ACQUIRE_TIMEOUT = 60000;
+
+  private static final ScheduledExecutorService evictor =
+      Executors.newSingleThreadScheduledExecutor(threadFactory("http-client-evictor-"));
+
+  private final ConnectionPool pool;
+  private final Executor executor;
+  private final boolean ownsExecutor;
+  private final ScheduledFuture<?> eviction;
+
+  protected HttpClient(Builder builder) {
+    this.ownsExecutor = builder.executor == null;
+    this.executor =
+        ownsExecutor
+            ? Executors.newCachedThreadPool(threadFactory("http-client-"))
+            : builder.executor;
+    this.pool =
+        new ConnectionPool(
+            builder.maxConnectionsPerHost,
+            builder.idleTimeout,
+            builder.acquireTimeout,
+            builder.sslSocketFactory != null
+                ? builder.sslSocketFactory
+                : HttpsURLConnection.getDefaultSSLSocketFactory(),
+            executor);
+    long period = Math.max(1000, builder.idleTimeout / 2);
+    this.eviction =
+        evictor.scheduleWithFixedDelay(pool::evictIdle, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Start a request that uses this client's connections
+   *
+   * @param url
+   * @param method
+   * @return request
+   * @throws HttpRequestException
+   */
+  public HttpRequest request(final CharSequence url, final String method)
+      throws HttpRequestException {
+    try {
+      return new HttpRequest(new URL(url.toString()), method, this);
+    } catch (MalformedURLException e) {
+      throw new HttpRequestException(e);
+    }
+  }
+
+  /** Start a 'GET' request that uses this client's connections */
+  public HttpRequest GET(final CharSequence url) throws HttpRequestException {
+    return request(url, HttpRequest.METHOD_GET);
+  }
+
+  /** Start a 'POST' request that uses this client's connections */
+  public HttpRequest POST(final CharSequence url) throws HttpRequestException {
+    return request(url, HttpRequest.METHOD_POST);
+  }
+
+  /** Start a 'PUT' request that uses this client's connections */
+  public HttpRequest PUT(final CharSequence url) throws HttpRequestException {
+    return request(url, HttpRequest.METHOD_PUT);
+  }
+
+  /** Start a 'DELETE' request that uses this client's connections */
+  public HttpRequest DELETE(final CharSequence url) throws HttpRequestException {
+    return request(url, HttpRequest.METHOD_DELETE);
+  }
+
+  /** Start a 'HEAD' request that uses this client's connections */
+  public HttpRequest HEAD(final CharSequence url) throws HttpRequestException {
+    return request(url, HttpRequest.METHOD_HEAD);
+  }
+
+  @Override
+  public HttpURLConnection create(URL url) throws IOException {
+    String protocol = url.getProtocol();
+    if (!"http".equalsIgnoreCase(protocol) && !"https".equalsIgnoreCase(protocol)) {
+      return ConnectionFactory.DEFAULT.create(url);
+    }
+    return new PooledHttpURLConnection(url, pool);
+  }
+
+  @Override
+  public HttpURLConnection create(URL url, Proxy proxy) throws IOException {
+    if (proxy == null || proxy.type() == Proxy.Type.DIRECT) return create(url);
+    return ConnectionFactory.DEFAULT.create(url, proxy);
+  }
+
+  /**
+   * Runs a request and reads its response. The request waits, without holding a thread, until
+   * there is a connection available to its origin. A request that was not created by this client
+   * runs on its own connection, but still on this client's executor.
+   *
+   * @param request the request, which must not have been run
+   * @return a future that completes with the response, or exceptionally with an {@link
+   *     HttpRequestException}
+   */
+  public CompletableFuture<HttpResponse> send(final HttpRequest request) {
+    return send(request, null);
+  }
+
+  private CompletableFuture<HttpResponse> send(
+      final HttpRequest request, final BatchResult result) {
+    return run(
+        request.getConnection(),
+        () -> {
+          if (result != null) result.started();
+          return HttpResponse.of(request);
+        });
+  }
+
+  /** Work done with a connection given by {@link #execute}. */
+  public interface Exchange<T> {
+    T apply(HttpURLConnection connection) throws Exception;
+  }
+
+  /**
+   * Does work with a connection to a url, once one to its origin is available. Like {@link #send},
+   * nothing holds a thread while it waits. The work should read the response to the end, and the
+   * connection is disconnected afterwards if it didn't.
+   *
+   * @param url the url to connect to
+   * @param exchange the work, which sends a request and reads its response
+   * @return a future that completes with the result of the work
+   */
+  public <T> CompletableFuture<T> execute(final URL url, final Exchange<T> exchange) {
+    final HttpURLConnection connection;
+    try {
+      connection = create(url);
+    } catch (IOException e) {
+      CompletableFuture<T> failed = new CompletableFuture<T>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+    return run(connection, () -> exchange.apply(connection));
+  }
+
+  private <T> CompletableFuture<T> run(
+      final HttpURLConnection connection, final Callable<T> work) {
+    final CompletableFuture<T> future = new CompletableFuture<T>();
+    if (connection instanceof PooledHttpURLConnection) {
+      final PooledHttpURLConnection pooled = (PooledHttpURLConnection) connection;
+      final ConnectionPool.Host host = pooled.host();
+      host.submit(
+          new ConnectionPool.Task() {
+            @Override
+            public void run() {
+              if (!pooled.adopt(host)) host.release();
+              try {
+                complete(work, future);
+              } finally {
+                // gives back the connection and permit if the response wasn't read
+                pooled.disconnect();
+              }
+            }
+
+            @Override
+            public void rejected(RejectedExecutionException e) {
+              future.completeExceptionally(e);
+            }
+          });
+    } else {
+      try {
+        executor.execute(() -> complete(work, future));
+      } catch (RejectedExecutionException e) {
+        future.completeExceptionally(e);
+      }
+    }
+    return future;
+  }
+
+  private static <T> void complete(Callable<T> work, CompletableFuture<T> future) {
+    try {
+      future.complete(work.call());
+    } catch (Throwable t) {
+      future.completeExceptionally(t);
+    }
+  }
+
+  /**
+   * Runs requests to a single origin with {@link #send}, keeping at most {@code maxInFlight} of
+   * them in flight. Each request reuses a connection left idle by an earlier one, so a batch pays
+   * for connection setup at most {@code maxInFlight} times, and its requests overlap rather than
+   * each waiting on the last.
+   *
+   * @param requests the requests, none of which have been run
+   * @param maxInFlight maximum number of requests to run at once
+   * @return a future that completes once every request has, with a result for each, in order. It
+   *     doesn't complete exceptionally, as failures are recorded in the results.
+   * @throws IllegalArgumentException if the requests are not all to the same origin
+   */
+  public CompletableFuture<List<BatchResult>> batch(
+      final List<HttpRequest> requests, final int maxInFlight) {
+    if (maxInFlight < 1) throw new IllegalArgumentException("maxInFlight must be at least 1");
+    ConnectionPool.Host origin = null;
+    for (HttpRequest request : requests) {
+      ConnectionPool.Host host = pool.host(request.url());
+      if (origin != null && origin != host) {
+        throw new IllegalArgumentException(
+            "Batched requests must share an origin: " + origin + " and " + host);
+      }
+      origin = host;
+    }
+
+    final int size = requests.size();
+    final BatchResult[] results = new BatchResult[size];
+    final CompletableFuture<List<BatchResult>> done = new CompletableFuture<List<BatchResult>>();
+    final AtomicInteger next = new AtomicInteger(0);
+    final AtomicInteger remaining = new AtomicInteger(size);
+    // Launches owed by completions. Futures that have already completed run their callbacks
+    // inside send(), so only the first caller launches, in a loop, and the rest add to the count
+    final AtomicInteger owed = new AtomicInteger(0);
+    if (size == 0) done.complete(Collections.<BatchResult>emptyList());
+    Runnable launch =
+        new Runnable() {
+          @Override
+          public void run() {
+            if (owed.getAndIncrement() != 0) return;
+            do {
+              launchNext();
+            } while (owed.decrementAndGet() != 0);
+          }
+
+          private void launchNext() {
+            final int i = next.getAndIncrement();
+            if (i >= size) return;
+            final BatchResult result = new BatchResult(requests.get(i));
+            results[i] = result;
+            send(result.request(), result)
+                .whenComplete(
+                    (response, error) -> {
+                      result.complete(response, error);
+                      if (remaining.decrementAndGet() == 0) {
+                        done.complete(Collections.unmodifiableList(Arrays.asList(results)));
+                      } else {
+                        run();
+                      }
+                    });
+          }
+        };
+    for (int i = 0; i < Math.min(maxInFlight, size); i++) launch.run();
+    return done;
+  }
+
+  /** @return the number of idle connections, across all origins */
+  public int idleConnections() {
+    return pool.idleCount();
+  }
+
+  /**
+   * Closes idle connections, and those in use once they are released. If the client owns its
+   * executor, requests still waiting for a connection complete with a {@link
+   * RejectedExecutionException}.
+   */
+  @Override
+  public void close() {
+    eviction.cancel(false);
+    pool.close();
+    if (ownsExecutor) ((ExecutorService) executor).shutdown();
+  }
+
+  static ThreadFactory threadFactory(final String prefix) {
+    final AtomicInteger count = new AtomicInteger(0);
+    return r -> {
+      Thread thread = new Thread(r, prefix + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /** Builder for {@link HttpClient}. */
+  public static class Builder {
+    private int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private long acquireTimeout = DEFAULT_ACQUIRE_TIMEOUT;
+    private SSLSocketFactory sslSocketFactory;
+    private Executor executor;
+
+    public Builder() {}
+
+    public HttpClient build() {
+      return new HttpClient(this);
+    }
+
+    /** Sets the maximum number of open connections to a single origin. */
+    public Builder maxConnectionsPerHost(int maxConnectionsPerHost) {
+      if (maxConnectionsPerHost < 1) {
+        throw new IllegalArgumentException("maxConnectionsPerHost must be at least 1");
+      }
+      this.maxConnectionsPerHost = maxConnectionsPerHost;
+      return this;
+    }
+
+    /** Sets the time, in milliseconds, after which idle connections are closed. */
+    public Builder idleTimeout(long idleTimeout) {
+      this.idleTimeout = idleTimeout;
+      return this;
+    }
+
+    /**
+     * Sets the time, in milliseconds, that a synchronous request waits for a connection to its
+     * origin when it has no connect timeout of its own. A request that waits longer fails with a
+     * {@link java.net.SocketTimeoutException}.
+     */
+    public Builder acquireTimeout(long acquireTimeout) {
+      if (acquireTimeout < 1) {
+        throw new IllegalArgumentException("acquireTimeout must be at least 1");
+      }
+      this.acquireTimeout = acquireTimeout;
+      return this;
+    }
+
+    /** Sets the factory for https connections. Defaults to the {@link HttpsURLConnection} one. */
+    public Builder sslSocketFactory(SSLSocketFactory sslSocketFactory) {
+      this.sslSocketFactory = sslSocketFactory;
+      return this;
+    }
+
+    /**
+     * Sets the executor that sent requests run on. It's only given requests that have a
+     * connection, so its size need not exceed the total number of connections. Defaults to a cached
+     * thread pool that is shut down when the client is closed.
+     */
+    public Builder executor(Executor executor) {
+      this.executor = executor;
+      return this;
+    }
+  }
+}
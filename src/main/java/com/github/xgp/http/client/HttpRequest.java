@@ -34,6 +34,7 @@ import static java.net.HttpURLConnection.HTTP_NO_CONTENT;
 import static java.net.HttpURLConnection.HTTP_OK;
 import static java.net.Proxy.Type.HTTP;
 
+import com.github.xgp.io.ZlibPool;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
@@ -82,7 +83,6 @@ import java.util.Map.Entry;
 import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.zip.GZIPInputStream;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
@@ -1297,6 +1297,8 @@ public class HttpRequest {
 
   private final String requestMethod;
 
+  private final ConnectionFactory connectionFactory;
+
   private RequestOutputStream output;
 
   private boolean multipart;
@@ -1333,6 +1335,7 @@ public class HttpRequest {
       throw new HttpRequestException(e);
     }
     this.requestMethod = method;
+    this.connectionFactory = null;
   }
 
   /**
@@ -1343,8 +1346,22 @@ public class HttpRequest {
    * @throws HttpRequestException
    */
   public HttpRequest(final URL url, final String method) throws HttpRequestException {
+    this(url, method, null);
+  }
+
+  /**
+   * Create HTTP connection wrapper that opens its connection with the given factory, rather than
+   * the one set by {@link #setConnectionFactory(ConnectionFactory)}
+   *
+   * @param url Remote resource URL.
+   * @param method HTTP request method (e.g., "GET", "POST").
+   * @param connectionFactory factory for the connection, or null for the default
+   */
+  public HttpRequest(
+      final URL url, final String method, final ConnectionFactory connectionFactory) {
     this.url = url;
     this.requestMethod = method;
+    this.connectionFactory = connectionFactory;
   }
 
   private Proxy createProxy() {
@@ -1353,9 +1370,11 @@ public class HttpRequest {
 
   private HttpURLConnection createConnection() {
     try {
+      final ConnectionFactory factory =
+          connectionFactory != null ? connectionFactory : CONNECTION_FACTORY;
       final HttpURLConnection connection;
-      if (httpProxyHost != null) connection = CONNECTION_FACTORY.create(url, createProxy());
-      else connection = CONNECTION_FACTORY.create(url);
+      if (httpProxyHost != null) connection = factory.create(url, createProxy());
+      else connection = factory.create(url);
       connection.setRequestMethod(requestMethod);
       return connection;
     } catch (IOException e) {
@@ -1566,8 +1585,8 @@ public class HttpRequest {
    * <p>This will only affect requests that have the 'Content-Encoding' response header set to
    * 'gzip'.
    *
-   * <p>This causes all receive methods to use a {@link GZIPInputStream} when applicable so that
-   * higher level streams and readers can read the data uncompressed.
+   * <p>This causes all receive methods to use a gzip stream from the shared {@link ZlibPool} when
+   * applicable so that higher level streams and readers can read the data uncompressed.
    *
    * <p>Setting this option does not cause any request headers to be set automatically so {@link
    * #acceptGzipEncoding()} should be used in conjunction with this setting to tell the server to
@@ -1712,7 +1731,7 @@ public class HttpRequest {
     if (!uncompress || !ENCODING_GZIP.equals(contentEncoding())) return stream;
     else
       try {
-        return new GZIPInputStream(stream);
+        return ZlibPool.shared().gunzip(stream);
       } catch (IOException e) {
         throw new HttpRequestException(e);
       }
@@ -2968,9 +2987,12 @@ public class HttpRequest {
    *
    * @return this request
    * @throws HttpRequestException
+   * @throws UnsupportedOperationException for an HTTPS request sent by an {@link HttpClient},
+   *     whose connections are shared and use {@link HttpClient.Builder#sslSocketFactory}
    */
   public HttpRequest trustAllCerts() throws HttpRequestException {
     final HttpURLConnection connection = getConnection();
+    checkNotPooledHttps(connection, "trustAllCerts");
     if (connection instanceof HttpsURLConnection)
       ((HttpsURLConnection) connection).setSSLSocketFactory(getTrustedFactory());
     return this;
@@ -2983,14 +3005,27 @@ public class HttpRequest {
    * <p>This method does nothing if the current request is not a HTTPS request
    *
    * @return this request
+   * @throws UnsupportedOperationException for an HTTPS request sent by an {@link HttpClient},
+   *     whose connections are shared and always verify the host name
    */
   public HttpRequest trustAllHosts() {
     final HttpURLConnection connection = getConnection();
+    checkNotPooledHttps(connection, "trustAllHosts");
     if (connection instanceof HttpsURLConnection)
       ((HttpsURLConnection) connection).setHostnameVerifier(getTrustedVerifier());
     return this;
   }
 
+  // A pooled connection's socket may be shared with other requests, so it can't be trusted per
+  // request, and silently ignoring the setting would verify what the caller meant not to
+  private static void checkNotPooledHttps(HttpURLConnection connection, String method) {
+    if (connection instanceof PooledHttpURLConnection
+        && "https".equalsIgnoreCase(connection.getURL().getProtocol())) {
+      throw new UnsupportedOperationException(
+          method + " is not supported on HttpClient requests; configure the client's SSL instead");
+    }
+  }
+
   /**
    * Get the {@link URL} of this request's connection
    *
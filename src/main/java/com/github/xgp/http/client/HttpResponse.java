@@ -0,0 +1,91 @@
+package com.github.xgp.http.client;
+
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+/** A response whose body has been read fully into memory, as completed by {@link HttpClient}. */
+public class HttpResponse {
+
+  private final URL url;
+  private final int code;
+  private final String message;
+  private final Map<String, List<String>> headers;
+  private final String charset;
+  private final byte[] body;
+
+  HttpResponse(
+      URL url,
+      int code,
+      String message,
+      Map<String, List<String>> headers,
+      String charset,
+      byte[] body) {
+    this.url = url;
+    this.code = code;
+    this.message = message;
+    this.headers = headers;
+    this.charset = charset;
+    this.body = body;
+  }
+
+  /** Reads the status, headers and body of a request. */
+  static HttpResponse of(HttpRequest request) {
+    int code = request.code();
+    byte[] body = request.bytes();
+    return new HttpResponse(
+        request.url(), code, request.message(), request.headers(), request.charset(), body);
+  }
+
+  /** @return the url of the response, which differs from the request's if it was redirected */
+  public URL url() {
+    return url;
+  }
+
+  public int code() {
+    return code;
+  }
+
+  public String message() {
+    return message;
+  }
+
+  /** @return true if the status is 200 OK */
+  public boolean ok() {
+    return code == 200;
+  }
+
+  public Map<String, List<String>> headers() {
+    return headers;
+  }
+
+  /** @return the last value of the header, or null */
+  public String header(String name) {
+    for (Map.Entry<String, List<String>> e : headers.entrySet()) {
+      if (name.equalsIgnoreCase(e.getKey()) && !e.getValue().isEmpty()) {
+        return e.getValue().get(e.getValue().size() - 1);
+      }
+    }
+    return null;
+  }
+
+  public String contentType() {
+    return header(HttpRequest.HEADER_CONTENT_TYPE);
+  }
+
+  public byte[] bytes() {
+    return body;
+  }
+
+  /** @return the body, decoded with the charset of the response, or UTF-8 */
+  public String body() {
+    return new String(
+        body, Charset.forName(charset != null ? charset : HttpRequest.CHARSET_UTF8));
+  }
+
+  @Override
+  public String toString() {
+    return code + " " + message + " " + url;
+  }
+}
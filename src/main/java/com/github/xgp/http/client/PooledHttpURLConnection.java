@@ -0,0 +1,731 @@
+package com.github.xgp.http.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * An HTTP/1.1 {@link HttpURLConnection} that borrows its socket from a {@link ConnectionPool}, so
+ * that {@link HttpRequest} can use it unchanged. The socket is returned to the pool once the
+ * response body has been read to the end, and closed if the body is closed early, or by {@link
+ * #disconnect()}. Bodies of known length up to 8KiB are read with the response head, so the socket
+ * goes back even if only the status is wanted.
+ *
+ * <p>Like the JDK's implementation, request bodies are buffered unless a streaming mode is set,
+ * same protocol redirects are followed, and a request on a reused connection that the server has
+ * closed is retried on a new one.
+ */
+class PooledHttpURLConnection extends HttpURLConnection {
+
+  private static final int MAX_REDIRECTS = 20;
+  private static final int MAX_LINE_LENGTH = 64 * 1024;
+  private static final int MAX_DRAIN = 64 * 1024;
+  private static final int MAX_PREFETCH = 8 * 1024;
+  private static final String USER_AGENT = "Java/" + System.getProperty("java.version");
+
+  private final ConnectionPool pool;
+  private ConnectionPool.Host host;
+  private ConnectionPool.Connection connection;
+  private boolean permit = false;
+  private Map<String, List<String>> requestHeaders;
+  private ByteArrayOutputStream buffered;
+  private OutputStream streaming;
+  private boolean requestSent = false;
+  private boolean responded = false;
+  private boolean keepAlive;
+  private final List<String> keys = new ArrayList<String>();
+  private final List<String> values = new ArrayList<String>();
+  private InputStream body;
+
+  PooledHttpURLConnection(URL url, ConnectionPool pool) {
+    super(url);
+    this.pool = pool;
+  }
+
+  /**
+   * Takes ownership of a permit that was reserved for this connection.
+   *
+   * @return false if this connection already holds a permit, so the reserved one isn't needed
+   */
+  boolean adopt(ConnectionPool.Host host) {
+    if (permit || this.host != null && this.host != host) return false;
+    this.host = host;
+    this.permit = true;
+    return true;
+  }
+
+  /** @return the origin this connection will use, if it hasn't been redirected */
+  ConnectionPool.Host host() {
+    if (host == null) host = pool.host(url);
+    return host;
+  }
+
+  @Override
+  public void connect() throws IOException {
+    if (connection != null) return;
+    if (requestHeaders == null) requestHeaders = getRequestProperties();
+    lease(true);
+  }
+
+  private void lease(boolean reuse) throws IOException {
+    if (!permit) {
+      host().acquire(getConnectTimeout());
+      permit = true;
+    }
+    connected = true;
+    connection = host().open(getConnectTimeout(), reuse);
+    connection.socket.setSoTimeout(getReadTimeout());
+  }
+
+  /** Returns the connection to the pool if it can be reused, and gives up the permit. */
+  private void release(boolean reusable) {
+    if (connection != null) {
+      if (reusable) host.recycle(connection);
+      else connection.close();
+      connection = null;
+    }
+    if (permit) {
+      permit = false;
+      host.release();
+    }
+  }
+
+  @Override
+  public void disconnect() {
+    release(false);
+  }
+
+  @Override
+  public boolean usingProxy() {
+    return false;
+  }
+
+  @Override
+  public OutputStream getOutputStream() throws IOException {
+    if (streaming != null) return streaming;
+    if (buffered != null) return buffered;
+    if (!doOutput) {
+      throw new ProtocolException(
+          "cannot write to a URLConnection if doOutput=false - call setDoOutput(true)");
+    }
+    if (responded) throw new ProtocolException("Cannot write output after reading input.");
+    if ("GET".equals(method)) method = "POST";
+
+    long length = fixedContentLengthLong != -1 ? fixedContentLengthLong : fixedContentLength;
+    if (length == -1 && chunkLength <= 0) {
+      buffered = new ByteArrayOutputStream();
+      return buffered;
+    }
+    connect();
+    writeHead(length, length == -1);
+    requestSent = true;
+    streaming =
+        length != -1
+            ? new FixedLengthOutputStream(connection.out, length)
+            : new ChunkedOutputStream(connection.out, chunkLength);
+    return streaming;
+  }
+
+  @Override
+  public int getResponseCode() throws IOException {
+    readResponse();
+    return responseCode;
+  }
+
+  @Override
+  public String getResponseMessage() throws IOException {
+    readResponse();
+    return responseMessage;
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    if (!doInput) {
+      throw new ProtocolException(
+          "Cannot read from URLConnection if doInput=false (call setDoInput(true))");
+    }
+    readResponse();
+    if (responseCode >= HTTP_BAD_REQUEST) {
+      if (responseCode == HTTP_NOT_FOUND || responseCode == HTTP_GONE) {
+        throw new FileNotFoundException(url.toString());
+      }
+      throw new IOException(
+          "Server returned HTTP response code: " + responseCode + " for URL: " + url);
+    }
+    return body;
+  }
+
+  @Override
+  public InputStream getErrorStream() {
+    return responded && responseCode >= HTTP_BAD_REQUEST ? body : null;
+  }
+
+  @Override
+  public String getHeaderField(String name) {
+    return readResponseQuietly() ? header(name) : null;
+  }
+
+  /** @return the last value of the response header */
+  private String header(String name) {
+    for (int i = keys.size() - 1; i > 0; i--) {
+      if (name.equalsIgnoreCase(keys.get(i))) return values.get(i);
+    }
+    return null;
+  }
+
+  @Override
+  public String getHeaderFieldKey(int n) {
+    if (!readResponseQuietly() || n < 0 || n >= keys.size()) return null;
+    return keys.get(n);
+  }
+
+  @Override
+  public String getHeaderField(int n) {
+    if (!readResponseQuietly() || n < 0 || n >= values.size()) return null;
+    return values.get(n);
+  }
+
+  @Override
+  public Map<String, List<String>> getHeaderFields() {
+    if (!readResponseQuietly()) return Collections.emptyMap();
+    Map<String, List<String>> fields = new LinkedHashMap<String, List<String>>();
+    for (int i = 0; i < keys.size(); i++) {
+      String key = keys.get(i);
+      List<String> list = null;
+      for (Map.Entry<String, List<String>> e : fields.entrySet()) {
+        if (key == null ? e.getKey() == null : key.equalsIgnoreCase(e.getKey())) {
+          list = e.getValue();
+          break;
+        }
+      }
+      if (list == null) {
+        list = new ArrayList<String>(1);
+        fields.put(key, list);
+      }
+      list.add(values.get(i));
+    }
+    for (Map.Entry<String, List<String>> e : fields.entrySet()) {
+      e.setValue(Collections.unmodifiableList(e.getValue()));
+    }
+    return Collections.unmodifiableMap(fields);
+  }
+
+  private boolean readResponseQuietly() {
+    try {
+      readResponse();
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /** Sends the request, if it hasn't been already, and reads the response head. */
+  private void readResponse() throws IOException {
+    if (responded) return;
+    for (int redirects = 0; ; redirects++) {
+      exchange();
+      URL target = redirect(redirects);
+      if (target == null) break;
+      drain();
+      url = target;
+      host = null;
+      requestSent = false;
+      connect();
+    }
+    responded = true;
+  }
+
+  /** Sends the request and reads the response head, retrying once if the connection was stale. */
+  private void exchange() throws IOException {
+    boolean retried = false;
+    while (true) {
+      connect();
+      boolean reused = connection.reused;
+      boolean read = false;
+      try {
+        if (!requestSent) {
+          byte[] content = buffered == null ? null : buffered.toByteArray();
+          writeHead(content == null ? -1 : content.length, false);
+          if (content != null) connection.out.write(content);
+          connection.out.flush();
+          requestSent = true;
+        } else if (streaming != null) {
+          streaming.close();
+        }
+        read = true;
+        readHead();
+        return;
+      } catch (IOException e) {
+        release(false);
+        boolean stale = reused && !retried && streaming == null && !(read && keys.size() > 0);
+        if (!stale) throw e;
+        retried = true;
+        requestSent = false;
+        keys.clear();
+        values.clear();
+        lease(false);
+      }
+    }
+  }
+
+  private URL redirect(int redirects) throws IOException {
+    if (!instanceFollowRedirects || redirects >= MAX_REDIRECTS || streaming != null) return null;
+    if (responseCode < HTTP_MULT_CHOICE || responseCode > 308 || responseCode == 304) return null;
+    String location = header("Location");
+    if (location == null) return null;
+    URL target;
+    try {
+      target = new URL(url, location);
+    } catch (MalformedURLException e) {
+      return null;
+    }
+    if (!url.getProtocol().equalsIgnoreCase(target.getProtocol())) return null;
+    if (responseCode == HTTP_SEE_OTHER
+        || (responseCode == HTTP_MOVED_PERM || responseCode == HTTP_MOVED_TEMP)
+            && "POST".equals(method)) {
+      method = "GET";
+      buffered = null;
+    }
+    return target;
+  }
+
+  /** Reads what's left of a small response body, so the connection can be reused. */
+  private void drain() {
+    byte[] buf = new byte[4096];
+    int total = 0;
+    try {
+      int n;
+      while (total < MAX_DRAIN && (n = body.read(buf)) != -1) total += n;
+    } catch (IOException e) {
+      // closed below
+    }
+    try {
+      body.close();
+    } catch (IOException ignored) {
+      // Ignored
+    }
+    keys.clear();
+    values.clear();
+  }
+
+  private void writeHead(long contentLength, boolean chunked) throws IOException {
+    StringBuilder head = new StringBuilder(256);
+    String file = url.getFile();
+    head.append(method).append(' ').append(file.isEmpty() ? "/" : file).append(" HTTP/1.1\r\n");
+    boolean hasHost = false;
+    boolean hasUserAgent = false;
+    boolean hasAccept = false;
+    boolean hasContentType = false;
+    boolean hasIfModifiedSince = false;
+    for (Map.Entry<String, List<String>> e : requestHeaders.entrySet()) {
+      String name = e.getKey();
+      if (name == null
+          || "Content-Length".equalsIgnoreCase(name)
+          || "Transfer-Encoding".equalsIgnoreCase(name)) continue;
+      hasHost |= "Host".equalsIgnoreCase(name);
+      hasUserAgent |= "User-Agent".equalsIgnoreCase(name);
+      hasAccept |= "Accept".equalsIgnoreCase(name);
+      hasContentType |= "Content-Type".equalsIgnoreCase(name);
+      hasIfModifiedSince |= "If-Modified-Since".equalsIgnoreCase(name);
+      for (String value : e.getValue()) {
+        head.append(name).append(": ").append(value == null ? "" : value).append("\r\n");
+      }
+    }
+    if (!hasHost) {
+      head.append("Host: ").append(url.getHost());
+      if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+        head.append(':').append(url.getPort());
+      }
+      head.append("\r\n");
+    }
+    if (!hasUserAgent) head.append("User-Agent: ").append(USER_AGENT).append("\r\n");
+    if (!hasAccept) head.append("Accept: */*\r\n");
+    if (ifModifiedSince != 0 && !hasIfModifiedSince) {
+      SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
+      format.setTimeZone(TimeZone.getTimeZone("GMT"));
+      head.append("If-Modified-Since: ")
+          .append(format.format(new Date(ifModifiedSince)))
+          .append("\r\n");
+    }
+    if (contentLength >= 0 || chunked) {
+      if (!hasContentType) head.append("Content-Type: application/x-www-form-urlencoded\r\n");
+      if (contentLength >= 0) head.append("Content-Length: ").append(contentLength).append("\r\n");
+      else head.append("Transfer-Encoding: chunked\r\n");
+    } else if ("POST".equals(method) || "PUT".equals(method)) {
+      head.append("Content-Length: 0\r\n");
+    }
+    head.append("\r\n");
+    connection.out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  private void readHead() throws IOException {
+    InputStream in = connection.in;
+    String version;
+    do {
+      keys.clear();
+      values.clear();
+      String status = readLine(in);
+      if (status == null) throw new EOFException("Unexpected end of stream from " + host);
+      if (!status.startsWith("HTTP/") || status.length() < 12 || status.charAt(8) != ' ') {
+        throw new ProtocolException("Invalid status line: " + status);
+      }
+      version = status.substring(0, 8);
+      try {
+        responseCode = Integer.parseInt(status.substring(9, 12));
+      } catch (NumberFormatException e) {
+        throw new ProtocolException("Invalid status line: " + status);
+      }
+      responseMessage = status.length() > 13 ? status.substring(13) : "";
+      keys.add(null);
+      values.add(status);
+      String line;
+      while ((line = readLine(in)) != null && !line.isEmpty()) {
+        int colon = line.indexOf(':');
+        if (colon <= 0) continue;
+        keys.add(line.substring(0, colon).trim());
+        values.add(line.substring(colon + 1).trim());
+      }
+      if (line == null) throw new EOFException("Unexpected end of headers from " + host);
+    } while (responseCode >= 100 && responseCode < 200 && responseCode != 101);
+
+    String connectionHeader = header("Connection");
+    if ("HTTP/1.1".equals(version)) {
+      keepAlive = !hasToken(connectionHeader, "close");
+    } else {
+      keepAlive = hasToken(connectionHeader, "keep-alive");
+    }
+    keepAlive &= !hasToken(first(requestHeaders, "Connection"), "close");
+
+    BodyStream stream;
+    String contentLength = header("Content-Length");
+    if ("HEAD".equals(method)
+        || responseCode == HTTP_NO_CONTENT
+        || responseCode == HTTP_NOT_MODIFIED
+        || responseCode < 200) {
+      stream = new BodyStream(new FixedLengthInputStream(in, 0));
+    } else if (hasToken(header("Transfer-Encoding"), "chunked")) {
+      stream = new BodyStream(new ChunkedInputStream(in));
+    } else if (contentLength != null) {
+      try {
+        stream = new BodyStream(new FixedLengthInputStream(in, Long.parseLong(contentLength)));
+      } catch (NumberFormatException e) {
+        throw new ProtocolException("Invalid Content-Length: " + contentLength);
+      }
+    } else {
+      keepAlive = false;
+      stream = new BodyStream(in);
+    }
+    long length = stream.length();
+    if (length < 0 || length > MAX_PREFETCH) {
+      body = stream;
+      return;
+    }
+    // a small body is read now, so the connection goes back to the pool even if it never is
+    byte[] content = new byte[(int) length];
+    int off = 0;
+    while (off < content.length) {
+      int n = stream.read(content, off, content.length - off);
+      if (n == -1) throw new EOFException("Unexpected end of response body");
+      off += n;
+    }
+    stream.finish(keepAlive);
+    body = new ByteArrayInputStream(content);
+  }
+
+  private static String first(Map<String, List<String>> headers, String name) {
+    for (Map.Entry<String, List<String>> e : headers.entrySet()) {
+      if (name.equalsIgnoreCase(e.getKey()) && !e.getValue().isEmpty()) return e.getValue().get(0);
+    }
+    return null;
+  }
+
+  private static boolean hasToken(String header, String token) {
+    if (header == null) return false;
+    for (String part : header.split(",")) {
+      if (part.trim().equalsIgnoreCase(token)) return true;
+    }
+    return false;
+  }
+
+  /** @return a CRLF or LF terminated line, without the terminator, or null at end of stream */
+  static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder(64);
+    int c;
+    while ((c = in.read()) != -1) {
+      if (c == '\n') {
+        int end = line.length();
+        if (end > 0 && line.charAt(end - 1) == '\r') line.setLength(end - 1);
+        return line.toString();
+      }
+      if (line.length() >= MAX_LINE_LENGTH) throw new ProtocolException("Line too long");
+      line.append((char) c);
+    }
+    if (line.length() > 0) throw new EOFException("Unexpected end of stream");
+    return null;
+  }
+
+  /** The response body. The connection is released when it is read to the end, or closed. */
+  private class BodyStream extends FilterInputStream {
+    private final ConnectionPool.Connection owner = connection;
+    private boolean done = false;
+
+    BodyStream(InputStream in) {
+      super(in);
+    }
+
+    /** @return the length of the body, or -1 if it isn't known */
+    long length() {
+      return in instanceof FixedLengthInputStream ? ((FixedLengthInputStream) in).remaining : -1;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int n = read(b, 0, 1);
+      return n == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (done) return -1;
+      try {
+        int n = in.read(b, off, len);
+        if (n == -1) finish(keepAlive);
+        return n;
+      } catch (IOException e) {
+        finish(false);
+        throw e;
+      }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      byte[] buf = new byte[(int) Math.min(n, 4096)];
+      long skipped = 0;
+      while (skipped < n) {
+        int read = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+        if (read == -1) break;
+        skipped += read;
+      }
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return done ? 0 : in.available();
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() {
+      finish(false);
+    }
+
+    void finish(boolean reusable) {
+      if (done) return;
+      done = true;
+      // the connection may have been released and reused since this body was read
+      if (connection == owner) release(reusable);
+    }
+  }
+
+  static class FixedLengthInputStream extends FilterInputStream {
+    private long remaining;
+
+    FixedLengthInputStream(InputStream in, long length) {
+      super(in);
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int n = read(b, 0, 1);
+      return n == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining == 0) return -1;
+      int n = in.read(b, off, (int) Math.min(len, remaining));
+      if (n == -1) throw new EOFException("Unexpected end of response body");
+      remaining -= n;
+      return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  static class ChunkedInputStream extends FilterInputStream {
+    private long remaining = 0;
+    private boolean eof = false;
+
+    ChunkedInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int n = read(b, 0, 1);
+      return n == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (eof) return -1;
+      if (remaining == 0) {
+        String size = readLine(in);
+        if (size == null) throw new EOFException("Unexpected end of chunked body");
+        int semi = size.indexOf(';');
+        try {
+          remaining = Long.parseLong((semi < 0 ? size : size.substring(0, semi)).trim(), 16);
+        } catch (NumberFormatException e) {
+          throw new ProtocolException("Invalid chunk size: " + size);
+        }
+        if (remaining == 0) {
+          // trailers
+          String line;
+          while ((line = readLine(in)) != null && !line.isEmpty()) {}
+          eof = true;
+          return -1;
+        }
+      }
+      int n = in.read(b, off, (int) Math.min(len, remaining));
+      if (n == -1) throw new EOFException("Unexpected end of chunked body");
+      remaining -= n;
+      if (remaining == 0 && readLine(in) == null) {
+        throw new EOFException("Unexpected end of chunked body");
+      }
+      return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return eof ? 0 : (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  static class FixedLengthOutputStream extends OutputStream {
+    private final OutputStream out;
+    private long remaining;
+    private boolean closed = false;
+
+    FixedLengthOutputStream(OutputStream out, long length) {
+      this.out = out;
+      this.remaining = length;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (closed) throw new IOException("Stream closed");
+      if (len > remaining) throw new IOException("too many bytes written");
+      out.write(b, off, len);
+      remaining -= len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) return;
+      closed = true;
+      if (remaining > 0) throw new IOException("insufficient data written");
+      out.flush();
+    }
+  }
+
+  static class ChunkedOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final byte[] buf;
+    private int count = 0;
+    private boolean closed = false;
+
+    ChunkedOutputStream(OutputStream out, int chunkLength) {
+      this.out = out;
+      this.buf = new byte[chunkLength];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (closed) throw new IOException("Stream closed");
+      while (len > 0) {
+        int n = Math.min(len, buf.length - count);
+        System.arraycopy(b, off, buf, count, n);
+        count += n;
+        off += n;
+        len -= n;
+        if (count == buf.length) writeChunk();
+      }
+    }
+
+    private void writeChunk() throws IOException {
+      if (count == 0) return;
+      out.write((Integer.toHexString(count) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+      out.write(buf, 0, count);
+      out.write('\r');
+      out.write('\n');
+      count = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      writeChunk();
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) return;
+      closed = true;
+      writeChunk();
+      out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+      out.flush();
+    }
+  }
+}
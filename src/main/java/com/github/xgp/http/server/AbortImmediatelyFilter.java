@@ -17,9 +17,29 @@ package com.github.xgp.http.server;
 import com.sun.net.httpserver.Filter;
 import com.sun.net.httpserver.HttpExchange;
 import java.io.IOException;
+import java.net.HttpURLConnection;
 
-/** Filter that aborts the request when server is under high load. */
+/**
+ * Filter that aborts the request when server is under high load. The request is answered with a
+ * 503 and a {@code Retry-After} header. The load is judged by the executor, see {@link
+ * ServerExecutors.OverloadPolicy#SHED}.
+ */
 public class AbortImmediatelyFilter extends Filter {
+
+  /** Default number of seconds clients are asked to wait before retrying. */
+  public static final int DEFAULT_RETRY_AFTER_SECONDS = 1;
+
+  private final String retryAfter;
+
+  public AbortImmediatelyFilter() {
+    this(DEFAULT_RETRY_AFTER_SECONDS);
+  }
+
+  /** @param retryAfterSeconds number of seconds clients are asked to wait before retrying */
+  public AbortImmediatelyFilter(int retryAfterSeconds) {
+    this.retryAfter = Integer.toString(retryAfterSeconds);
+  }
+
   @Override
   public String description() {
     return "Filter that aborts the request when server is under high load";
@@ -30,7 +50,12 @@ public class AbortImmediatelyFilter extends Filter {
     // Checking abortImmediately is part of a hack to immediately reject clients
     // when the work queue grows too long.
     if (HttpExchanges.abortImmediately.get() != null) {
-      throw new IOException("Aborting request because server is under high load");
+      ex.getResponseHeaders().set("Retry-After", retryAfter);
+      HttpExchanges.cannedRespond(
+          ex,
+          HttpURLConnection.HTTP_UNAVAILABLE,
+          "503 Service Unavailable: server is under high load");
+      return;
     }
     chain.doFilter(ex);
   }
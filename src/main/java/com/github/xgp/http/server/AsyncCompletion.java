@@ -0,0 +1,90 @@
+package com.github.xgp.http.server;
+
+import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends the response of an {@link AsyncHandler} when its stage completes, or the timeout status if
+ * that comes first. Whichever is first wins, and the other does nothing.
+ */
+final class AsyncCompletion implements BiConsumer<Object, Throwable>, Runnable {
+  private static final Logger log = Logger.getLogger(AsyncCompletion.class.getName());
+
+  // Timeouts are almost always cancelled, so they are removed rather than left to expire
+  private static final ScheduledThreadPoolExecutor timer =
+      new ScheduledThreadPoolExecutor(1, ServerExecutors.threadFactory("async-timeout-"));
+
+  static {
+    timer.setRemoveOnCancelPolicy(true);
+  }
+
+  private final InternalHttpExchange ex;
+  private final Request request;
+  private final Response response;
+  private final AtomicBoolean done = new AtomicBoolean();
+  private final ScheduledFuture<?> timeout;
+
+  AsyncCompletion(InternalHttpExchange ex, Request request, Response response) {
+    this.ex = ex;
+    this.request = request;
+    this.response = response;
+    long millis = ex.getAsyncTimeout();
+    this.timeout = millis > 0 ? timer.schedule(this, millis, TimeUnit.MILLISECONDS) : null;
+  }
+
+  /** The stage completed. */
+  @Override
+  public void accept(Object value, Throwable t) {
+    if (!done.compareAndSet(false, true)) {
+      return;
+    }
+    if (timeout != null) {
+      timeout.cancel(false);
+    }
+    try {
+      if (t != null) {
+        Throwable cause =
+            t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+        log.log(Level.WARNING, "Async handler failed for " + ex.getRequestURI(), cause);
+        HttpExchanges.cannedRespond(
+            ex, HTTP_INTERNAL_ERROR, "500 Internal Server Error: " + cause.getMessage());
+        return;
+      }
+      if (value != null && value != response && response.body() == null) {
+        response.body(value);
+      }
+      Responses.send(ex, request, response);
+    } catch (IOException | RuntimeException e) {
+      log.log(Level.FINE, "Unable to send async response for " + ex.getRequestURI(), e);
+      ex.close();
+    }
+  }
+
+  /** The timeout expired. */
+  @Override
+  public void run() {
+    if (!done.compareAndSet(false, true)) {
+      return;
+    }
+    int status = ex.getAsyncTimeoutStatus();
+    try {
+      HttpExchanges.cannedRespond(
+          ex,
+          status,
+          status == HTTP_UNAVAILABLE ? "503 Service Unavailable" : "504 Gateway Timeout");
+    } catch (IOException e) {
+      log.log(Level.FINE, "Unable to send async timeout for " + ex.getRequestURI(), e);
+      ex.close();
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package com.github.xgp.http.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A {@link Handler} that doesn't hold a server thread while it waits. The response is sent when
+ * the returned stage completes, on the thread that completes it:
+ *
+ * <pre>
+ * AsyncHandler user = (request, response) -&gt; users.find(request.param("id"));
+ * router.addHandler("GET", "/user/{id}", user);
+ * </pre>
+ *
+ * <p>If the stage completes with a value other than the {@link Response}, and no body has been
+ * set, the value is the body. If it completes exceptionally, a 500 is sent. If it doesn't complete
+ * within the {@link Router#setAsyncTimeout timeout}, the timeout status is sent instead, and the
+ * stage's eventual result is ignored.
+ */
+@FunctionalInterface
+public interface AsyncHandler extends HttpHandler {
+
+  default void handle(HttpExchange exchange) throws IOException {
+    InternalHttpExchange ex = (InternalHttpExchange) exchange;
+    Request request = new Request(ex);
+    Response response = new Response(ex);
+    CompletionStage<?> stage = handle(request, response);
+    AsyncCompletion completion = new AsyncCompletion(ex, request, response);
+    stage.whenComplete(completion);
+  }
+
+  CompletionStage<?> handle(Request request, Response response) throws IOException;
+}
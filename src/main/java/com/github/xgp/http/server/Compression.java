@@ -0,0 +1,341 @@
+package com.github.xgp.http.server;
+
+import com.github.xgp.io.ZlibPool;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+/**
+ * Settings and helpers for gzip compressing responses. Only responses whose {@code Content-Type}
+ * is allowed are compressed, and fully buffered bodies smaller than the minimum size are sent
+ * as-is.
+ *
+ * <p>Compressed bodies can be cached, so responses that repeat skip deflate entirely. A body is
+ * keyed by the request URI, {@code Content-Type} and {@code ETag} if the response has one,
+ * otherwise by its contents. The cache is bounded by total size and evicts least recently used
+ * first.
+ *
+ * <pre>{@code
+ * router.setCompression(
+ *     new Compression.Builder().level(6).minSize(1024).cacheSize(8 * 1024 * 1024).build());
+ * }</pre>
+ */
+public class Compression {
+  private static final Logger log = Logger.getLogger(Compression.class.getName());
+
+  /** The default compression level, which is zlib's default (currently 6). */
+  public static final int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+  /** The default size, in bytes, below which bodies are not compressed. */
+  public static final int DEFAULT_MIN_SIZE = 1024;
+
+  /**
+   * The default content types to compress. Entries ending in {@code /} match any subtype, e.g.
+   * {@code text/}.
+   */
+  public static final Set<String> DEFAULT_CONTENT_TYPES =
+      Collections.unmodifiableSet(
+          new TreeSet<String>(
+              Arrays.asList(
+                  "text/",
+                  "application/json",
+                  "application/javascript",
+                  "application/xml",
+                  "image/svg+xml")));
+
+  /** Compression with all of the defaults, and no cache. */
+  public static final Compression DEFAULT = new Builder().build();
+
+  private final int level;
+  private final int minSize;
+  private final Set<String> contentTypes;
+  private final long cacheSize;
+  private final Map<Object, Cached> cache;
+  private long cacheUsed;
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+
+  protected Compression(Builder builder) {
+    this.level = builder.level;
+    this.minSize = builder.minSize;
+    this.contentTypes = builder.contentTypes;
+    this.cacheSize = builder.cacheSize;
+    this.cache = new LinkedHashMap<Object, Cached>(16, 0.75f, true);
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  public int getMinSize() {
+    return minSize;
+  }
+
+  public Set<String> getContentTypes() {
+    return contentTypes;
+  }
+
+  public long getCacheSize() {
+    return cacheSize;
+  }
+
+  /** The number of bytes of response bodies that have been compressed. */
+  public long getUncompressedBytes() {
+    return bytesIn.sum();
+  }
+
+  /** The number of bytes those bodies were compressed to. */
+  public long getCompressedBytes() {
+    return bytesOut.sum();
+  }
+
+  /** @return true if the client accepts gzip encoded responses. */
+  public static boolean acceptsGzip(HttpExchange ex) {
+    Collection<String> encodings =
+        HttpExchanges.splitHeaderValues(ex.getRequestHeaders().get("Accept-Encoding"));
+    return encodings != null && encodings.contains("gzip");
+  }
+
+  /** @return true if responses of this content type should be compressed. */
+  public boolean isCompressible(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    int semi = contentType.indexOf(';');
+    String type =
+        (semi < 0 ? contentType : contentType.substring(0, semi)).trim().toLowerCase(Locale.ROOT);
+    if (contentTypes.contains(type)) {
+      return true;
+    }
+    int slash = type.indexOf('/');
+    return slash > 0 && contentTypes.contains(type.substring(0, slash + 1));
+  }
+
+  /**
+   * If the client supports it and the response's content type is compressible, set the correct
+   * headers and streams to provide gzipped response data to the client. Like {@link
+   * HttpExchanges#enableCompressionIfSupported}, this must be called before {@link
+   * HttpExchange#sendResponseHeaders}, which should then be given a {@code responseLength} of
+   * {@code 0}. The minimum size and the cache don't apply, as the length of the body isn't known.
+   *
+   * @param ex exchange
+   * @return true if compression was enabled
+   */
+  public boolean enable(HttpExchange ex) {
+    if (!isCompressible(ex.getResponseHeaders().getFirst("Content-Type"))) {
+      return false;
+    }
+    ex.getResponseHeaders().add("Vary", "Accept-Encoding");
+    if (!acceptsGzip(ex)) {
+      return false;
+    }
+    log.finer("Enabling gzip compression for response");
+    ex.getResponseHeaders().set("Content-Encoding", "gzip");
+    final OutputStream os = ex.getResponseBody();
+    ex.setStreams(
+        null,
+        new AbstractLazyOutputStream() {
+          @Override
+          protected OutputStream retrieveOs() throws IOException {
+            // Creating the GZIPOutputStream must happen after sendResponseHeaders
+            // since the constructor writes data to the provided OutputStream.
+            return new CountingOutputStream(
+                gzipOutputStream(new CountingOutputStream(os, bytesOut), level), bytesIn);
+          }
+        });
+    return true;
+  }
+
+  /**
+   * Sends the response headers and a fully buffered body, compressing it if the client supports it,
+   * the content type is compressible and it is at least the minimum size. The {@code Content-Type}
+   * and any {@code ETag} must already be set. Completing the request is the caller's
+   * responsibility.
+   *
+   * @param ex exchange
+   * @param code response status
+   * @param body buffer holding the body
+   * @param length number of bytes of the buffer to send
+   * @throws IOException ioe
+   */
+  public void send(HttpExchange ex, int code, byte[] body, int length) throws IOException {
+    Headers headers = ex.getResponseHeaders();
+    if (isCompressible(headers.getFirst("Content-Type"))) {
+      headers.add("Vary", "Accept-Encoding");
+      if (length >= minSize && acceptsGzip(ex)) {
+        byte[] compressed = compress(cacheKey(ex, body, length), body, length);
+        if (compressed.length < length) {
+          headers.set("Content-Encoding", "gzip");
+          bytesIn.add(length);
+          bytesOut.add(compressed.length);
+          body = compressed;
+          length = compressed.length;
+        }
+      }
+    }
+    if ("HEAD".equals(ex.getRequestMethod()) || length == 0) {
+      ex.sendResponseHeaders(code, -1);
+    } else {
+      ex.sendResponseHeaders(code, length);
+      ex.getResponseBody().write(body, 0, length);
+    }
+  }
+
+  private Object cacheKey(HttpExchange ex, byte[] body, int length) {
+    if (cacheSize <= 0) {
+      return null;
+    }
+    Headers headers = ex.getResponseHeaders();
+    String etag = headers.getFirst("ETag");
+    if (etag != null) {
+      // ETags are only unique for a given resource and representation of it
+      URI uri = ex.getRequestURI();
+      String query = uri.getRawQuery();
+      return uri.getRawPath()
+          + (query == null ? "" : "?" + query)
+          + '\n'
+          + headers.getFirst("Content-Type")
+          + '\n'
+          + etag;
+    }
+    int hash = 1;
+    for (int i = 0; i < length; i++) {
+      hash = 31 * hash + body[i];
+    }
+    return ((long) hash << 32) | length;
+  }
+
+  private byte[] compress(Object key, byte[] body, int length) throws IOException {
+    if (key != null) {
+      synchronized (cache) {
+        Cached cached = cache.get(key);
+        if (cached != null && cached.matches(body, length)) {
+          return cached.compressed;
+        }
+      }
+    }
+    byte[] compressed = gzip(body, length, level);
+    if (key != null) {
+      // bodies keyed by content need to be kept to tell apart those that share a hash
+      byte[] original = key instanceof String ? null : Arrays.copyOf(body, length);
+      Cached cached = new Cached(original, length, compressed);
+      synchronized (cache) {
+        Cached old = cache.put(key, cached);
+        if (old != null) {
+          cacheUsed -= old.size();
+        }
+        cacheUsed += cached.size();
+        Iterator<Cached> it = cache.values().iterator();
+        while (cacheUsed > cacheSize && it.hasNext()) {
+          cacheUsed -= it.next().size();
+          it.remove();
+        }
+      }
+    }
+    return compressed;
+  }
+
+  static byte[] gzip(byte[] body, int length, int level) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, length / 4));
+    try (OutputStream gzip = gzipOutputStream(out, level)) {
+      gzip.write(body, 0, length);
+    }
+    return out.toByteArray();
+  }
+
+  static OutputStream gzipOutputStream(OutputStream os, int level) throws IOException {
+    return ZlibPool.shared().gzip(os, level);
+  }
+
+  private static class Cached {
+    final byte[] original;
+    final int length;
+    final byte[] compressed;
+
+    Cached(byte[] original, int length, byte[] compressed) {
+      this.original = original;
+      this.length = length;
+      this.compressed = compressed;
+    }
+
+    boolean matches(byte[] body, int length) {
+      if (this.length != length) {
+        return false;
+      }
+      if (original == null) {
+        return true;
+      }
+      for (int i = 0; i < length; i++) {
+        if (original[i] != body[i]) return false;
+      }
+      return true;
+    }
+
+    long size() {
+      return compressed.length + (original == null ? 0 : original.length);
+    }
+  }
+
+  /** Builder for {@link Compression}. */
+  public static class Builder {
+    private int level = DEFAULT_LEVEL;
+    private int minSize = DEFAULT_MIN_SIZE;
+    private Set<String> contentTypes = DEFAULT_CONTENT_TYPES;
+    private long cacheSize = 0;
+
+    public Builder() {}
+
+    public Compression build() {
+      return new Compression(this);
+    }
+
+    /** Sets the compression level, from 0 to 9, or -1 for zlib's default. */
+    public Builder level(int level) {
+      if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+        throw new IllegalArgumentException("level must be between -1 and 9");
+      }
+      this.level = level;
+      return this;
+    }
+
+    /** Sets the size, in bytes, below which bodies are not compressed. */
+    public Builder minSize(int minSize) {
+      this.minSize = minSize;
+      return this;
+    }
+
+    /**
+     * Sets the content types to compress. Entries ending in {@code /} match any subtype, e.g.
+     * {@code text/}.
+     */
+    public Builder contentTypes(String... contentTypes) {
+      Set<String> types = new TreeSet<String>();
+      for (String type : contentTypes) {
+        types.add(type.toLowerCase(Locale.ROOT));
+      }
+      this.contentTypes = types;
+      return this;
+    }
+
+    /** Sets the total size, in bytes, of the cache of compressed bodies. 0 disables the cache. */
+    public Builder cacheSize(long cacheSize) {
+      this.cacheSize = cacheSize;
+      return this;
+    }
+  }
+}
@@ -0,0 +1,244 @@
+package com.github.xgp.http.server;
+
+import static java.net.HttpURLConnection.HTTP_OK;
+
+import com.github.xgp.util.ScheduledReactor;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Holds {@link EventStream}s open for clients that subscribe, so that events can be pushed to them
+ * rather than polled for. Each request it handles becomes a subscriber, until the client goes away
+ * or the hub is closed:
+ *
+ * <pre>
+ * EventHub hub = new EventHub.Builder().onSubscribe(s -&gt; s.send("hello")).build();
+ * server.router().addHandler("GET", "/events", hub);
+ * ...
+ * hub.broadcast("update", null, json);
+ * </pre>
+ *
+ * <p>Events are written by a small pool of threads, which also send heartbeats on idle streams. A
+ * broadcast event is encoded once, and queued for each subscriber without waiting on any of them.
+ * Subscribers whose queues are full miss it, or are disconnected, depending on the {@link
+ * OverflowPolicy}. Subscribers that stop reading altogether, so that a write to them blocks for
+ * longer than the write timeout, are disconnected to free the thread.
+ */
+public class EventHub implements HttpHandler, Closeable {
+
+  /** The default number of events queued for a subscriber. */
+  public static final int DEFAULT_QUEUE_SIZE = 256;
+
+  /** The default time, in milliseconds, a stream may be idle before a heartbeat is sent. */
+  public static final long DEFAULT_HEARTBEAT = 15000;
+
+  /** The default time, in milliseconds, a write to a subscriber may block. */
+  public static final long DEFAULT_WRITE_TIMEOUT = 30000;
+
+  // Heartbeats and time outs run apart from the writing threads, which may all be blocked
+  private static final ScheduledExecutorService timer =
+      Executors.newSingleThreadScheduledExecutor(ServerExecutors.threadFactory("event-hub-timer-"));
+
+  /** What to do when a subscriber's queue is full. */
+  public enum OverflowPolicy {
+    /** Drop the event for that subscriber. */
+    DROP,
+    /** Close the subscriber's stream, so that it reconnects and resumes from its last event. */
+    CLOSE
+  }
+
+  private final int queueSize;
+  private final long heartbeat;
+  private final long writeTimeout;
+  private final OverflowPolicy overflowPolicy;
+  private final Consumer<EventStream> onSubscribe;
+  private final ScheduledReactor<Runnable> reactor;
+  private final Set<EventStream> streams = ConcurrentHashMap.newKeySet();
+  private final AtomicLong dropped = new AtomicLong();
+  private final ScheduledFuture<?> checks;
+
+  protected EventHub(Builder builder) {
+    this.queueSize = builder.queueSize;
+    this.heartbeat = builder.heartbeat;
+    this.writeTimeout = builder.writeTimeout;
+    this.overflowPolicy = builder.overflowPolicy;
+    this.onSubscribe = builder.onSubscribe;
+    this.reactor =
+        new ScheduledReactor<Runnable>(
+            r -> {
+              r.run();
+              return null;
+            },
+            builder.threads,
+            ServerExecutors.threadFactory("event-hub-"));
+    long period =
+        heartbeat > 0 && writeTimeout > 0
+            ? Math.min(heartbeat, writeTimeout)
+            : Math.max(heartbeat, writeTimeout);
+    this.checks =
+        period > 0
+            ? timer.scheduleWithFixedDelay(this::check, period, period, TimeUnit.MILLISECONDS)
+            : null;
+  }
+
+  @Override
+  public void handle(HttpExchange ex) throws IOException {
+    subscribe(ex);
+  }
+
+  /**
+   * Starts an event stream response on the exchange, and keeps it open until it is closed.
+   *
+   * @return the new subscriber
+   */
+  public EventStream subscribe(HttpExchange ex) throws IOException {
+    ex.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+    ex.getResponseHeaders().set("Cache-Control", "no-cache");
+    ex.sendResponseHeaders(HTTP_OK, 0);
+    EventStream stream =
+        new EventStream(
+            ex, queueSize, overflowPolicy == OverflowPolicy.CLOSE, reactor, streams::remove);
+    streams.add(stream);
+    if (onSubscribe != null) {
+      onSubscribe.accept(stream);
+    }
+    return stream;
+  }
+
+  /** @return the current subscribers */
+  public Set<EventStream> getSubscribers() {
+    return Collections.unmodifiableSet(streams);
+  }
+
+  public int size() {
+    return streams.size();
+  }
+
+  /** @return the number of events subscribers have missed because their queues were full */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /** @return the number of subscribers the event was queued for */
+  public int broadcast(String data) {
+    return broadcast(null, null, data);
+  }
+
+  /**
+   * Queues an event for every subscriber.
+   *
+   * @param event the event type, or null for a {@code message}
+   * @param id the event id, or null
+   * @param data the event data, which may span lines
+   * @return the number of subscribers the event was queued for
+   */
+  public int broadcast(String event, String id, String data) {
+    byte[] encoded = EventStream.encode(event, id, data);
+    int queued = 0;
+    for (EventStream stream : streams) {
+      if (stream.offer(encoded)) {
+        queued++;
+      } else {
+        dropped.incrementAndGet();
+      }
+    }
+    return queued;
+  }
+
+  /** Cuts off subscribers whose writes are stuck, and sends heartbeats to those that are idle. */
+  private void check() {
+    long idle = TimeUnit.MILLISECONDS.toNanos(heartbeat);
+    long stuck = TimeUnit.MILLISECONDS.toNanos(writeTimeout);
+    for (EventStream stream : streams) {
+      if (writeTimeout > 0 && stream.timeOut(stuck)) {
+        continue;
+      }
+      if (heartbeat > 0) {
+        stream.heartbeat(idle);
+      }
+    }
+  }
+
+  /** Closes every subscriber's stream, and stops the threads that write to them. */
+  @Override
+  public void close() {
+    if (checks != null) {
+      checks.cancel(false);
+    }
+    for (EventStream stream : streams) {
+      stream.close();
+    }
+    reactor.stop();
+  }
+
+  /** Builder for {@link EventHub}. */
+  public static class Builder {
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private long heartbeat = DEFAULT_HEARTBEAT;
+    private long writeTimeout = DEFAULT_WRITE_TIMEOUT;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP;
+    private Consumer<EventStream> onSubscribe;
+    private int threads = 2;
+
+    public Builder() {}
+
+    public EventHub build() {
+      return new EventHub(this);
+    }
+
+    /** Sets the number of events queued for a subscriber that hasn't kept up. */
+    public Builder queueSize(int queueSize) {
+      if (queueSize < 1) {
+        throw new IllegalArgumentException("queueSize must be positive");
+      }
+      this.queueSize = queueSize;
+      return this;
+    }
+
+    /** Sets how long a stream may be idle before a heartbeat is sent. 0 disables heartbeats. */
+    public Builder heartbeat(long heartbeat, TimeUnit unit) {
+      this.heartbeat = unit.toMillis(heartbeat);
+      return this;
+    }
+
+    /**
+     * Sets how long a write to a subscriber may block before its stream is closed. 0 disables the
+     * limit.
+     */
+    public Builder writeTimeout(long writeTimeout, TimeUnit unit) {
+      this.writeTimeout = unit.toMillis(writeTimeout);
+      return this;
+    }
+
+    public Builder overflowPolicy(OverflowPolicy overflowPolicy) {
+      this.overflowPolicy = overflowPolicy;
+      return this;
+    }
+
+    /** Called with each new subscriber, for example to send it the events it missed. */
+    public Builder onSubscribe(Consumer<EventStream> onSubscribe) {
+      this.onSubscribe = onSubscribe;
+      return this;
+    }
+
+    /** Sets the number of threads that write events and heartbeats. */
+    public Builder threads(int threads) {
+      if (threads < 1) {
+        throw new IllegalArgumentException("threads must be positive");
+      }
+      this.threads = threads;
+      return this;
+    }
+  }
+}
@@ -0,0 +1,192 @@
+package com.github.xgp.http.server;
+
+import com.github.xgp.util.Reactor;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * A response held open to push server-sent events to one client, as subscribed by an {@link
+ * EventHub}.
+ *
+ * <p>Events are queued, up to a limit, and written by the hub's threads, so sending never blocks on
+ * a slow client. Once a client has fallen that far behind, further events are refused, or the
+ * stream is closed so that the client reconnects and catches up from its {@code Last-Event-ID}.
+ */
+public class EventStream implements Closeable {
+  private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+  private final HttpExchange ex;
+  private final OutputStream out;
+  private final BlockingQueue<byte[]> queue;
+  private final boolean closeWhenFull;
+  private final Reactor<Runnable> reactor;
+  private final Consumer<EventStream> closed;
+  private final AtomicBoolean draining = new AtomicBoolean();
+  private final AtomicBoolean open = new AtomicBoolean(true);
+  private final Runnable drain = this::drain;
+  private volatile long lastWrite = System.nanoTime();
+  // The thread in the middle of writing to the client, and when it started
+  private Thread writer;
+  private long writeStarted;
+
+  EventStream(
+      HttpExchange ex,
+      int queueSize,
+      boolean closeWhenFull,
+      Reactor<Runnable> reactor,
+      Consumer<EventStream> closed) {
+    this.ex = ex;
+    this.out = ex.getResponseBody();
+    this.queue = new ArrayBlockingQueue<byte[]>(queueSize);
+    this.closeWhenFull = closeWhenFull;
+    this.reactor = reactor;
+    this.closed = closed;
+  }
+
+  public HttpExchange exchange() {
+    return ex;
+  }
+
+  /** The id of the last event the client saw, if it is reconnecting, or null. */
+  public String lastEventId() {
+    return ex.getRequestHeaders().getFirst("Last-Event-ID");
+  }
+
+  public boolean isOpen() {
+    return open.get();
+  }
+
+  /** The number of events waiting to be written. */
+  public int pending() {
+    return queue.size();
+  }
+
+  /** @return false if the stream is closed or its queue is full */
+  public boolean send(String data) {
+    return send(null, null, data);
+  }
+
+  /**
+   * Queues an event.
+   *
+   * @param event the event type, or null for a {@code message}
+   * @param id the event id, or null
+   * @param data the event data, which may span lines
+   * @return false if the stream is closed or its queue is full
+   */
+  public boolean send(String event, String id, String data) {
+    return offer(encode(event, id, data));
+  }
+
+  /** Queues an encoded event, which may be shared by many streams. */
+  boolean offer(byte[] event) {
+    if (!open.get()) {
+      return false;
+    }
+    if (!queue.offer(event)) {
+      if (closeWhenFull) close();
+      return false;
+    }
+    schedule();
+    return true;
+  }
+
+  /** Sends a comment if nothing has been written for a while, so that idle connections stay up. */
+  void heartbeat(long idleNanos) {
+    if (System.nanoTime() - lastWrite >= idleNanos && queue.isEmpty()) {
+      offer(HEARTBEAT);
+    }
+  }
+
+  private void schedule() {
+    if (draining.compareAndSet(false, true)) {
+      reactor.schedule(drain);
+    }
+  }
+
+  /** Writes what is queued, on one of the hub's threads, one drain at a time. */
+  private void drain() {
+    try {
+      write();
+    } catch (IOException e) {
+      // The client has gone, or stopped reading for too long
+      close();
+      return;
+    } finally {
+      draining.set(false);
+    }
+    // Anything queued after the last poll wasn't scheduled, since this drain was still running
+    if (!queue.isEmpty()) {
+      schedule();
+    }
+  }
+
+  private void write() throws IOException {
+    synchronized (this) {
+      writer = Thread.currentThread();
+      writeStarted = System.nanoTime();
+    }
+    try {
+      byte[] event;
+      while ((event = queue.poll()) != null) {
+        out.write(event);
+      }
+      out.flush();
+      lastWrite = System.nanoTime();
+    } finally {
+      synchronized (this) {
+        writer = null;
+        // A time out that came too late to cut off the write mustn't reach the thread's next task
+        Thread.interrupted();
+      }
+    }
+  }
+
+  /**
+   * Cuts off a write that has been blocked for too long, by interrupting the thread writing it,
+   * which closes the connection. Closing the exchange instead would block behind the write.
+   *
+   * @return true if a write was cut off
+   */
+  synchronized boolean timeOut(long writeTimeoutNanos) {
+    if (writer == null || System.nanoTime() - writeStarted < writeTimeoutNanos) {
+      return false;
+    }
+    writer.interrupt();
+    return true;
+  }
+
+  @Override
+  public void close() {
+    if (open.compareAndSet(true, false)) {
+      queue.clear();
+      try {
+        ex.close();
+      } finally {
+        closed.accept(this);
+      }
+    }
+  }
+
+  /** Encodes an event in the {@code text/event-stream} format. */
+  static byte[] encode(String event, String id, String data) {
+    StringBuilder sb = new StringBuilder(data.length() + 16);
+    if (event != null) sb.append("event: ").append(event).append('\n');
+    if (id != null) sb.append("id: ").append(id).append('\n');
+    int start = 0;
+    while (true) {
+      int end = data.indexOf('\n', start);
+      sb.append("data: ").append(data, start, end < 0 ? data.length() : end).append('\n');
+      if (end < 0) break;
+      start = end + 1;
+    }
+    return sb.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+  }
+}
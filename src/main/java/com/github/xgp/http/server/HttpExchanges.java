@@ -14,15 +14,14 @@
 
 package com.github.xgp.http.server;
 
+import com.github.xgp.io.ZlibPool;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpsServer;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URLDecoder;
 import java.nio.charset.Charset;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -30,15 +29,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
-import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 
 /** Utility class for working with {@link HttpExchange}s. */
 public final class HttpExchanges {
@@ -274,7 +271,7 @@ public final class HttpExchanges {
             protected OutputStream retrieveOs() throws IOException {
               // Creating the GZIPOutputStream must happen after sendResponseHeaders
               // since the constructor writes data to the provided OutputStream.
-              return new GZIPOutputStream(os);
+              return ZlibPool.shared().gzip(os, Deflater.DEFAULT_COMPRESSION);
             }
           });
     }
@@ -292,16 +289,28 @@ public final class HttpExchanges {
     if (ifModifiedSince == null) {
       return null;
     }
+    Date date = parseDate(ifModifiedSince);
+    if (date == null) {
+      log.log(Level.WARNING, "Could not parse If-Modified-Since: {0}", ifModifiedSince);
+    }
+    return date;
+  }
+
+  /**
+   * Parses a date header in any of the formats allowed by RFC 2616 Section 3.3.1.
+   *
+   * @return the date, or null if it could not be parsed
+   */
+  static Date parseDate(String value) {
     for (ThreadLocal<DateFormat> threadLocal : dateFormatsRfc2616) {
       try {
-        return threadLocal.get().parse(ifModifiedSince);
+        return threadLocal.get().parse(value);
       } catch (java.text.ParseException e) {
         // Ignore and try another format. We expect only to encounter the first
         // format, however (the other formats are pre-HTTP/1.1).
-        log.log(Level.FINE, "Exception when parsing If-Modified-Since", e);
+        log.log(Level.FINE, "Exception when parsing date", e);
       }
     }
-    log.log(Level.WARNING, "Could not parse If-Modified-Since: {0}", ifModifiedSince);
     return null;
   }
 
@@ -334,32 +343,6 @@ public final class HttpExchanges {
    * @return fully-decoded parameter values
    */
   public static Map<String, List<String>> parseQueryParameters(HttpExchange ex, Charset charset) {
-    String queryString = ex.getRequestURI().getRawQuery();
-    if (queryString == null || queryString.isEmpty()) {
-      return Collections.emptyMap();
-    }
-    Map<String, List<String>> parsedParams = new TreeMap<String, List<String>>();
-    for (String param : queryString.split("&")) {
-      String[] parts = param.split("=", 2);
-      String key = parts[0];
-      String value = parts.length == 2 ? parts[1] : "";
-      try {
-        key = URLDecoder.decode(key, charset.name());
-        value = URLDecoder.decode(value, charset.name());
-      } catch (UnsupportedEncodingException e) {
-        throw new AssertionError(e);
-      }
-      List<String> values = parsedParams.get(key);
-      if (values == null) {
-        values = new LinkedList<String>();
-        parsedParams.put(key, values);
-      }
-      values.add(value);
-    }
-
-    for (Map.Entry<String, List<String>> me : parsedParams.entrySet()) {
-      me.setValue(Collections.unmodifiableList(me.getValue()));
-    }
-    return Collections.unmodifiableMap(parsedParams);
+    return QueryString.parse(ex.getRequestURI().getRawQuery(), charset).toMap();
   }
 }
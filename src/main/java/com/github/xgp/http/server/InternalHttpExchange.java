@@ -7,42 +7,164 @@ import com.sun.net.httpserver.HttpPrincipal;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.HttpCookie;
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
 public class InternalHttpExchange extends HttpExchange {
 
   private final HttpExchange ex;
+  private final RouteMatch match;
   private final Route route;
   private final Map<String, Transformer> transformers;
+  private final Negotiator negotiator;
+  private final Compression compression;
+  private final int maxBufferedSize;
+  private final long asyncTimeout;
+  private final int asyncTimeoutStatus;
+  // Parsed from the request when first asked for
+  private QueryString query;
+  private List<HttpCookie> cookies;
+  // Until the exchange is closed and the request recorded
+  private RouteMetrics metrics;
+  private final long start;
 
-  InternalHttpExchange(HttpExchange ex, Route route, Map<String, Transformer> transformers) {
+  InternalHttpExchange(HttpExchange ex, RouteMatch match, Router router) {
     this.ex = ex;
-    this.route = route;
-    this.transformers = transformers;
+    this.match = match;
+    this.route = match.route();
+    this.transformers = router.getTransformers();
+    this.negotiator = router.negotiator();
+    this.compression = router.getCompression();
+    this.maxBufferedSize = router.getMaxBufferedSize();
+    this.asyncTimeout = router.getAsyncTimeout();
+    this.asyncTimeoutStatus = router.getAsyncTimeoutStatus();
+    if (router.isMetricsEnabled()) {
+      this.metrics = route.getMetrics();
+      this.start = System.nanoTime();
+      metrics.started();
+    } else {
+      this.start = 0;
+    }
   }
 
   public Route getRoute() {
     return route;
   }
 
+  /**
+   * The path parameters captured when this exchange was routed. Encoded in =&gt; encoded out, as
+   * with {@link Route#getPathParametersEncoded}.
+   */
+  public Map<String, String> getPathParameters() {
+    return match.parameters();
+  }
+
+  /** A single path parameter, which is cheaper than getting the map of them all. */
+  public String getPathParameter(String name) {
+    return match.parameter(name);
+  }
+
+  /** The query parameters, decoded as UTF-8. */
+  QueryString getQuery() {
+    if (query == null) {
+      query = QueryString.parse(getRequestURI().getRawQuery(), StandardCharsets.UTF_8);
+    }
+    return query;
+  }
+
+  /** The cookies sent with the request, in order. */
+  List<HttpCookie> getCookies() {
+    if (cookies == null) {
+      cookies = parseCookies(getRequestHeaders().get("Cookie"));
+    }
+    return cookies;
+  }
+
+  /**
+   * Parses {@code Cookie} request headers, which are {@code name=value} pairs separated by
+   * semicolons (RFC 6265 Section 4.2). Attributes of the obsolete RFC 2965 syntax, like {@code
+   * $Version}, and invalid names are skipped.
+   */
+  static List<HttpCookie> parseCookies(List<String> headers) {
+    if (headers == null || headers.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<HttpCookie> cookies = new ArrayList<HttpCookie>();
+    for (String header : headers) {
+      int start = 0;
+      while (start < header.length()) {
+        int end = header.indexOf(';', start);
+        if (end < 0) end = header.length();
+        int eq = header.indexOf('=', start);
+        if (eq > start && eq < end) {
+          String name = header.substring(start, eq).trim();
+          String value = header.substring(eq + 1, end).trim();
+          if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            value = value.substring(1, value.length() - 1);
+          }
+          if (!name.isEmpty() && name.charAt(0) != '$') {
+            try {
+              cookies.add(new HttpCookie(name, value));
+            } catch (IllegalArgumentException e) {
+              // Not a valid cookie name
+            }
+          }
+        }
+        start = end + 1;
+      }
+    }
+    return Collections.unmodifiableList(cookies);
+  }
+
   /**
    * A convenience for getting a Transformer, with fallbacks, from: 1) the Transformer set on this
-   * Route, 2) the Transformer set in defaults that maps to this Content-Type 3) the default String
-   * Transformer
+   * Route, 2) the Transformer set in defaults that maps to this Content-Type, 3) if no Content-Type
+   * is set, the Transformer set in defaults that best matches the Accept header, 4) the default
+   * String Transformer
    */
   public Transformer getTransformer() {
     return route
         .getTransformer()
         .orElseGet(
             () -> {
-              return transformerFor(getResponseHeaders().getFirst("Content-Type"))
+              String contentType = getResponseHeaders().getFirst("Content-Type");
+              if (contentType != null || negotiator.size() == 0) {
+                return transformerFor(contentType).orElse(Transformers.string());
+              }
+              getResponseHeaders().add("Vary", "Accept");
+              return negotiator
+                  .negotiate(getRequestHeaders().getFirst("Accept"))
                   .orElse(Transformers.string());
             });
   }
 
+  /** The compression settings of the Router, or null if compression is disabled. */
+  public Compression getCompression() {
+    return compression;
+  }
+
+  /** The size, in bytes, of the largest body that is buffered to send with its length. */
+  public int getMaxBufferedSize() {
+    return maxBufferedSize;
+  }
+
+  /** The time, in milliseconds, an {@link AsyncHandler} has to complete, or 0 for no limit. */
+  public long getAsyncTimeout() {
+    return asyncTimeout;
+  }
+
+  /** The status sent when an {@link AsyncHandler} times out. */
+  public int getAsyncTimeoutStatus() {
+    return asyncTimeoutStatus;
+  }
+
   public Optional<Transformer> transformerFor(String contentType) {
     return Optional.ofNullable(transformers.get(contentType));
   }
@@ -75,6 +197,11 @@ public class InternalHttpExchange extends HttpExchange {
   @Override
   public void close() {
     ex.close();
+    RouteMetrics metrics = this.metrics;
+    if (metrics != null) {
+      this.metrics = null;
+      metrics.finished(ex.getResponseCode(), System.nanoTime() - start);
+    }
   }
 
   @Override
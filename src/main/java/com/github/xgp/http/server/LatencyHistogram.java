@@ -0,0 +1,116 @@
+package com.github.xgp.http.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds, with buckets that grow with the value, as in an HDR
+ * histogram. Each power of two is split into 32 buckets, so a recorded value is known to within
+ * about 3%, from 1ns up to {@link #MAX_VALUE}, in a fixed 9KB.
+ *
+ * <p>Recording is lock-free, and reads don't block it. A read during recording may see a value
+ * counted in one statistic and not yet in another, which is fine for monitoring.
+ */
+public final class LatencyHistogram {
+  private static final int SUB_BITS = 5;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+
+  /** The largest value told apart from larger ones, about 18 minutes. Larger values count as it. */
+  public static final long MAX_VALUE = (1L << 40) - 1;
+
+  private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  /** @param nanos the duration, which is clamped to between 0 and {@link #MAX_VALUE} */
+  public void record(long nanos) {
+    long value = nanos < 0 ? 0 : Math.min(nanos, MAX_VALUE);
+    counts.incrementAndGet(index(value));
+    count.increment();
+    sum.add(value);
+    long m;
+    while (value > (m = max.get()) && !max.compareAndSet(m, value)) {}
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  /** The sum of the recorded durations, in nanoseconds. */
+  public long getSum() {
+    return sum.sum();
+  }
+
+  /** The largest recorded duration, in nanoseconds. */
+  public long getMax() {
+    return max.get();
+  }
+
+  /** The mean recorded duration, in nanoseconds, or 0 if there are none. */
+  public double getMean() {
+    long n = count.sum();
+    return n == 0 ? 0 : (double) sum.sum() / n;
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return the duration, in nanoseconds, that the percentile of recorded durations are at or
+   *     below, to within the precision of the buckets, or 0 if there are none
+   */
+  public long getPercentile(double percentile) {
+    long total = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(total * Math.min(percentile, 100) / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(upperBound(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /** The number of recorded durations at or below the value, to within the bucket's precision. */
+  public long getCountAtOrBelow(long nanos) {
+    if (nanos < 0) {
+      return 0;
+    }
+    int last = index(Math.min(nanos, MAX_VALUE));
+    long n = 0;
+    for (int i = 0; i <= last; i++) {
+      n += counts.get(i);
+    }
+    return n;
+  }
+
+  static int index(long value) {
+    int msb = 63 - Long.numberOfLeadingZeros(value | 1);
+    if (msb < SUB_BITS) {
+      return (int) value;
+    }
+    int shift = msb - SUB_BITS;
+    return (shift + 1) * SUB_COUNT + ((int) (value >>> shift) & (SUB_COUNT - 1));
+  }
+
+  /** The largest value that falls in the bucket. */
+  static long upperBound(int index) {
+    if (index < SUB_COUNT) {
+      return index;
+    }
+    int shift = index / SUB_COUNT - 1;
+    long lower = (long) (SUB_COUNT + index % SUB_COUNT) << shift;
+    return lower + (1L << shift) - 1;
+  }
+}
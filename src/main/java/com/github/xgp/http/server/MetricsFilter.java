@@ -0,0 +1,58 @@
+package com.github.xgp.http.server;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Filter that counts the requests to a context, and the bytes of their bodies read and written.
+ * Response bytes are counted as sent, after any compression, and include those written after the
+ * handler returns, such as by an {@link AsyncHandler} or {@link EventStream}.
+ */
+public class MetricsFilter extends Filter {
+  private final LongAdder requests = new LongAdder();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+
+  @Override
+  public String description() {
+    return "Filter that counts requests and bytes";
+  }
+
+  @Override
+  public void doFilter(HttpExchange ex, Filter.Chain chain) throws IOException {
+    requests.increment();
+    inFlight.incrementAndGet();
+    try {
+      ex.setStreams(
+          new CountingInputStream(ex.getRequestBody(), bytesIn),
+          new CountingOutputStream(ex.getResponseBody(), bytesOut));
+      chain.doFilter(ex);
+    } finally {
+      inFlight.decrementAndGet();
+    }
+  }
+
+  /** The number of requests that have been received. */
+  public long getRequests() {
+    return requests.sum();
+  }
+
+  /** The number of requests whose handlers haven't returned. */
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  /** The number of bytes read from request bodies. */
+  public long getBytesIn() {
+    return bytesIn.sum();
+  }
+
+  /** The number of bytes written to response bodies. */
+  public long getBytesOut() {
+    return bytesOut.sum();
+  }
+}
@@ -0,0 +1,257 @@
+package com.github.xgp.http.server;
+
+import static java.net.HttpURLConnection.HTTP_OK;
+
+import com.github.xgp.http.client.HttpClient;
+import com.github.xgp.http.server.Upstreams.Upstream;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Serves a server's metrics in the Prometheus text format: the executor's threads and queue, the
+ * requests and bytes counted by a {@link MetricsFilter}, each route's {@link RouteMetrics},
+ * compression, and the upstreams, cache and connection pool of each {@link ReverseProxyHandler}.
+ * See {@link Server#enableMetrics}.
+ *
+ * <p>Scrapes are rendered one at a time into a buffer that is kept between them.
+ */
+public class MetricsHandler implements HttpHandler {
+  static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  /** The {@code le} bounds of the latency histograms, in seconds and in nanoseconds. */
+  private static final String[] BOUNDS = {
+    "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10"
+  };
+
+  private static final long[] BOUND_NANOS = {
+    1000000L,
+    2500000L,
+    5000000L,
+    10000000L,
+    25000000L,
+    50000000L,
+    100000000L,
+    250000000L,
+    500000000L,
+    1000000000L,
+    2500000000L,
+    5000000000L,
+    10000000000L
+  };
+
+  /** The {@code code} label of each status class, by its first digit. */
+  private static final String[] STATUS_CLASSES = {"none", "1xx", "2xx", "3xx", "4xx", "5xx"};
+
+  private final Router router;
+  private final Executor executor;
+  private final MetricsFilter filter;
+  private final PrometheusWriter writer = new PrometheusWriter(16 * 1024);
+  private final Map<ReverseProxyHandler, String> proxies =
+      new IdentityHashMap<ReverseProxyHandler, String>();
+
+  /**
+   * @param router the router whose routes to report
+   * @param executor the executor handlers run on, or null
+   * @param filter the filter counting requests, or null
+   */
+  public MetricsHandler(Router router, Executor executor, MetricsFilter filter) {
+    this.router = router;
+    this.executor = executor;
+    this.filter = filter;
+  }
+
+  @Override
+  public void handle(HttpExchange ex) throws IOException {
+    try {
+      ex.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+      ex.getResponseHeaders().set("Cache-Control", "no-store");
+      synchronized (writer) {
+        writer.reset();
+        render(writer);
+        if ("HEAD".equals(ex.getRequestMethod())) {
+          ex.sendResponseHeaders(HTTP_OK, -1);
+        } else {
+          ex.sendResponseHeaders(HTTP_OK, writer.size());
+          writer.writeTo(ex.getResponseBody());
+        }
+      }
+    } finally {
+      ex.close();
+    }
+  }
+
+  /** @return the current metrics, as they would be served */
+  public String render() {
+    synchronized (writer) {
+      writer.reset();
+      render(writer);
+      return writer.toString();
+    }
+  }
+
+  private void render(PrometheusWriter w) {
+    renderExecutor(w);
+    if (filter != null) {
+      w.type("http_requests_total", "counter").name("http_requests_total");
+      w.value(filter.getRequests());
+      w.type("http_requests_in_flight", "gauge").name("http_requests_in_flight");
+      w.value(filter.getInFlight());
+      w.type("http_request_bytes_total", "counter").name("http_request_bytes_total");
+      w.value(filter.getBytesIn());
+      w.type("http_response_bytes_total", "counter").name("http_response_bytes_total");
+      w.value(filter.getBytesOut());
+    }
+    if (router.isMetricsEnabled()) {
+      renderRoutes(w);
+    }
+    Compression compression = router.getCompression();
+    if (compression != null) {
+      long uncompressed = compression.getUncompressedBytes();
+      long compressed = compression.getCompressedBytes();
+      w.type("http_compression_input_bytes_total", "counter");
+      w.name("http_compression_input_bytes_total").value(uncompressed);
+      w.type("http_compression_output_bytes_total", "counter");
+      w.name("http_compression_output_bytes_total").value(compressed);
+      w.type("http_compression_ratio", "gauge");
+      w.name("http_compression_ratio");
+      w.value(compressed == 0 ? 0 : (double) uncompressed / compressed);
+    }
+    renderProxies(w);
+  }
+
+  private void renderExecutor(PrometheusWriter w) {
+    if (executor instanceof ThreadPoolExecutor) {
+      ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+      w.type("http_executor_active_threads", "gauge");
+      w.name("http_executor_active_threads").value(pool.getActiveCount());
+      w.type("http_executor_pool_threads", "gauge");
+      w.name("http_executor_pool_threads").value(pool.getPoolSize());
+      w.type("http_executor_queue_depth", "gauge");
+      w.name("http_executor_queue_depth").value(pool.getQueue().size());
+      w.type("http_executor_completed_tasks_total", "counter");
+      w.name("http_executor_completed_tasks_total").value(pool.getCompletedTaskCount());
+    } else if (executor instanceof ServerExecutors.LimitedExecutor) {
+      w.type("http_executor_active_threads", "gauge");
+      w.name("http_executor_active_threads");
+      w.value(((ServerExecutors.LimitedExecutor) executor).active());
+    }
+  }
+
+  private void renderRoutes(PrometheusWriter w) {
+    w.type("http_route_requests_total", "counter");
+    for (Route route : router.getRoutes()) {
+      RouteMetrics metrics = route.getMetrics();
+      for (int statusClass = 0; statusClass <= 5; statusClass++) {
+        long n = metrics.getStatusCount(statusClass);
+        if (n > 0) {
+          labels(w.name("http_route_requests_total"), metrics);
+          w.label("code", STATUS_CLASSES[statusClass]).value(n);
+        }
+      }
+    }
+    w.type("http_route_in_flight", "gauge");
+    for (Route route : router.getRoutes()) {
+      RouteMetrics metrics = route.getMetrics();
+      labels(w.name("http_route_in_flight"), metrics).value(metrics.getInFlight());
+    }
+    w.type("http_route_latency_seconds", "histogram");
+    for (Route route : router.getRoutes()) {
+      RouteMetrics metrics = route.getMetrics();
+      LatencyHistogram latency = metrics.getLatency();
+      long count = latency.getCount();
+      for (int i = 0; i < BOUNDS.length; i++) {
+        labels(w.name("http_route_latency_seconds", "_bucket"), metrics).label("le", BOUNDS[i]);
+        // Recording may be under way, so a bucket mustn't exceed the count read before it
+        w.value(Math.min(latency.getCountAtOrBelow(BOUND_NANOS[i]), count));
+      }
+      labels(w.name("http_route_latency_seconds", "_bucket"), metrics).label("le", "+Inf");
+      w.value(count);
+      labels(w.name("http_route_latency_seconds", "_sum"), metrics).seconds(latency.getSum());
+      labels(w.name("http_route_latency_seconds", "_count"), metrics).value(count);
+    }
+  }
+
+  private static PrometheusWriter labels(PrometheusWriter w, RouteMetrics metrics) {
+    return w.label("method", metrics.getMethod()).label("route", metrics.getRoute());
+  }
+
+  private void renderProxies(PrometheusWriter w) {
+    proxies.clear();
+    for (Route route : router.getRoutes()) {
+      if (route.getHandler() instanceof ReverseProxyHandler) {
+        proxies.putIfAbsent((ReverseProxyHandler) route.getHandler(), route.getUri());
+      }
+    }
+    if (proxies.isEmpty()) {
+      return;
+    }
+    w.type("http_proxy_upstream_in_flight", "gauge");
+    for (Map.Entry<ReverseProxyHandler, String> e : proxies.entrySet()) {
+      for (Upstream upstream : e.getKey().getUpstreams().getUpstreams()) {
+        upstream(w.name("http_proxy_upstream_in_flight"), e.getValue(), upstream);
+        w.value(upstream.inFlight());
+      }
+    }
+    w.type("http_proxy_upstream_requests_total", "counter");
+    for (Map.Entry<ReverseProxyHandler, String> e : proxies.entrySet()) {
+      for (Upstream upstream : e.getKey().getUpstreams().getUpstreams()) {
+        upstream(w.name("http_proxy_upstream_requests_total"), e.getValue(), upstream);
+        w.value(upstream.requests());
+      }
+    }
+    w.type("http_proxy_upstream_failures_total", "counter");
+    for (Map.Entry<ReverseProxyHandler, String> e : proxies.entrySet()) {
+      for (Upstream upstream : e.getKey().getUpstreams().getUpstreams()) {
+        upstream(w.name("http_proxy_upstream_failures_total"), e.getValue(), upstream);
+        w.value(upstream.failures());
+      }
+    }
+    w.type("http_proxy_upstream_available", "gauge");
+    for (Map.Entry<ReverseProxyHandler, String> e : proxies.entrySet()) {
+      for (Upstream upstream : e.getKey().getUpstreams().getUpstreams()) {
+        upstream(w.name("http_proxy_upstream_available"), e.getValue(), upstream);
+        w.value(upstream.isAvailable() ? 1 : 0);
+      }
+    }
+    w.type("http_proxy_cache_hits_total", "counter");
+    for (Map.Entry<ReverseProxyHandler, String> e : proxies.entrySet()) {
+      ProxyCache cache = e.getKey().getCache();
+      if (cache != null) {
+        w.name("http_proxy_cache_hits_total").label("route", e.getValue()).value(cache.getHits());
+      }
+    }
+    w.type("http_proxy_cache_misses_total", "counter");
+    for (Map.Entry<ReverseProxyHandler, String> e : proxies.entrySet()) {
+      ProxyCache cache = e.getKey().getCache();
+      if (cache != null) {
+        w.name("http_proxy_cache_misses_total").label("route", e.getValue());
+        w.value(cache.getMisses());
+      }
+    }
+    w.type("http_proxy_cache_entries", "gauge");
+    for (Map.Entry<ReverseProxyHandler, String> e : proxies.entrySet()) {
+      ProxyCache cache = e.getKey().getCache();
+      if (cache != null) {
+        w.name("http_proxy_cache_entries").label("route", e.getValue()).value(cache.size());
+      }
+    }
+    // The server's own connections aren't exposed by HttpServer, but the proxy's pools are
+    w.type("http_proxy_idle_connections", "gauge");
+    for (Map.Entry<ReverseProxyHandler, String> e : proxies.entrySet()) {
+      HttpClient client = e.getKey().getClient();
+      if (client != null) {
+        w.name("http_proxy_idle_connections").label("route", e.getValue());
+        w.value(client.idleConnections());
+      }
+    }
+  }
+
+  private static PrometheusWriter upstream(PrometheusWriter w, String route, Upstream upstream) {
+    return w.label("route", route).label("upstream", upstream.uri().toString());
+  }
+}
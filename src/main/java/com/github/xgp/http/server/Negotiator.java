@@ -0,0 +1,141 @@
+package com.github.xgp.http.server;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Picks the {@link Transformer} that best matches a request's {@code Accept} header. Each
+ * transformer's content type gets the quality of the most specific media range that matches it,
+ * and the highest quality wins, with ties going to the more specific match and then to the
+ * transformer added first.
+ *
+ * <p>Most requests carry one of a few {@code Accept} headers, so the choice for each is cached,
+ * and the header is only parsed the first time it is seen.
+ */
+final class Negotiator {
+  static final int MAX_CACHED = 256;
+
+  private final String[] types;
+  private final Transformer[] transformers;
+  private final ConcurrentMap<String, Optional<Transformer>> cache =
+      new ConcurrentHashMap<String, Optional<Transformer>>();
+
+  Negotiator(Map<String, Transformer> transformers) {
+    this.types = new String[transformers.size()];
+    this.transformers = new Transformer[transformers.size()];
+    int i = 0;
+    for (Transformer transformer : transformers.values()) {
+      this.types[i] = mediaType(transformer.contentType(), 0, transformer.contentType().length());
+      this.transformers[i] = transformer;
+      i++;
+    }
+  }
+
+  int size() {
+    return transformers.length;
+  }
+
+  /**
+   * @param accept the header, or null if the request has none, which accepts any type
+   * @return the best transformer for the header, or empty if there is none acceptable
+   */
+  Optional<Transformer> negotiate(String accept) {
+    if (transformers.length == 0) {
+      return Optional.empty();
+    }
+    if (accept == null) {
+      accept = "*/*";
+    }
+    Optional<Transformer> transformer = cache.get(accept);
+    if (transformer == null) {
+      transformer = Optional.ofNullable(select(accept));
+      // Headers that vary without end shouldn't grow the cache without end
+      if (cache.size() >= MAX_CACHED) cache.clear();
+      cache.put(accept, transformer);
+    }
+    return transformer;
+  }
+
+  private Transformer select(String accept) {
+    float[] quality = new float[transformers.length];
+    int[] specificity = new int[transformers.length];
+    Arrays.fill(specificity, -1);
+    int start = 0;
+    int length = accept.length();
+    while (start < length) {
+      int end = accept.indexOf(',', start);
+      if (end < 0) end = length;
+      int semi = accept.indexOf(';', start);
+      if (semi < 0 || semi > end) semi = end;
+      String range = mediaType(accept, start, semi);
+      float q = quality(accept, semi, end);
+      if (!range.isEmpty() && q >= 0) {
+        for (int i = 0; i < types.length; i++) {
+          int s = specificity(range, types[i]);
+          if (s > specificity[i]) {
+            specificity[i] = s;
+            quality[i] = q;
+          }
+        }
+      }
+      start = end + 1;
+    }
+    int best = -1;
+    for (int i = 0; i < transformers.length; i++) {
+      if (specificity[i] < 0 || quality[i] <= 0) continue;
+      if (best < 0
+          || quality[i] > quality[best]
+          || (quality[i] == quality[best] && specificity[i] > specificity[best])) {
+        best = i;
+      }
+    }
+    return best < 0 ? null : transformers[best];
+  }
+
+  /** @return the media type, without parameters, trimmed and in lower case */
+  private static String mediaType(String s, int start, int end) {
+    int semi = s.indexOf(';', start);
+    if (semi >= 0 && semi < end) end = semi;
+    return s.substring(start, end).trim().toLowerCase(Locale.ROOT);
+  }
+
+  /** @return the {@code q} parameter among the parameters, 1 if it is missing, or -1 if invalid */
+  private static float quality(String s, int start, int end) {
+    while (start < end) {
+      int next = s.indexOf(';', start + 1);
+      if (next < 0 || next > end) next = end;
+      String param = s.substring(start + 1, next).trim();
+      if (param.length() > 2 && (param.charAt(0) == 'q' || param.charAt(0) == 'Q')) {
+        int eq = param.indexOf('=');
+        if (eq > 0 && param.substring(1, eq).trim().isEmpty()) {
+          try {
+            float q = Float.parseFloat(param.substring(eq + 1).trim());
+            return q >= 0 && q <= 1 ? q : -1;
+          } catch (NumberFormatException e) {
+            return -1;
+          }
+        }
+      }
+      start = next;
+    }
+    return 1;
+  }
+
+  /**
+   * @return how specifically the range matches the type: 2 exactly, 1 by {@code type/*}, 0 by
+   *     {@code *}{@code /*}, or -1 if it doesn't
+   */
+  static int specificity(String range, String type) {
+    if (range.equals("*/*") || range.equals("*")) {
+      return 0;
+    }
+    if (range.endsWith("/*")) {
+      return type.regionMatches(0, range, 0, range.length() - 1) ? 1 : -1;
+    }
+    return range.equals(type) ? 2 : -1;
+  }
+}
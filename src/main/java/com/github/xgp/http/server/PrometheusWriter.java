@@ -0,0 +1,203 @@
+package com.github.xgp.http.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes metrics in the Prometheus text exposition format into a buffer that is kept between
+ * scrapes, so that once it has grown to fit, rendering allocates nothing. Numbers are written as
+ * digits directly, and names and labels as ASCII, rather than through a {@code String}.
+ *
+ * <pre>
+ * writer.type("http_requests_total", "counter").name("http_requests_total").value(n);
+ * writer.name("http_route_in_flight").label("route", "/users/{id}").value(2);
+ * </pre>
+ *
+ * <p>Not thread safe.
+ */
+final class PrometheusWriter {
+  private static final long[] POWERS_OF_TEN = {
+    1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+  };
+
+  private byte[] buf;
+  private int count;
+  private boolean labels;
+
+  PrometheusWriter(int capacity) {
+    this.buf = new byte[capacity];
+  }
+
+  void reset() {
+    count = 0;
+    labels = false;
+  }
+
+  int size() {
+    return count;
+  }
+
+  void writeTo(OutputStream out) throws IOException {
+    out.write(buf, 0, count);
+  }
+
+  @Override
+  public String toString() {
+    return new String(buf, 0, count, StandardCharsets.UTF_8);
+  }
+
+  /** Writes the {@code # TYPE} line that precedes a metric's samples. */
+  PrometheusWriter type(String name, String type) {
+    ascii("# TYPE ").ascii(name).write(' ').ascii(type).write('\n');
+    return this;
+  }
+
+  /** Starts a sample. */
+  PrometheusWriter name(String name) {
+    labels = false;
+    return ascii(name);
+  }
+
+  /** Starts a sample whose name is the prefix and suffix, such as a histogram's {@code _bucket}. */
+  PrometheusWriter name(String prefix, String suffix) {
+    labels = false;
+    return ascii(prefix).ascii(suffix);
+  }
+
+  PrometheusWriter label(String key, String value) {
+    write(labels ? ',' : '{');
+    labels = true;
+    ascii(key).write('=').write('"');
+    escaped(value);
+    return write('"');
+  }
+
+  /** Ends a sample with an integer value. */
+  PrometheusWriter value(long value) {
+    endLabels();
+    digits(value);
+    return write('\n');
+  }
+
+  /** Ends a sample with a value in seconds, to the nanosecond. */
+  PrometheusWriter seconds(long nanos) {
+    endLabels();
+    decimal(nanos, 9);
+    return write('\n');
+  }
+
+  /** Ends a sample with a fractional value, to four decimal places. */
+  PrometheusWriter value(double value) {
+    endLabels();
+    if (Double.isNaN(value)) {
+      ascii("NaN");
+    } else if (Double.isInfinite(value)) {
+      ascii(value > 0 ? "+Inf" : "-Inf");
+    } else {
+      decimal(Math.round(value * 10000), 4);
+    }
+    return write('\n');
+  }
+
+  private void endLabels() {
+    if (labels) write('}');
+    labels = false;
+    write(' ');
+  }
+
+  /** Writes the value divided by 10^scale, with exactly scale decimal places. */
+  private void decimal(long value, int scale) {
+    if (value < 0) {
+      write('-');
+      value = -value;
+    }
+    long unit = POWERS_OF_TEN[scale];
+    digits(value / unit);
+    write('.');
+    long fraction = value % unit;
+    for (int i = scale - 1; i >= 0; i--) {
+      write((char) ('0' + fraction / POWERS_OF_TEN[i] % 10));
+    }
+  }
+
+  private void digits(long value) {
+    if (value == Long.MIN_VALUE) {
+      ascii(Long.toString(value));
+      return;
+    }
+    if (value < 0) {
+      write('-');
+      value = -value;
+    }
+    ensure(19);
+    int start = count;
+    do {
+      buf[count++] = (byte) ('0' + value % 10);
+      value /= 10;
+    } while (value > 0);
+    // The digits went in least significant first
+    for (int i = start, j = count - 1; i < j; i++, j--) {
+      byte b = buf[i];
+      buf[i] = buf[j];
+      buf[j] = b;
+    }
+  }
+
+  /** Writes a label value, escaping backslashes, quotes and newlines. */
+  private void escaped(String value) {
+    int length = value.length();
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (c >= 0x80) {
+        // Rare enough to not be worth encoding by hand
+        escaped(value.substring(i).getBytes(StandardCharsets.UTF_8));
+        return;
+      }
+      escape(c);
+    }
+  }
+
+  private void escaped(byte[] utf8) {
+    for (byte b : utf8) {
+      if (b >= 0) {
+        escape((char) b);
+      } else {
+        ensure(1);
+        buf[count++] = b;
+      }
+    }
+  }
+
+  private void escape(char c) {
+    if (c == '\\' || c == '"') {
+      write('\\').write(c);
+    } else if (c == '\n') {
+      write('\\').write('n');
+    } else {
+      write(c);
+    }
+  }
+
+  private PrometheusWriter ascii(String s) {
+    int length = s.length();
+    ensure(length);
+    for (int i = 0; i < length; i++) {
+      buf[count++] = (byte) s.charAt(i);
+    }
+    return this;
+  }
+
+  private PrometheusWriter write(char c) {
+    ensure(1);
+    buf[count++] = (byte) c;
+    return this;
+  }
+
+  private void ensure(int n) {
+    if (count + n > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + n));
+    }
+  }
+}
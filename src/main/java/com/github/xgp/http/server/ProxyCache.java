@@ -0,0 +1,923 @@
+package com.github.xgp.http.server;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A cache of upstream responses for {@link ReverseProxyHandler}, following the rules for shared
+ * caches in RFC 7234. Responses to {@code GET} are stored when their {@code Cache-Control} or
+ * {@code Expires} makes them fresh for a while, or when they carry an {@code ETag} or {@code
+ * Last-Modified} to revalidate with. Nothing marked {@code no-store} or {@code private}, or that
+ * sets a cookie, is stored, and requests with {@code Authorization} bypass the cache.
+ *
+ * <p>Fresh responses are served without going upstream. Stale ones are revalidated with {@code
+ * If-None-Match} and {@code If-Modified-Since}, and a {@code 304} refreshes the cached copy. Within
+ * a response's {@code stale-while-revalidate} window, the stale copy is served right away and
+ * revalidated in the background.
+ *
+ * <p>Entries are kept in memory up to a total size, evicting least recently used first. Given a
+ * directory, entries too large for memory, and those evicted from it, are kept on disk instead. The
+ * disk cache is not reused across restarts.
+ *
+ * <pre>{@code
+ * new ReverseProxyHandler.Builder(URI.create("http://backend:8080/api"))
+ *     .cache(
+ *         new ProxyCache.Builder()
+ *             .maxSize(64 * 1024 * 1024)
+ *             .directory(Paths.get("/var/cache/proxy"), 1024 * 1024 * 1024)
+ *             .build())
+ *     .build();
+ * }</pre>
+ */
+public class ProxyCache implements Closeable {
+  private static final Logger log = Logger.getLogger(ProxyCache.class.getName());
+
+  /** Default total size, in bytes, of the responses cached in memory. */
+  public static final long DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+
+  /** Default size, in bytes, of the largest response cached in memory. */
+  public static final int DEFAULT_MAX_ENTRY_SIZE = 1024 * 1024;
+
+  // Status codes that are cacheable by default, as defined in RFC 7231 Section 6.1
+  private static final Set<Integer> CACHEABLE_CODES =
+      new HashSet<Integer>(Arrays.asList(200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501));
+
+  private final long maxSize;
+  private final int maxEntrySize;
+  private final Path directory;
+  private final long maxDiskSize;
+  private final long maxDiskEntrySize;
+  private final Map<String, Entry> memory;
+  private final Map<String, Entry> disk;
+  private long memoryUsed;
+  private long diskUsed;
+  // The request headers responses for each URI vary on, from the last response stored
+  private final Map<String, String[]> vary = new ConcurrentHashMap<String, String[]>();
+  private final AtomicLong files = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final ExecutorService revalidator;
+
+  protected ProxyCache(Builder builder) {
+    this.maxSize = builder.maxSize;
+    this.maxEntrySize = builder.maxEntrySize;
+    this.maxDiskSize = builder.maxDiskSize;
+    this.maxDiskEntrySize = builder.maxDiskEntrySize;
+    this.memory = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    this.disk = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    if (builder.directory != null) {
+      try {
+        Files.createDirectories(builder.directory);
+        this.directory = Files.createTempDirectory(builder.directory, "proxy-cache-");
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    } else {
+      this.directory = null;
+    }
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            builder.revalidationThreads,
+            builder.revalidationThreads,
+            60L,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(1024),
+            ServerExecutors.threadFactory("proxy-cache-"));
+    executor.allowCoreThreadTimeOut(true);
+    this.revalidator = executor;
+  }
+
+  public long getMaxSize() {
+    return maxSize;
+  }
+
+  public int getMaxEntrySize() {
+    return maxEntrySize;
+  }
+
+  /** @return the directory entries are kept in on disk, or null */
+  public Path getDirectory() {
+    return directory;
+  }
+
+  /** @return the number of requests answered from the cache */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** @return the number of cacheable requests that had nothing cached */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /** @return the total size, in bytes, of the responses cached in memory and on disk */
+  public long size() {
+    synchronized (memory) {
+      return memoryUsed + diskUsed;
+    }
+  }
+
+  /** @return true if the request may be answered from, and its response stored in, the cache */
+  static boolean isCacheable(HttpExchange ex) {
+    String method = ex.getRequestMethod();
+    Headers headers = ex.getRequestHeaders();
+    return ("GET".equalsIgnoreCase(method) || "HEAD".equalsIgnoreCase(method))
+        && !headers.containsKey("Authorization")
+        && !headers.containsKey("Content-Length")
+        && !headers.containsKey("Transfer-Encoding")
+        && !cacheControl(headers.get("Cache-Control")).containsKey("no-store");
+  }
+
+  /** @return true if the client asked for the response to be revalidated, even if it is fresh */
+  static boolean requiresValidation(HttpExchange ex) {
+    Headers headers = ex.getRequestHeaders();
+    Map<String, String> cc = cacheControl(headers.get("Cache-Control"));
+    if (cc.containsKey("no-cache") || seconds(cc, "max-age") == 0) {
+      return true;
+    }
+    List<String> pragma = HttpExchanges.splitHeaderValues(headers.get("Pragma"));
+    return cc.isEmpty() && pragma != null && pragma.contains("no-cache");
+  }
+
+  /** @return true if the client sent its own validators, so a 304 from upstream is theirs */
+  static boolean isConditional(Headers requestHeaders) {
+    return requestHeaders.containsKey("If-None-Match")
+        || requestHeaders.containsKey("If-Modified-Since");
+  }
+
+  /** @return true if the client already has the entry, and can be sent a 304 */
+  static boolean notModified(HttpExchange ex, Entry entry) {
+    if (entry.code != 200 || entry.etag == null) {
+      return false;
+    }
+    List<String> tags =
+        HttpExchanges.splitHeaderValues(ex.getRequestHeaders().get("If-None-Match"));
+    if (tags == null) {
+      return false;
+    }
+    // If-None-Match uses the weak comparison function, RFC 7232 Section 3.2
+    String etag = weak(entry.etag);
+    for (String tag : tags) {
+      if ("*".equals(tag) || etag.equals(weak(tag))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String weak(String etag) {
+    return etag.startsWith("W/") ? etag.substring(2) : etag;
+  }
+
+  /** @return the entry for the request, or null if there isn't one */
+  Entry lookup(HttpExchange ex) {
+    String uri = ex.getRequestURI().toString();
+    String key = key(uri, vary.get(uri), ex.getRequestHeaders());
+    Entry entry;
+    synchronized (memory) {
+      entry = memory.get(key);
+      if (entry == null) {
+        entry = disk.get(key);
+      }
+    }
+    if (entry == null) {
+      misses.incrementAndGet();
+    }
+    return entry;
+  }
+
+  /** @return the body of the entry, or null if it is no longer on disk */
+  InputStream open(Entry entry) throws IOException {
+    InputStream in;
+    if (entry.body != null) {
+      in = new ByteArrayInputStream(entry.body);
+    } else {
+      try {
+        in = Files.newInputStream(entry.file);
+      } catch (NoSuchFileException e) {
+        remove(entry);
+        return null;
+      }
+    }
+    hits.incrementAndGet();
+    return in;
+  }
+
+  /** Runs a background revalidation, unless one is already running for the entry. */
+  void revalidate(Entry entry, Runnable revalidation) {
+    if (!entry.revalidating.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      revalidator.execute(
+          () -> {
+            try {
+              revalidation.run();
+            } finally {
+              entry.revalidating.set(false);
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      entry.revalidating.set(false);
+      log.log(Level.FINE, "Skipping revalidation of " + entry.uri, e);
+    }
+  }
+
+  /**
+   * Refreshes an entry after upstream answered its revalidation with a 304, whose headers replace
+   * the stored ones.
+   *
+   * @return the refreshed entry
+   */
+  Entry revalidated(Entry entry, List<String[]> headers) {
+    List<String[]> merged = new ArrayList<String[]>(entry.headers.size());
+    Set<String> replaced = new HashSet<String>();
+    for (String[] header : headers) {
+      replaced.add(header[0].toLowerCase(Locale.ROOT));
+    }
+    for (String[] header : entry.headers) {
+      if (!replaced.contains(header[0].toLowerCase(Locale.ROOT))) {
+        merged.add(header);
+      }
+    }
+    for (String[] header : headers) {
+      if (!"Content-Length".equalsIgnoreCase(header[0])) {
+        merged.add(header);
+      }
+    }
+    Entry refreshed =
+        Entry.of(
+            entry.uri,
+            entry.key,
+            entry.base,
+            entry.code,
+            merged,
+            entry.body,
+            entry.file,
+            entry.length);
+    if (refreshed == null) {
+      // No longer storable
+      remove(entry);
+      return entry;
+    }
+    put(refreshed);
+    return refreshed;
+  }
+
+  /** Removes the entry, if it is still cached. */
+  void remove(Entry entry) {
+    synchronized (memory) {
+      if (memory.get(entry.key) == entry) {
+        memory.remove(entry.key);
+        memoryUsed -= entry.size();
+      } else if (disk.get(entry.key) == entry) {
+        disk.remove(entry.key);
+        diskUsed -= entry.length;
+        delete(entry.file);
+      }
+    }
+  }
+
+  /**
+   * Removes all responses for the URI of the request, which changes the resource (RFC 7234 Section
+   * 4.4).
+   */
+  void invalidate(HttpExchange ex) {
+    String prefix = ex.getRequestURI().toString() + '\n';
+    vary.remove(ex.getRequestURI().toString());
+    synchronized (memory) {
+      for (Iterator<Entry> it = memory.values().iterator(); it.hasNext(); ) {
+        Entry entry = it.next();
+        if (entry.key.startsWith(prefix)) {
+          memoryUsed -= entry.size();
+          it.remove();
+        }
+      }
+      for (Iterator<Entry> it = disk.values().iterator(); it.hasNext(); ) {
+        Entry entry = it.next();
+        if (entry.key.startsWith(prefix)) {
+          diskUsed -= entry.length;
+          delete(entry.file);
+          it.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Starts storing a response as its body is read.
+   *
+   * @param out where the body is also written, or null
+   * @param requestHeaders the headers of the request the response answers
+   * @param uri the URI of the request, as received
+   * @param code the status code of the response
+   * @param headers the end-to-end headers of the response
+   * @param base the upstream the response came from
+   * @return a writer that stores the response once {@link Writer#commit} is called, or null if the
+   *     response can't be stored
+   */
+  Writer writer(
+      OutputStream out,
+      Headers requestHeaders,
+      String uri,
+      int code,
+      List<String[]> headers,
+      URI base) {
+    if (!CACHEABLE_CODES.contains(code)) {
+      return null;
+    }
+    String[] varyOn = new String[0];
+    for (String[] header : headers) {
+      if ("Set-Cookie".equalsIgnoreCase(header[0])) {
+        return null;
+      }
+      if ("Vary".equalsIgnoreCase(header[0])) {
+        List<String> names = HttpExchanges.splitHeaderValues(Arrays.asList(header[1]));
+        if (names.contains("*")) {
+          return null;
+        }
+        Set<String> all = new HashSet<String>(Arrays.asList(varyOn));
+        for (String name : names) {
+          all.add(name.toLowerCase(Locale.ROOT));
+        }
+        varyOn = all.toArray(new String[0]);
+        Arrays.sort(varyOn);
+      }
+    }
+    String key = key(uri, varyOn, requestHeaders);
+    // Check that the headers allow storing before reading the body
+    if (Entry.of(uri, key, base, code, headers, new byte[0], null, 0) == null) {
+      return null;
+    }
+    return new Writer(out, uri, key, varyOn, base, code, headers);
+  }
+
+  private static String key(String uri, String[] varyOn, Headers requestHeaders) {
+    if (varyOn == null || varyOn.length == 0) {
+      return uri + '\n';
+    }
+    StringBuilder key = new StringBuilder(uri).append('\n');
+    for (String name : varyOn) {
+      key.append(name).append('=');
+      List<String> values = requestHeaders.get(name);
+      if (values != null) {
+        key.append(String.join(",", values));
+      }
+      key.append('\n');
+    }
+    return key.toString();
+  }
+
+  private void put(Entry entry) {
+    List<Entry> evicted = new ArrayList<Entry>();
+    synchronized (memory) {
+      Entry old = memory.remove(entry.key);
+      if (old != null) {
+        memoryUsed -= old.size();
+      }
+      old = disk.remove(entry.key);
+      if (old != null) {
+        diskUsed -= old.length;
+        if (old.file != entry.file) {
+          delete(old.file);
+        }
+      }
+      if (entry.body != null) {
+        memory.put(entry.key, entry);
+        memoryUsed += entry.size();
+        Iterator<Entry> it = memory.values().iterator();
+        while (memoryUsed > maxSize && it.hasNext()) {
+          Entry e = it.next();
+          memoryUsed -= e.size();
+          it.remove();
+          evicted.add(e);
+        }
+      } else {
+        putOnDisk(entry);
+      }
+    }
+    // Move entries evicted from memory to disk, outside of the lock
+    for (Entry e : evicted) {
+      if (directory == null || e.length > maxDiskEntrySize) {
+        continue;
+      }
+      try {
+        Path file = newFile();
+        Files.write(file, e.body);
+        Entry moved = e.movedTo(file);
+        synchronized (memory) {
+          if (!memory.containsKey(e.key) && !disk.containsKey(e.key)) {
+            putOnDisk(moved);
+          } else {
+            delete(file);
+          }
+        }
+      } catch (IOException ioe) {
+        log.log(Level.WARNING, "Unable to move cached response to disk", ioe);
+      }
+    }
+  }
+
+  // Must hold the lock on memory
+  private void putOnDisk(Entry entry) {
+    disk.put(entry.key, entry);
+    diskUsed += entry.length;
+    Iterator<Entry> it = disk.values().iterator();
+    while (diskUsed > maxDiskSize && it.hasNext()) {
+      Entry e = it.next();
+      diskUsed -= e.length;
+      delete(e.file);
+      it.remove();
+    }
+  }
+
+  private Path newFile() {
+    return directory.resolve("entry-" + files.incrementAndGet());
+  }
+
+  private static void delete(Path file) {
+    if (file == null) {
+      return;
+    }
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      log.log(Level.FINE, "Unable to delete " + file, e);
+    }
+  }
+
+  /** Stops background revalidation, and removes the entries on disk. */
+  @Override
+  public void close() {
+    revalidator.shutdown();
+    synchronized (memory) {
+      memory.clear();
+      disk.clear();
+      memoryUsed = 0;
+      diskUsed = 0;
+    }
+    if (directory != null) {
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+        for (Path file : stream) {
+          delete(file);
+        }
+      } catch (IOException e) {
+        log.log(Level.FINE, "Unable to list " + directory, e);
+      }
+      delete(directory);
+    }
+  }
+
+  /**
+   * Parses the directives of a {@code Cache-Control} header into a map of lower case names to
+   * their values, which are null for directives without one.
+   */
+  static Map<String, String> cacheControl(List<String> values) {
+    List<String> directives = HttpExchanges.splitHeaderValues(values);
+    if (directives == null) {
+      return new HashMap<String, String>();
+    }
+    Map<String, String> map = new HashMap<String, String>();
+    for (String directive : directives) {
+      if (directive.isEmpty()) {
+        continue;
+      }
+      int eq = directive.indexOf('=');
+      if (eq < 0) {
+        map.put(directive.toLowerCase(Locale.ROOT), null);
+        continue;
+      }
+      String value = directive.substring(eq + 1).trim();
+      if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+        value = value.substring(1, value.length() - 1);
+      }
+      map.put(directive.substring(0, eq).trim().toLowerCase(Locale.ROOT), value);
+    }
+    return map;
+  }
+
+  /** @return the directive's value in seconds, or -1 if it is missing or invalid */
+  private static long seconds(Map<String, String> cc, String directive) {
+    String value = cc.get(directive);
+    if (value == null) {
+      return -1;
+    }
+    try {
+      return Math.max(0, Long.parseLong(value));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** A cached response, whose body is either in memory or on disk. */
+  static final class Entry {
+    final String uri;
+    final String key;
+    final URI base;
+    final int code;
+    final List<String[]> headers;
+    final byte[] body;
+    final Path file;
+    final long length;
+    final String etag;
+    final String lastModified;
+    final long responseTime;
+    final long lifetime;
+    final long staleWhileRevalidate;
+    final boolean mustRevalidate;
+    final AtomicBoolean revalidating = new AtomicBoolean();
+    private final long headerSize;
+    private final long initialAge;
+
+    private Entry(
+        String uri,
+        String key,
+        URI base,
+        int code,
+        List<String[]> headers,
+        byte[] body,
+        Path file,
+        long length,
+        String etag,
+        String lastModified,
+        long responseTime,
+        long initialAge,
+        long lifetime,
+        long staleWhileRevalidate,
+        boolean mustRevalidate) {
+      this.uri = uri;
+      this.key = key;
+      this.base = base;
+      this.code = code;
+      this.headers = headers;
+      this.body = body;
+      this.file = file;
+      this.length = length;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.responseTime = responseTime;
+      this.initialAge = initialAge;
+      this.lifetime = lifetime;
+      this.staleWhileRevalidate = staleWhileRevalidate;
+      this.mustRevalidate = mustRevalidate;
+      long size = 0;
+      for (String[] header : headers) {
+        size += header[0].length() + header[1].length();
+      }
+      this.headerSize = size + key.length();
+    }
+
+    /**
+     * Computes the freshness of a response from its headers, as described in RFC 7234 Section 4.2.
+     *
+     * @return the entry, or null if the response must not be stored, or could never be reused
+     */
+    static Entry of(
+        String uri,
+        String key,
+        URI base,
+        int code,
+        List<String[]> headers,
+        byte[] body,
+        Path file,
+        long length) {
+      List<String> cacheControl = new ArrayList<String>();
+      String etag = null;
+      String lastModified = null;
+      String expires = null;
+      String date = null;
+      String age = null;
+      List<String[]> stored = new ArrayList<String[]>(headers.size());
+      for (String[] header : headers) {
+        String name = header[0];
+        if ("Cache-Control".equalsIgnoreCase(name)) {
+          cacheControl.add(header[1]);
+        } else if ("ETag".equalsIgnoreCase(name)) {
+          etag = header[1];
+        } else if ("Last-Modified".equalsIgnoreCase(name)) {
+          lastModified = header[1];
+        } else if ("Expires".equalsIgnoreCase(name)) {
+          expires = header[1];
+        } else if ("Date".equalsIgnoreCase(name)) {
+          date = header[1];
+        } else if ("Age".equalsIgnoreCase(name)) {
+          age = header[1];
+          continue;
+        }
+        stored.add(header);
+      }
+      Map<String, String> cc = cacheControl(cacheControl);
+      if (cc.containsKey("no-store") || cc.containsKey("private")) {
+        return null;
+      }
+      long lifetime = seconds(cc, "s-maxage");
+      if (lifetime < 0) {
+        lifetime = seconds(cc, "max-age");
+      }
+      lifetime = lifetime < 0 ? -1 : lifetime * 1000;
+      if (lifetime < 0 && expires != null) {
+        // An invalid Expires means already expired
+        Date expiresDate = HttpExchanges.parseDate(expires);
+        Date dateDate = date == null ? null : HttpExchanges.parseDate(date);
+        long from = dateDate == null ? System.currentTimeMillis() : dateDate.getTime();
+        lifetime = expiresDate == null ? 0 : Math.max(0, expiresDate.getTime() - from);
+      }
+      boolean mustRevalidate =
+          cc.containsKey("no-cache")
+              || cc.containsKey("must-revalidate")
+              || cc.containsKey("proxy-revalidate");
+      if (lifetime < 0 || cc.containsKey("no-cache")) {
+        lifetime = 0;
+      }
+      if (lifetime == 0 && etag == null && lastModified == null) {
+        return null;
+      }
+      long initialAge = 0;
+      if (age != null) {
+        try {
+          initialAge = Math.max(0, Long.parseLong(age.trim())) * 1000;
+        } catch (NumberFormatException e) {
+          // Ignore the invalid Age
+        }
+      }
+      long swr = Math.max(0, seconds(cc, "stale-while-revalidate")) * 1000;
+      return new Entry(
+          uri,
+          key,
+          base,
+          code,
+          stored,
+          body,
+          file,
+          length,
+          etag,
+          lastModified,
+          System.currentTimeMillis(),
+          initialAge,
+          lifetime,
+          swr,
+          mustRevalidate);
+    }
+
+    /** @return a copy of the entry, whose body has been written to the file */
+    Entry movedTo(Path file) {
+      return new Entry(
+          uri,
+          key,
+          base,
+          code,
+          headers,
+          null,
+          file,
+          length,
+          etag,
+          lastModified,
+          responseTime,
+          initialAge,
+          lifetime,
+          staleWhileRevalidate,
+          mustRevalidate);
+    }
+
+    /** @return the age, in milliseconds, of the response */
+    long age(long now) {
+      return initialAge + Math.max(0, now - responseTime);
+    }
+
+    boolean isFresh(long now) {
+      return age(now) < lifetime;
+    }
+
+    /** @return true if the entry is stale, but may be served while it is revalidated */
+    boolean canServeStale(long now) {
+      return !mustRevalidate && age(now) < lifetime + staleWhileRevalidate;
+    }
+
+    /** @return true if upstream can be asked whether the entry is still current */
+    boolean hasValidator() {
+      return etag != null || lastModified != null;
+    }
+
+    private long size() {
+      return length + headerSize;
+    }
+  }
+
+  /**
+   * Collects the body of a response, forwarding it to another stream as it goes. Bodies too large
+   * for memory are written to disk if there is room, or abandoned.
+   */
+  final class Writer extends OutputStream {
+    private final OutputStream out;
+    private final String uri;
+    private final String key;
+    private final String[] varyOn;
+    private final URI base;
+    private final int code;
+    private final List<String[]> headers;
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private Path file;
+    private OutputStream fileOut;
+    private long length;
+    private boolean done;
+
+    private Writer(
+        OutputStream out,
+        String uri,
+        String key,
+        String[] varyOn,
+        URI base,
+        int code,
+        List<String[]> headers) {
+      this.out = out;
+      this.uri = uri;
+      this.key = key;
+      this.varyOn = varyOn;
+      this.base = base;
+      this.code = code;
+      this.headers = headers;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (out != null) {
+        out.write(b, off, len);
+      }
+      if (done) {
+        return;
+      }
+      length += len;
+      try {
+        if (fileOut == null && length > maxEntrySize) {
+          if (directory == null || length > maxDiskEntrySize) {
+            abandon();
+            return;
+          }
+          file = newFile();
+          fileOut = Files.newOutputStream(file);
+          buffer.writeTo(fileOut);
+          buffer = null;
+        }
+        if (fileOut != null) {
+          if (length > maxDiskEntrySize) {
+            abandon();
+            return;
+          }
+          fileOut.write(b, off, len);
+        } else {
+          buffer.write(b, off, len);
+        }
+      } catch (IOException e) {
+        // Failing to cache shouldn't fail the response
+        log.log(Level.WARNING, "Unable to write cached response to disk", e);
+        abandon();
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (out != null) {
+        out.flush();
+      }
+    }
+
+    @Override
+    public void close() {
+      // The forwarded stream belongs to the caller
+    }
+
+    /** Stores the response, now that its body has been read to the end. */
+    void commit() {
+      if (done) {
+        return;
+      }
+      byte[] body = null;
+      if (fileOut != null) {
+        try {
+          fileOut.close();
+        } catch (IOException e) {
+          log.log(Level.WARNING, "Unable to write cached response to disk", e);
+          abandon();
+          return;
+        }
+      } else {
+        body = buffer.toByteArray();
+      }
+      Entry entry = Entry.of(uri, key, base, code, headers, body, file, length);
+      if (entry == null) {
+        abandon();
+        return;
+      }
+      done = true;
+      vary.put(uri, varyOn);
+      put(entry);
+    }
+
+    /** Drops the response, unless it was already stored. */
+    void abandon() {
+      if (done) {
+        return;
+      }
+      done = true;
+      buffer = null;
+      if (fileOut != null) {
+        try {
+          fileOut.close();
+        } catch (IOException e) {
+          log.log(Level.FINE, "Unable to close " + file, e);
+        }
+        delete(file);
+      }
+    }
+  }
+
+  /** Builder for {@link ProxyCache}. */
+  public static class Builder {
+    private long maxSize = DEFAULT_MAX_SIZE;
+    private int maxEntrySize = DEFAULT_MAX_ENTRY_SIZE;
+    private Path directory;
+    private long maxDiskSize;
+    private long maxDiskEntrySize;
+    private int revalidationThreads = 2;
+
+    public Builder() {}
+
+    public ProxyCache build() {
+      return new ProxyCache(this);
+    }
+
+    /** Sets the total size, in bytes, of the responses cached in memory. */
+    public Builder maxSize(long maxSize) {
+      this.maxSize = maxSize;
+      return this;
+    }
+
+    /** Sets the size, in bytes, of the largest response cached in memory. */
+    public Builder maxEntrySize(int maxEntrySize) {
+      this.maxEntrySize = maxEntrySize;
+      return this;
+    }
+
+    /**
+     * Keeps responses that don't fit in memory on disk, in a new directory under {@code
+     * directory}.
+     *
+     * @param directory where responses are kept
+     * @param maxDiskSize the total size, in bytes, of the responses kept on disk, which is also the
+     *     size of the largest one
+     */
+    public Builder directory(Path directory, long maxDiskSize) {
+      this.directory = directory;
+      this.maxDiskSize = maxDiskSize;
+      this.maxDiskEntrySize = maxDiskSize;
+      return this;
+    }
+
+    /** Sets the number of threads stale responses are revalidated on in the background. */
+    public Builder revalidationThreads(int revalidationThreads) {
+      if (revalidationThreads < 1) {
+        throw new IllegalArgumentException("revalidationThreads must be positive");
+      }
+      this.revalidationThreads = revalidationThreads;
+      return this;
+    }
+  }
+}
@@ -0,0 +1,208 @@
+package com.github.xgp.http.server;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The parameters of a query string, in the order they appear. The string is parsed in a single
+ * pass, and names and values are only decoded if they contain {@code %} or {@code +}. Lookups
+ * scan the parameters while there are few of them. Queries with more than {@value
+ * #INDEX_THRESHOLD} are indexed by name on the first lookup, so that reading every parameter of a
+ * large query doesn't take a scan per parameter.
+ *
+ * <p>Malformed escapes are kept as they are, rather than failing the request.
+ */
+final class QueryString {
+  static final QueryString EMPTY = new QueryString(new String[0], new String[0], 0);
+
+  /** The most parameters that are looked up by scanning. */
+  static final int INDEX_THRESHOLD = 16;
+
+  private final String[] names;
+  private final String[] values;
+  private final int size;
+  private Map<String, List<String>> map;
+  // For large queries, the first parameter of each name, and the next of the same name after each
+  private Map<String, Integer> firsts;
+  private int[] next;
+
+  private QueryString(String[] names, String[] values, int size) {
+    this.names = names;
+    this.values = values;
+    this.size = size;
+  }
+
+  /**
+   * @param raw the raw, still encoded, query string, or null
+   * @param charset the charset escaped bytes are decoded with
+   */
+  static QueryString parse(String raw, Charset charset) {
+    if (raw == null || raw.isEmpty()) {
+      return EMPTY;
+    }
+    int capacity = 1;
+    for (int i = 0; i < raw.length(); i++) {
+      if (raw.charAt(i) == '&') capacity++;
+    }
+    String[] names = new String[capacity];
+    String[] values = new String[capacity];
+    int size = 0;
+    int start = 0;
+    int length = raw.length();
+    while (start <= length) {
+      int end = raw.indexOf('&', start);
+      if (end < 0) end = length;
+      if (end > start) {
+        int eq = raw.indexOf('=', start);
+        if (eq < 0 || eq > end) eq = end;
+        names[size] = decode(raw, start, eq, charset);
+        values[size] = eq < end ? decode(raw, eq + 1, end, charset) : "";
+        size++;
+      }
+      start = end + 1;
+    }
+    return new QueryString(names, values, size);
+  }
+
+  /** Decodes {@code application/x-www-form-urlencoded} text, copying it only if it is encoded. */
+  static String decode(String s, int start, int end, Charset charset) {
+    int i = start;
+    while (i < end) {
+      char c = s.charAt(i);
+      if (c == '%' || c == '+') break;
+      i++;
+    }
+    if (i == end) {
+      return s.substring(start, end);
+    }
+    StringBuilder out = new StringBuilder(end - start);
+    out.append(s, start, i);
+    byte[] bytes = null;
+    while (i < end) {
+      char c = s.charAt(i);
+      if (c == '+') {
+        out.append(' ');
+        i++;
+      } else if (c == '%' && hex(s, i + 1, end) >= 0) {
+        // Collect a run of escaped bytes, which may together be one character
+        if (bytes == null) bytes = new byte[(end - i) / 3];
+        int n = 0;
+        while (i < end && s.charAt(i) == '%' && hex(s, i + 1, end) >= 0) {
+          bytes[n++] = (byte) hex(s, i + 1, end);
+          i += 3;
+        }
+        out.append(new String(bytes, 0, n, charset));
+      } else {
+        out.append(c);
+        i++;
+      }
+    }
+    return out.toString();
+  }
+
+  /** @return the byte of the two hex digits at {@code i}, or -1 if they aren't */
+  private static int hex(String s, int i, int end) {
+    if (i + 1 >= end) return -1;
+    int hi = Character.digit(s.charAt(i), 16);
+    int lo = Character.digit(s.charAt(i + 1), 16);
+    return hi < 0 || lo < 0 ? -1 : (hi << 4) | lo;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** @return the first value of the parameter, or null if it is missing */
+  String first(String name) {
+    int i = indexOf(name);
+    return i < 0 ? null : values[i];
+  }
+
+  /** @return the values of the parameter, or null if it is missing */
+  List<String> get(String name) {
+    int first = indexOf(name);
+    if (first < 0) {
+      return null;
+    }
+    int i = nextOf(first);
+    if (i < 0) {
+      return Collections.singletonList(values[first]);
+    }
+    List<String> matches = new ArrayList<String>(4);
+    matches.add(values[first]);
+    for (; i >= 0; i = nextOf(i)) {
+      matches.add(values[i]);
+    }
+    return Collections.unmodifiableList(matches);
+  }
+
+  /** @return the position of the first parameter with the name, or -1 */
+  private int indexOf(String name) {
+    if (size <= INDEX_THRESHOLD) {
+      for (int i = 0; i < size; i++) {
+        if (names[i].equals(name)) return i;
+      }
+      return -1;
+    }
+    if (firsts == null) {
+      index();
+    }
+    Integer i = firsts.get(name);
+    return i == null ? -1 : i;
+  }
+
+  /** @return the position of the next parameter with the same name as the one at {@code i} */
+  private int nextOf(int i) {
+    if (next != null) {
+      return next[i];
+    }
+    for (int j = i + 1; j < size; j++) {
+      if (names[j].equals(names[i])) return j;
+    }
+    return -1;
+  }
+
+  private void index() {
+    Map<String, Integer> firsts = new HashMap<String, Integer>(size * 2);
+    int[] next = new int[size];
+    // Backwards, so that each put replaces the next parameter of the name with an earlier one
+    for (int i = size - 1; i >= 0; i--) {
+      Integer later = firsts.put(names[i], i);
+      next[i] = later == null ? -1 : later;
+    }
+    this.next = next;
+    this.firsts = firsts;
+  }
+
+  /** @return the parameters, sorted by name, with the values of each in order */
+  Map<String, List<String>> toMap() {
+    if (map == null) {
+      map = buildMap();
+    }
+    return map;
+  }
+
+  private Map<String, List<String>> buildMap() {
+    if (size == 0) {
+      return Collections.emptyMap();
+    }
+    Map<String, List<String>> map = new TreeMap<String, List<String>>();
+    for (int i = 0; i < size; i++) {
+      List<String> list = map.get(names[i]);
+      if (list == null) {
+        list = new ArrayList<String>(1);
+        map.put(names[i], list);
+      }
+      list.add(values[i]);
+    }
+    for (Map.Entry<String, List<String>> me : map.entrySet()) {
+      me.setValue(Collections.unmodifiableList(me.getValue()));
+    }
+    return Collections.unmodifiableMap(map);
+  }
+}
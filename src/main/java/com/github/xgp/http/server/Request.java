@@ -12,19 +12,17 @@ import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
+/**
+ * The request of an exchange, as seen by a {@link Handler}. Nothing is parsed until it is asked
+ * for, and then only once per exchange, so handlers only pay for what they use.
+ */
 public class Request {
 
   private final InternalHttpExchange exchange;
-  private final Map<String, List<String>> queryMap;
-  private final Map<String, String> paramMap;
 
   public Request(InternalHttpExchange exchange) {
     this.exchange = exchange;
-    this.queryMap = HttpExchanges.parseQueryParameters(exchange, StandardCharsets.UTF_8);
-    this.paramMap =
-        exchange.getRoute().getPathParametersEncoded(exchange.getRequestURI().getPath());
   }
 
   public HttpExchange exchange() {
@@ -63,10 +61,9 @@ public class Request {
     return headers().getFirst(name);
   }
 
+  /** @return the cookies sent with the request, which may be empty */
   public List<HttpCookie> cookies() {
-    return headers("Cookie").stream()
-        .flatMap(h -> HttpCookie.parse(h).stream())
-        .collect(Collectors.toList());
+    return exchange.getCookies();
   }
 
   public URI uri() {
@@ -89,19 +86,26 @@ public class Request {
     }
   }
 
+  /** @return the query parameters, sorted by name */
   public Map<String, List<String>> queryMap() {
-    return queryMap;
+    return exchange.getQuery().toMap();
   }
 
+  /** @return the values of the query parameter, or null if it is missing */
   public List<String> query(String name) {
-    return queryMap.get(name);
+    return exchange.getQuery().get(name);
+  }
+
+  /** @return the first value of the query parameter, or null if it is missing */
+  public String queryFirst(String name) {
+    return exchange.getQuery().first(name);
   }
 
   public Map<String, String> paramMap() {
-    return paramMap;
+    return exchange.getPathParameters();
   }
 
   public String param(String name) {
-    return paramMap.get(name);
+    return exchange.getPathParameter(name);
   }
 }
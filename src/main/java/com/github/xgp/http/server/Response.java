@@ -4,6 +4,8 @@ import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import java.io.OutputStream;
 import java.net.HttpCookie;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 
 public class Response {
 
@@ -57,6 +59,11 @@ public class Response {
     return exchange.getResponseBody();
   }
 
+  /** The response stream as a channel, for bodies that are already in {@code ByteBuffer}s. */
+  public WritableByteChannel channel() {
+    return Channels.newChannel(stream());
+  }
+
   private int status;
 
   public Response status(int status) {
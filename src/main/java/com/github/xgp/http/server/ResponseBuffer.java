@@ -0,0 +1,179 @@
+package com.github.xgp.http.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Collects a rendered body so that it can be sent with an exact {@code Content-Length}, rather than
+ * chunked. Once the body outgrows the limit, the response is started with chunked encoding and the
+ * rest is streamed straight through. Buffers are pooled, since most bodies are small.
+ *
+ * <p>A body whose length is known up front, and too large to buffer, is streamed with that length.
+ */
+final class ResponseBuffer extends OutputStream {
+  private static final int INITIAL_SIZE = 4096;
+  // Larger buffers aren't kept, so a few large bodies don't pin memory
+  private static final int MAX_POOLED_SIZE = 64 * 1024;
+  private static final BlockingQueue<byte[]> pool =
+      new ArrayBlockingQueue<byte[]>(4 * Runtime.getRuntime().availableProcessors());
+  // The body of a HEAD response goes nowhere
+  private static final OutputStream DISCARD =
+      new OutputStream() {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+      };
+
+  private final HttpExchange ex;
+  private final int status;
+  private final Compression compression;
+  private final int limit;
+  private final OutputStream out;
+  private byte[] buf;
+  private int count;
+  private OutputStream streaming;
+
+  /**
+   * Replaces the exchange's response stream with a buffer, until {@link #finish} or {@link #abort}.
+   *
+   * @param compression the compression settings, or null
+   * @param limit the size, in bytes, of the largest body to buffer
+   */
+  ResponseBuffer(HttpExchange ex, int status, Compression compression, int limit) {
+    this.ex = ex;
+    this.status = status;
+    this.compression = compression;
+    this.limit = limit;
+    this.out = ex.getResponseBody();
+    byte[] pooled = pool.poll();
+    this.buf = pooled != null ? pooled : new byte[Math.min(INITIAL_SIZE, Math.max(limit, 1))];
+    ex.setStreams(null, this);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (streaming == null && count < limit && count < buf.length) {
+      buf[count++] = (byte) b;
+    } else {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (streaming == null) {
+      if (count + len <= limit) {
+        if (count + len > buf.length) {
+          buf = Arrays.copyOf(buf, Math.min(limit, Math.max(count + len, 2 * buf.length)));
+        }
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+        return;
+      }
+      spill();
+    }
+    streaming.write(b, off, len);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    // Flushing a buffered body would defeat the point
+    if (streaming != null) {
+      streaming.flush();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (streaming != null) {
+      streaming.close();
+    }
+  }
+
+  /**
+   * Starts the response right away if the body is known to be larger than the limit, so that it is
+   * streamed with its length rather than chunked. Bodies that may be compressed are left alone, as
+   * their length will change.
+   *
+   * @param length the exact length of the body, or -1 if it isn't known
+   */
+  void expect(long length) throws IOException {
+    if (streaming != null || length <= limit) {
+      return;
+    }
+    if (compression != null
+        && compression.isCompressible(ex.getResponseHeaders().getFirst("Content-Type"))) {
+      return;
+    }
+    ex.setStreams(null, out);
+    start(length);
+    release();
+  }
+
+  /** Starts a chunked response with what has been buffered so far. */
+  private void spill() throws IOException {
+    // Compression wraps the exchange's own stream, so that has to be put back first
+    ex.setStreams(null, out);
+    if (compression != null && !"HEAD".equals(ex.getRequestMethod())) {
+      compression.enable(ex);
+    }
+    start(0);
+    streaming.write(buf, 0, count);
+    release();
+  }
+
+  /** Sends the headers, once the exchange's stream has been put back. */
+  private void start(long length) throws IOException {
+    if ("HEAD".equals(ex.getRequestMethod())) {
+      ex.sendResponseHeaders(status, -1);
+      streaming = DISCARD;
+    } else {
+      ex.sendResponseHeaders(status, length);
+      streaming = ex.getResponseBody();
+    }
+  }
+
+  /**
+   * Sends a buffered body with its exact length, compressed if the settings allow, and puts back
+   * the exchange's stream. Does nothing more for a body that was streamed.
+   */
+  void finish() throws IOException {
+    if (streaming != null) {
+      return;
+    }
+    ex.setStreams(null, out);
+    try {
+      if (compression != null) {
+        compression.send(ex, status, buf, count);
+      } else if ("HEAD".equals(ex.getRequestMethod()) || count == 0) {
+        ex.sendResponseHeaders(status, -1);
+      } else {
+        ex.sendResponseHeaders(status, count);
+        out.write(buf, 0, count);
+      }
+    } finally {
+      release();
+    }
+  }
+
+  /** Drops a buffered body, so that an error can be sent instead. */
+  void abort() {
+    if (streaming == null) {
+      ex.setStreams(null, out);
+      release();
+    }
+  }
+
+  private void release() {
+    if (buf != null && buf.length <= MAX_POOLED_SIZE) {
+      pool.offer(buf);
+    }
+    buf = null;
+  }
+}
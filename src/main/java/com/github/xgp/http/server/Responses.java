@@ -0,0 +1,47 @@
+package com.github.xgp.http.server;
+
+import static java.net.HttpURLConnection.HTTP_OK;
+
+import java.io.IOException;
+
+/** Sends the {@link Response} a {@link Handler} or {@link AsyncHandler} has filled in. */
+final class Responses {
+
+  private Responses() {}
+
+  static void send(InternalHttpExchange ex, Request request, Response response)
+      throws IOException {
+    // 1. if it's a redirect, send and ignore the rest
+    if (response.redirect() != null) {
+      HttpExchanges.sendRedirect(ex, request.uri().resolve(response.redirect()));
+      return;
+    }
+    // 2. if there is a body string, transform it
+    if (response.body() != null) {
+      // a. set sensible defaults, if the user did not
+      if (response.transformer() == null) {
+        response.transformer(ex.getTransformer());
+      }
+      if (response.contentType() == null)
+        response.contentType(response.transformer().contentType());
+      if (response.status() == 0) response.status(HTTP_OK);
+      // b. render into a buffer, so small bodies are sent with their exact length, and can be
+      // compressed as a whole. Larger bodies are streamed once they outgrow it, or right away if
+      // the transformer knows their length.
+      ResponseBuffer buffer =
+          new ResponseBuffer(ex, response.status(), ex.getCompression(), ex.getMaxBufferedSize());
+      try {
+        buffer.expect(response.transformer().contentLength(response.body()));
+        response.transformer().render(response.body(), response);
+      } catch (IOException | RuntimeException e) {
+        buffer.abort();
+        throw e;
+      }
+      // c. send the status, headers and content, if they weren't already
+      buffer.finish();
+    }
+    // 3. close everything
+    response.stream().close();
+    ex.close();
+  }
+}
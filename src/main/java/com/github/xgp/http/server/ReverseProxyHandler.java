@@ -14,29 +14,67 @@
 
 package com.github.xgp.http.server;
 
-import com.github.xgp.io.Streams;
+import com.github.xgp.http.client.HttpClient;
+import com.github.xgp.http.server.Upstreams.Upstream;
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.Authenticator;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
+import java.net.ResponseCache;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * An HTTP reverse proxy. This class uses HttpURLConnection internally, so the default {@link
- * Authenticator} must be {@code null} for proper operation. The implementation is known to drop the
- * response body for 401 responses to POST requests.
+ * An HTTP reverse proxy. By default this class uses HttpURLConnection internally, so the default
+ * {@link Authenticator} must be {@code null} for proper operation. The implementation is known to
+ * drop the response body for 401 responses to POST requests.
+ *
+ * <p>Given an {@link HttpClient}, upstream connections come from its pool instead, and the request
+ * is handed to the client to finish. The server thread returns as soon as the request is queued,
+ * and requests waiting for an upstream connection don't hold a thread. Bodies are streamed in both
+ * directions, through buffers of a configurable size, flushing whenever the upstream has nothing
+ * more to read so that streamed responses are not held back.
+ *
+ * <p>Requests can be balanced across several {@link Upstreams}, which eject those that fail. A
+ * request without a body that fails before its response has started is retried once on another
+ * upstream.
+ *
+ * <p>Given a {@link ProxyCache}, cacheable responses are served from it instead of going upstream,
+ * and stale ones are revalidated. Identical requests that arrive together can be coalesced into one
+ * upstream request, whose response they all share.
+ *
+ * <pre>{@code
+ * server
+ *     .createContext("/api")
+ *     .setHandler(
+ *         new ReverseProxyHandler.Builder(URI.create("http://backend:8080/api"))
+ *             .client(new HttpClient.Builder().maxConnectionsPerHost(64).build())
+ *             .bufferSize(64 * 1024)
+ *             .build());
+ * }</pre>
  */
 public class ReverseProxyHandler implements HttpHandler {
   // The Hop-by-hop headers that are connection-local, as defined by RFC 2616
@@ -57,28 +95,297 @@ public class ReverseProxyHandler implements HttpHandler {
         }
       };
 
+  // Request headers that responses commonly vary on, which coalesced requests must agree on
+  private static final Set<String> COALESCED_HEADERS =
+      new TreeSet<String>(String.CASE_INSENSITIVE_ORDER) {
+        {
+          add("Accept");
+          add("Accept-Encoding");
+          add("Accept-Language");
+          add("If-Modified-Since");
+          add("If-None-Match");
+          add("If-Range");
+          add("Range");
+        }
+      };
+
   private static final Logger log = Logger.getLogger(ReverseProxyHandler.class.getName());
 
-  private final URI destinationBase;
+  /** Default size, in bytes, of the buffers bodies are copied through. */
+  public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+  private final Upstreams upstreams;
+  private final Function<HttpExchange, String> hashKey;
+  private final HttpClient client;
+  private final ProxyCache cache;
+  private final int bufferSize;
+  private final BlockingQueue<byte[]> buffers;
+  private final int maxSharedBodySize;
+  private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
 
   public ReverseProxyHandler(URI destinationBase) {
-    if (destinationBase == null) {
+    this(new Builder(destinationBase));
+  }
+
+  protected ReverseProxyHandler(Builder builder) {
+    if (builder.upstreams == null) {
       throw new NullPointerException();
     }
-    this.destinationBase = destinationBase;
-    if (destinationBase.getScheme() == null
-        || destinationBase.getHost() == null
-        || destinationBase.getPath() == null) {
-      throw new IllegalArgumentException("destinationBase must contain a scheme, host, and path");
-    }
+    this.upstreams = builder.upstreams;
+    this.hashKey = builder.hashKey;
+    this.client = builder.client;
+    this.cache = builder.cache;
+    this.bufferSize = builder.bufferSize;
+    this.maxSharedBodySize = builder.maxSharedBodySize;
+    this.buffers = new ArrayBlockingQueue<byte[]>(4 * Runtime.getRuntime().availableProcessors());
+  }
+
+  public Upstreams getUpstreams() {
+    return upstreams;
+  }
+
+  /** The client requests are sent with, or null if they use {@code HttpURLConnection}. */
+  public HttpClient getClient() {
+    return client;
+  }
+
+  /** The response cache, or null if responses aren't cached. */
+  public ProxyCache getCache() {
+    return cache;
   }
 
   @Override
   public void handle(HttpExchange ex) throws IOException {
-    URI dest = computeProxyDestination(ex);
+    ProxyCache.Entry stale = null;
+    if (cache != null) {
+      if (!ProxyCache.isCacheable(ex)) {
+        if (!"OPTIONS".equalsIgnoreCase(ex.getRequestMethod())
+            && !"TRACE".equalsIgnoreCase(ex.getRequestMethod())) {
+          cache.invalidate(ex);
+        }
+      } else {
+        ProxyCache.Entry entry = cache.lookup(ex);
+        if (entry != null && !ProxyCache.requiresValidation(ex)) {
+          long now = System.currentTimeMillis();
+          if (entry.isFresh(now) && respond(ex, entry)) {
+            return;
+          }
+          if (entry.canServeStale(now) && entry.hasValidator()) {
+            revalidateLater(ex, entry);
+            if (respond(ex, entry)) {
+              return;
+            }
+          }
+        }
+        stale = entry != null && entry.hasValidator() ? entry : null;
+      }
+    }
+    Flight flight = null;
+    if (maxSharedBodySize > 0 && isCoalescable(ex)) {
+      Flight created = new Flight(flightKey(ex));
+      Flight leader = flights.putIfAbsent(created.key, created);
+      if (leader != null) {
+        follow(ex, leader, stale);
+        return;
+      }
+      flight = created;
+    }
+    handle(ex, null, stale, flight);
+  }
 
+  /**
+   * @param failed the upstream an earlier attempt at this request failed on, or null
+   * @param stale the cached response to revalidate, or null
+   * @param flight the identical requests waiting on this one's response, or null
+   */
+  private void handle(
+      final HttpExchange ex,
+      final Upstream failed,
+      final ProxyCache.Entry stale,
+      final Flight flight)
+      throws IOException {
+    final Upstream upstream = upstreams.choose(hashKey.apply(ex), failed);
+    final URI dest = computeProxyDestination(ex, upstream.uri());
+    upstream.started();
+    if (client == null) {
+      try {
+        proxy(
+            ex, (HttpURLConnection) dest.toURL().openConnection(), upstream.uri(), stale, flight);
+      } catch (IOException | RuntimeException e) {
+        upstreams.completed(upstream, false);
+        if (!canRetry(ex, failed)) {
+          throw e;
+        }
+        log.log(Level.FINE, "Retrying request that failed on " + upstream, e);
+        handle(ex, upstream, null, flight);
+        return;
+      } finally {
+        finish(flight);
+      }
+      upstreams.completed(upstream, !isGatewayError(ex.getResponseCode()));
+      return;
+    }
+    // The exchange is finished by the client once it has a connection
+    client
+        .execute(
+            dest.toURL(),
+            conn -> {
+              proxy(ex, conn, upstream.uri(), stale, flight);
+              return null;
+            })
+        .whenComplete(
+            (result, t) -> {
+              upstreams.completed(upstream, t == null && !isGatewayError(ex.getResponseCode()));
+              if (t == null) {
+                finish(flight);
+                return;
+              }
+              if (canRetry(ex, failed)) {
+                log.log(Level.FINE, "Retrying request that failed on " + upstream, t);
+                try {
+                  handle(ex, upstream, null, flight);
+                  return;
+                } catch (IOException | RuntimeException e) {
+                  t = e;
+                }
+              }
+              finish(flight);
+              failed(ex, dest, t);
+            });
+  }
+
+  /** @return true if the request can share the response to an identical one */
+  private static boolean isCoalescable(HttpExchange ex) {
+    String method = ex.getRequestMethod();
+    Headers headers = ex.getRequestHeaders();
+    return ("GET".equalsIgnoreCase(method) || "HEAD".equalsIgnoreCase(method))
+        && !hasRequestBody(ex)
+        && !headers.containsKey("Authorization")
+        && !headers.containsKey("Cookie");
+  }
+
+  private static String flightKey(HttpExchange ex) {
+    StringBuilder key = new StringBuilder(ex.getRequestMethod()).append(' ');
+    key.append(ex.getRequestURI());
+    for (String name : COALESCED_HEADERS) {
+      List<String> values = ex.getRequestHeaders().get(name);
+      key.append('\n');
+      if (values != null) {
+        key.append(String.join(",", values));
+      }
+    }
+    return key.toString();
+  }
+
+  /** @return true if a response can be handed to requests other than the one that asked */
+  private static boolean isShareable(List<String[]> headers) {
+    for (String[] header : headers) {
+      String name = header[0];
+      if ("Set-Cookie".equalsIgnoreCase(name)) {
+        return false;
+      }
+      List<String> values = Collections.singletonList(header[1]);
+      if ("Cache-Control".equalsIgnoreCase(name)
+          && ProxyCache.cacheControl(values).containsKey("private")) {
+        return false;
+      }
+      if ("Vary".equalsIgnoreCase(name)
+          && !COALESCED_HEADERS.containsAll(HttpExchanges.splitHeaderValues(values))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Waits for the response to an identical request already in flight, or proxies this one if that
+   * response can't be shared. With a client, no thread is held while waiting.
+   */
+  private void follow(final HttpExchange ex, Flight leader, final ProxyCache.Entry stale)
+      throws IOException {
+    if (client == null) {
+      Shared shared;
+      try {
+        shared = leader.response.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      } catch (ExecutionException e) {
+        shared = null;
+      }
+      if (shared == null || !respond(ex, shared)) {
+        handle(ex, null, stale, null);
+      }
+      return;
+    }
+    leader.response.thenAccept(
+        shared -> {
+          try {
+            if (shared == null || !respond(ex, shared)) {
+              handle(ex, null, stale, null);
+            }
+          } catch (IOException | RuntimeException e) {
+            failed(ex, ex.getRequestURI(), e);
+          }
+        });
+  }
+
+  /** Releases the requests waiting on a flight that didn't share its response. */
+  private static void finish(Flight flight) {
+    if (flight != null) {
+      flight.finish(null);
+    }
+  }
+
+  /** @return true if the request can be tried again on another upstream */
+  private boolean canRetry(HttpExchange ex, Upstream failed) {
+    return failed == null
+        && upstreams.getUpstreams().size() > 1
+        && ex.getResponseCode() == -1
+        && !hasRequestBody(ex);
+  }
+
+  private static boolean isGatewayError(int code) {
+    return code == HttpURLConnection.HTTP_BAD_GATEWAY
+        || code == HttpURLConnection.HTTP_UNAVAILABLE
+        || code == HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+  }
+
+  // As defined in RFC 2616 Section 4.3
+  private static boolean hasRequestBody(HttpExchange ex) {
+    return ex.getRequestHeaders().containsKey("Content-Length")
+        || ex.getRequestHeaders().containsKey("Transfer-Encoding");
+  }
+
+  /** Ends an exchange whose upstream request failed. */
+  private void failed(HttpExchange ex, URI dest, Throwable t) {
+    log.log(Level.WARNING, "Unable to proxy request to " + dest, t);
+    try {
+      if (ex.getResponseCode() == -1) {
+        HttpExchanges.cannedRespond(ex, HttpURLConnection.HTTP_BAD_GATEWAY, "502: Bad Gateway.");
+      }
+    } catch (IOException e) {
+      log.log(Level.FINE, "Unable to send error response", e);
+    } finally {
+      // If the response was already started, this tells the client it is incomplete
+      ex.close();
+    }
+  }
+
+  /**
+   * Sends the request to the upstream connection, and copies back its response.
+   *
+   * @param stale the cached response to revalidate, or null
+   * @param flight the identical requests to share the response with, or null
+   */
+  private void proxy(
+      HttpExchange ex,
+      HttpURLConnection conn,
+      URI destinationBase,
+      ProxyCache.Entry stale,
+      Flight flight)
+      throws IOException {
     // Set up request
-    HttpURLConnection conn = (HttpURLConnection) dest.toURL().openConnection();
     conn.setRequestMethod(ex.getRequestMethod());
     conn.setAllowUserInteraction(false);
     conn.setInstanceFollowRedirects(false);
@@ -86,17 +393,21 @@ public class ReverseProxyHandler implements HttpHandler {
     // keys aren't already there. It is unfortunate that it modifies the
     // request, however, the presense of these headers shouldn't have an impact
     // because they are targeted to proxy servers, not the application server.
-    // See RFC 2616 Section 14.9.1 and 14.32.
-    conn.setUseCaches(false);
+    // See RFC 2616 Section 14.9.1 and 14.32. With a cache of our own, the
+    // client's headers are passed on as they are, unless there is a default
+    // ResponseCache that would then be used.
+    conn.setUseCaches(cache != null && ResponseCache.getDefault() == null);
     // HttpUrlConnection will add Accept and User-Agent headers if they aren't
     // already there. Luckily they are almost always there.
-    copyRequestHeaders(ex, conn);
+    copyRequestHeaders(ex.getRequestHeaders(), conn);
     conn.addRequestProperty("X-Forwarded-For", getClientIp(ex));
+    // A 304 is only ours to handle if the client didn't send validators of its own
+    boolean validating = stale != null && !ProxyCache.isConditional(ex.getRequestHeaders());
+    if (validating) {
+      addValidators(conn, stale);
+    }
 
-    // As defined in RFC 2616 Section 4.3
-    boolean hasRequestBody =
-        ex.getRequestHeaders().containsKey("Content-Length")
-            || ex.getRequestHeaders().containsKey("Transfer-Encoding");
+    boolean hasRequestBody = hasRequestBody(ex);
 
     conn.setDoOutput(hasRequestBody);
     // Input is required for getResponseCode()
@@ -118,10 +429,9 @@ public class ReverseProxyHandler implements HttpHandler {
       if (contentLength < 0) {
         conn.setChunkedStreamingMode(-1);
       } else {
-        // TODO(ejona): remove cast once we depend on Java 7.
-        conn.setFixedLengthStreamingMode((int) contentLength);
+        conn.setFixedLengthStreamingMode(contentLength);
       }
-    } else {
+    } else if (client == null) {
       // It is essential that no authentication happens. Unfortunately for
       // requests with no body (like GET), it seems impossible to detect if
       // authentication could be or was performed and impossible to prevent it
@@ -139,7 +449,7 @@ public class ReverseProxyHandler implements HttpHandler {
     conn.connect();
     if (hasRequestBody) {
       try {
-        Streams.copyStream(ex.getRequestBody(), conn.getOutputStream());
+        copy(ex.getRequestBody(), conn.getOutputStream());
         ex.getRequestBody().close();
         conn.getOutputStream().close();
       } catch (IOException e) {
@@ -166,19 +476,73 @@ public class ReverseProxyHandler implements HttpHandler {
             || conn.getResponseCode() == 304); // Not Modified
 
     try {
-      copyResponseHeaders(conn, ex);
+      List<String[]> headers = getResponseHeaders(conn);
+      int code = conn.getResponseCode();
+      if (validating && code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+        ProxyCache.Entry refreshed = cache.revalidated(stale, headers);
+        if (flight != null) {
+          flight.finish(new Shared(refreshed));
+        }
+        if (!respond(ex, refreshed)) {
+          throw new IOException("Cached response for " + stale.uri + " is no longer available");
+        }
+        return;
+      }
+      boolean sharing = flight != null && isShareable(headers);
+      if (flight != null && !sharing) {
+        // Don't keep the others waiting for a response they can't have
+        flight.finish(null);
+      }
+      copyResponseHeaders(headers, ex, destinationBase);
 
       if (!hasResponseBody) {
         ex.sendResponseHeaders(conn.getResponseCode(), -1);
+        if (sharing) {
+          flight.finish(new Shared(code, headers, destinationBase, new byte[0]));
+        }
       } else {
-        int contentLength = conn.getContentLength();
+        long contentLength = conn.getContentLengthLong();
         if (contentLength <= 0) {
           // If the content length was unknown (-1) or if it was zero, then we
           // are forced to use chunked transfer encoding.
           contentLength = 0;
         }
         ex.sendResponseHeaders(conn.getResponseCode(), contentLength);
-        Streams.copyStream(inputStream, ex.getResponseBody());
+        OutputStream out = ex.getResponseBody();
+        TeeOutputStream tee = sharing ? new TeeOutputStream(out, maxSharedBodySize) : null;
+        if (tee != null) {
+          out = tee;
+        }
+        ProxyCache.Writer writer = null;
+        if (cache != null
+            && "GET".equalsIgnoreCase(ex.getRequestMethod())
+            && ProxyCache.isCacheable(ex)) {
+          writer =
+              cache.writer(
+                  out,
+                  ex.getRequestHeaders(),
+                  ex.getRequestURI().toString(),
+                  conn.getResponseCode(),
+                  headers,
+                  destinationBase);
+          if (writer == null && stale != null && conn.getResponseCode() < 500) {
+            cache.remove(stale);
+          }
+        }
+        if (writer == null) {
+          copy(inputStream, out);
+        } else {
+          try {
+            copy(inputStream, writer);
+            writer.commit();
+          } finally {
+            writer.abandon();
+          }
+        }
+        if (tee != null) {
+          byte[] body = tee.copy();
+          flight.finish(body == null ? null : new Shared(code, headers, destinationBase, body));
+        }
       }
       // Don't close in a finally because that would be a successful response.
       // If there is an error we want the server to kill the connection, which
@@ -189,8 +553,179 @@ public class ReverseProxyHandler implements HttpHandler {
     }
   }
 
+  /**
+   * Responds with a cached response.
+   *
+   * @return false if its body is no longer available
+   */
+  private boolean respond(HttpExchange ex, ProxyCache.Entry entry) throws IOException {
+    InputStream body = cache.open(entry);
+    if (body == null) {
+      return false;
+    }
+    try {
+      copyResponseHeaders(entry.headers, ex, entry.base);
+      ex.getResponseHeaders()
+          .set("Age", Long.toString(entry.age(System.currentTimeMillis()) / 1000));
+      if (ProxyCache.notModified(ex, entry)) {
+        ex.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+      } else if ("HEAD".equalsIgnoreCase(ex.getRequestMethod()) || entry.length == 0) {
+        ex.sendResponseHeaders(entry.code, -1);
+      } else {
+        ex.sendResponseHeaders(entry.code, entry.length);
+        copy(body, ex.getResponseBody());
+      }
+      ex.close();
+    } finally {
+      body.close();
+    }
+    return true;
+  }
+
+  /**
+   * Responds with the response to an identical request.
+   *
+   * @return false if it was a cached response whose body is no longer available
+   */
+  private boolean respond(HttpExchange ex, Shared shared) throws IOException {
+    if (shared.entry != null) {
+      return respond(ex, shared.entry);
+    }
+    copyResponseHeaders(shared.headers, ex, shared.base);
+    if (shared.body.length == 0) {
+      ex.sendResponseHeaders(shared.code, -1);
+    } else {
+      ex.sendResponseHeaders(shared.code, shared.body.length);
+      ex.getResponseBody().write(shared.body);
+    }
+    ex.close();
+    return true;
+  }
+
+  /** Revalidates a stale cached response in the background, while it is served as it is. */
+  private void revalidateLater(HttpExchange ex, final ProxyCache.Entry stale) {
+    final Upstream upstream = upstreams.choose(hashKey.apply(ex), null);
+    final URI dest = computeProxyDestination(ex, upstream.uri());
+    final String clientIp = getClientIp(ex);
+    // The client's validators are for its own copy, not ours
+    final Headers requestHeaders = new Headers();
+    requestHeaders.putAll(ex.getRequestHeaders());
+    requestHeaders.remove("If-None-Match");
+    requestHeaders.remove("If-Modified-Since");
+    cache.revalidate(
+        stale,
+        () -> {
+          upstream.started();
+          boolean success = false;
+          HttpURLConnection conn = null;
+          try {
+            conn =
+                client != null
+                    ? client.create(dest.toURL())
+                    : (HttpURLConnection) dest.toURL().openConnection();
+            int code = revalidate(conn, requestHeaders, clientIp, stale, upstream.uri());
+            success = !isGatewayError(code);
+          } catch (IOException | RuntimeException e) {
+            log.log(Level.FINE, "Unable to revalidate " + dest, e);
+            if (conn != null) {
+              conn.disconnect();
+            }
+          } finally {
+            upstreams.completed(upstream, success);
+          }
+        });
+  }
+
+  /**
+   * Asks upstream whether a cached response is still current, and stores the answer.
+   *
+   * @return the status code upstream answered with
+   */
+  private int revalidate(
+      HttpURLConnection conn,
+      Headers requestHeaders,
+      String clientIp,
+      ProxyCache.Entry stale,
+      URI destinationBase)
+      throws IOException {
+    conn.setRequestMethod("GET");
+    conn.setAllowUserInteraction(false);
+    conn.setInstanceFollowRedirects(false);
+    conn.setUseCaches(ResponseCache.getDefault() == null);
+    copyRequestHeaders(requestHeaders, conn);
+    conn.addRequestProperty("X-Forwarded-For", clientIp);
+    addValidators(conn, stale);
+    conn.setDoInput(true);
+    if (client == null) {
+      // See proxy()
+      Authenticator.setDefault(null);
+    }
+    int code = conn.getResponseCode();
+    InputStream inputStream = code >= 400 ? conn.getErrorStream() : conn.getInputStream();
+    try {
+      List<String[]> headers = getResponseHeaders(conn);
+      if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+        cache.revalidated(stale, headers);
+        return code;
+      }
+      ProxyCache.Writer writer =
+          inputStream == null
+              ? null
+              : cache.writer(null, requestHeaders, stale.uri, code, headers, destinationBase);
+      if (writer == null) {
+        if (code < 500) {
+          cache.remove(stale);
+        }
+        return code;
+      }
+      try {
+        copy(inputStream, writer);
+        writer.commit();
+      } finally {
+        writer.abandon();
+      }
+      return code;
+    } finally {
+      if (inputStream != null) {
+        inputStream.close();
+      }
+    }
+  }
+
+  private static void addValidators(HttpURLConnection conn, ProxyCache.Entry entry) {
+    if (entry.etag != null) {
+      conn.setRequestProperty("If-None-Match", entry.etag);
+    }
+    if (entry.lastModified != null) {
+      conn.setRequestProperty("If-Modified-Since", entry.lastModified);
+    }
+  }
+
+  /**
+   * Copies a body through a pooled buffer. Output is flushed whenever the input has nothing ready,
+   * rather than only at the end, so that streamed bodies aren't held back.
+   */
+  private void copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = buffers.poll();
+    if (buffer == null) {
+      buffer = new byte[bufferSize];
+    }
+    try {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+        if (in.available() == 0) {
+          out.flush();
+        }
+      }
+      out.flush();
+    } finally {
+      buffers.offer(buffer);
+    }
+  }
+
   /** Compute the URI the proxy should send a request to, to proxy the provided request. */
-  private URI computeProxyDestination(HttpExchange ex) {
+  private URI computeProxyDestination(HttpExchange ex, URI destinationBase) {
     URI req = HttpExchanges.getRequestUri(ex);
     final String basePath = ex.getHttpContext().getPath();
     if (!req.getPath().startsWith(basePath)) {
@@ -219,7 +754,8 @@ public class ReverseProxyHandler implements HttpHandler {
    * rewrite such response headers when they match the destinationUri so they point to the proxy
    * instead of the destination (a la Apache's ProxyPassReverse).
    */
-  private String computeReverseProxyDestination(HttpExchange ex, String location) {
+  private String computeReverseProxyDestination(
+      HttpExchange ex, String location, URI destinationBase) {
     URI uri = null;
     try {
       uri = new URI(location);
@@ -253,10 +789,9 @@ public class ReverseProxyHandler implements HttpHandler {
     }
   }
 
-  private void copyRequestHeaders(HttpExchange from, HttpURLConnection to) {
-    Set<String> requestHopByHopHeaders =
-        getHopByHopHeaders(from.getRequestHeaders().get("Connection"));
-    for (Map.Entry<String, List<String>> me : from.getRequestHeaders().entrySet()) {
+  private void copyRequestHeaders(Headers from, HttpURLConnection to) {
+    Set<String> requestHopByHopHeaders = getHopByHopHeaders(from.get("Connection"));
+    for (Map.Entry<String, List<String>> me : from.entrySet()) {
       if (requestHopByHopHeaders.contains(me.getKey())) {
         continue;
       }
@@ -266,9 +801,11 @@ public class ReverseProxyHandler implements HttpHandler {
     }
   }
 
-  private void copyResponseHeaders(HttpURLConnection from, HttpExchange to) {
+  /** @return the end-to-end headers of the response, as name and value pairs in order */
+  private List<String[]> getResponseHeaders(HttpURLConnection from) {
     Set<String> responseHopByHopHeaders =
         getHopByHopHeaders(from.getHeaderFields().get("Connection"));
+    List<String[]> headers = new ArrayList<String[]>();
     // HttpURLConnection.getHeaderFields() reverses the order of repeated
     // headers' values, so we avoid it. Specifically,
     // sun.net.www.MessageHeader.filterAndAddHeaders() loops through the
@@ -285,10 +822,19 @@ public class ReverseProxyHandler implements HttpHandler {
       if (responseHopByHopHeaders.contains(key)) {
         continue;
       }
+      headers.add(new String[] {key, value});
+    }
+    return headers;
+  }
+
+  private void copyResponseHeaders(List<String[]> headers, HttpExchange to, URI destinationBase) {
+    for (String[] header : headers) {
+      String key = header[0];
+      String value = header[1];
       if ("Location".equalsIgnoreCase(key)
           || "Content-Location".equalsIgnoreCase(key)
           || "URI".equalsIgnoreCase(key)) {
-        value = computeReverseProxyDestination(to, value);
+        value = computeReverseProxyDestination(to, value, destinationBase);
       }
       to.getResponseHeaders().add(key, value);
     }
@@ -313,4 +859,156 @@ public class ReverseProxyHandler implements HttpHandler {
     connectionHeaders.addAll(PREDEFINED_HOP_BY_HOP_HEADERS);
     return connectionHeaders;
   }
+
+  /** Identical requests waiting on the response to the first of them. */
+  private final class Flight {
+    final String key;
+    final CompletableFuture<Shared> response = new CompletableFuture<Shared>();
+
+    Flight(String key) {
+      this.key = key;
+    }
+
+    /** Hands the response to the waiting requests, or null to have them proxy their own. */
+    void finish(Shared shared) {
+      flights.remove(key, this);
+      response.complete(shared);
+    }
+  }
+
+  /** A response buffered for the requests of a {@link Flight}. */
+  private static final class Shared {
+    final int code;
+    final List<String[]> headers;
+    final URI base;
+    final byte[] body;
+    final ProxyCache.Entry entry;
+
+    Shared(int code, List<String[]> headers, URI base, byte[] body) {
+      this.code = code;
+      this.headers = headers;
+      this.base = base;
+      this.body = body;
+      this.entry = null;
+    }
+
+    Shared(ProxyCache.Entry entry) {
+      this.code = entry.code;
+      this.headers = entry.headers;
+      this.base = entry.base;
+      this.body = null;
+      this.entry = entry;
+    }
+  }
+
+  /** Writes to a stream, keeping a copy of what was written up to a limit. */
+  private static final class TeeOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final int limit;
+    private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+    TeeOutputStream(OutputStream out, int limit) {
+      this.out = out;
+      this.limit = limit;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      if (copy != null) {
+        if (copy.size() + len > limit) {
+          copy = null;
+        } else {
+          copy.write(b, off, len);
+        }
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    /** @return what was written, or null if it was over the limit */
+    byte[] copy() {
+      return copy == null ? null : copy.toByteArray();
+    }
+  }
+
+  /** Builder for {@link ReverseProxyHandler}. */
+  public static class Builder {
+    private final Upstreams upstreams;
+    private Function<HttpExchange, String> hashKey = ex -> ex.getRequestURI().toString();
+    private HttpClient client;
+    private ProxyCache cache;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private int maxSharedBodySize;
+
+    /** @param destinationBase the upstream scheme, host, and path requests are proxied to */
+    public Builder(URI destinationBase) {
+      this(destinationBase == null ? null : Upstreams.of(destinationBase));
+    }
+
+    /** @param upstreams the upstreams requests are balanced across */
+    public Builder(Upstreams upstreams) {
+      this.upstreams = upstreams;
+    }
+
+    /**
+     * Sets the key requests are hashed on, for {@link Upstreams.Strategy#CONSISTENT_HASH}. Defaults
+     * to the request URI.
+     */
+    public Builder hashKey(Function<HttpExchange, String> hashKey) {
+      this.hashKey = hashKey;
+      return this;
+    }
+
+    public ReverseProxyHandler build() {
+      return new ReverseProxyHandler(this);
+    }
+
+    /**
+     * Sets the client whose pooled connections are used for upstream requests. Without one, each
+     * request opens an {@link HttpURLConnection} and holds the server thread until it is done.
+     */
+    public Builder client(HttpClient client) {
+      this.client = client;
+      return this;
+    }
+
+    /** Sets the cache responses are served from when they allow it. */
+    public Builder cache(ProxyCache cache) {
+      this.cache = cache;
+      return this;
+    }
+
+    /**
+     * Coalesces identical {@code GET} and {@code HEAD} requests that arrive while one is already in
+     * flight, so that they share its upstream response instead of each making their own. Requests
+     * are identical if they have the same method, URI, and the request headers responses commonly
+     * vary on. Requests with credentials or cookies, and responses that set cookies, vary on other
+     * headers, or are larger than {@code maxBodySize}, aren't shared.
+     *
+     * @param maxBodySize the size, in bytes, of the largest body buffered to share, or 0 to not
+     *     coalesce requests
+     */
+    public Builder coalesce(int maxBodySize) {
+      this.maxSharedBodySize = maxBodySize;
+      return this;
+    }
+
+    /** Sets the size, in bytes, of the buffers bodies are copied through. */
+    public Builder bufferSize(int bufferSize) {
+      if (bufferSize < 1) {
+        throw new IllegalArgumentException("bufferSize must be positive");
+      }
+      this.bufferSize = bufferSize;
+      return this;
+    }
+  }
 }
@@ -45,6 +45,7 @@ public class Route {
   private final List<String> parameters;
   private final Pattern regex;
   private final Optional<Transformer> transformer;
+  private final RouteMetrics metrics;
 
   public Route(String method, String uri, HttpHandler handler, Optional<Transformer> transformer) {
     this.method = method;
@@ -53,6 +54,7 @@ public class Route {
     this.parameters = parseNamedParameters(uri);
     this.regex = Pattern.compile(convertRawUriToRegex(uri));
     this.transformer = transformer;
+    this.metrics = new RouteMetrics(method, uri);
   }
 
   public String getMethod() {
@@ -75,6 +77,11 @@ public class Route {
     return transformer;
   }
 
+  /** The requests this route has handled, if the {@link Router} keeps metrics. */
+  public RouteMetrics getMetrics() {
+    return metrics;
+  }
+
   /**
    * Matches /index to /index or /me/1 to /{person}/{id}
    *
@@ -89,6 +96,27 @@ public class Route {
     }
   }
 
+  /**
+   * Like {@link #matches}, but also records where the path parameters are in the uri.
+   *
+   * @return The match, or null if the actual route does not match this raw route.
+   */
+  RouteMatch match(String method, String uri) {
+    if (!this.method.equalsIgnoreCase(method)) {
+      return null;
+    }
+    Matcher matcher = regex.matcher(uri);
+    if (!matcher.matches()) {
+      return null;
+    }
+    int[] offsets = new int[2 * matcher.groupCount()];
+    for (int i = 0; i < matcher.groupCount(); i++) {
+      offsets[2 * i] = matcher.start(i + 1);
+      offsets[2 * i + 1] = matcher.end(i + 1);
+    }
+    return new RouteMatch(this, uri, offsets);
+  }
+
   /**
    * This method does not do any decoding / encoding.
    *
@@ -0,0 +1,301 @@
+package com.github.xgp.http.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A compiled lookup structure for a list of {@link Route}s. Each request method gets a trie of path
+ * segments: static segments are matched by hash lookup, {@code {param}} segments match any single
+ * segment, and segments with a custom regex are matched by a per-segment {@link Pattern}. Routes
+ * whose regex could match across a {@code /} are not split into segments and are matched with their
+ * full regex instead. When more than one route matches, the one added first wins, exactly as with a
+ * linear scan of the routes.
+ */
+final class RouteIndex {
+
+  private static final String REGEX_META = "\\.[]{}()*+?^$|";
+
+  private final int size;
+  private final Map<String, Node> tries;
+  private final List<Route> fallback;
+  private final List<Integer> fallbackOrder;
+  private int maxCaptures;
+
+  RouteIndex(List<Route> routes) {
+    this.size = routes.size();
+    this.tries = new HashMap<String, Node>();
+    this.fallback = new ArrayList<Route>();
+    this.fallbackOrder = new ArrayList<Integer>();
+    for (int i = 0; i < routes.size(); i++) {
+      add(routes.get(i), i);
+    }
+  }
+
+  /** @return the number of routes this index was compiled from. */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Finds the first route, in the order they were added, that matches the method and path.
+   *
+   * @param method the request method
+   * @param path the raw request path
+   * @return the matching route and where its path parameters are, if any
+   */
+  Optional<RouteMatch> find(String method, String path) {
+    Search search = null;
+    Node root = tries.get(method.toUpperCase(Locale.ROOT));
+    if (root != null) {
+      search = new Search(path, maxCaptures);
+      search(root, search, 0);
+    }
+    int bound = search == null ? Integer.MAX_VALUE : search.bound;
+    for (int i = 0; i < fallback.size() && fallbackOrder.get(i) < bound; i++) {
+      RouteMatch match = fallback.get(i).match(method, path);
+      if (match != null) {
+        return Optional.of(match);
+      }
+    }
+    if (search == null || search.best == null) {
+      return Optional.empty();
+    }
+    return Optional.of(new RouteMatch(search.best.route, path, search.bestCaptures));
+  }
+
+  private static void search(Node node, Search s, int i) {
+    if (node.first >= s.bound) {
+      return;
+    }
+    if (i == s.starts.length) {
+      if (node.route != null) {
+        s.best = node;
+        s.bound = node.order;
+        s.bestCaptures = Arrays.copyOf(s.captures, s.depth);
+      }
+      return;
+    }
+    int start = s.starts[i];
+    int end = s.ends[i];
+    String segment = null;
+    if (!node.statics.isEmpty()) {
+      segment = s.path.substring(start, end);
+      Node child = node.statics.get(segment);
+      if (child != null) {
+        search(child, s, i + 1);
+      }
+    }
+    int depth = s.depth;
+    if (node.param != null) {
+      s.captures[s.depth++] = start;
+      s.captures[s.depth++] = end;
+      search(node.param, s, i + 1);
+      s.depth = depth;
+    }
+    for (Node child : node.patterns.values()) {
+      if (child.first >= s.bound) {
+        continue;
+      }
+      if (segment == null) {
+        segment = s.path.substring(start, end);
+      }
+      Matcher m = child.pattern.matcher(segment);
+      if (m.matches()) {
+        for (int g = 1; g <= m.groupCount(); g++) {
+          s.captures[s.depth++] = m.start(g) < 0 ? -1 : start + m.start(g);
+          s.captures[s.depth++] = m.end(g) < 0 ? -1 : start + m.end(g);
+        }
+        search(child, s, i + 1);
+        s.depth = depth;
+      }
+    }
+  }
+
+  private void add(Route route, int order) {
+    List<String> segments = splitTemplate(route.getUri());
+    if (segments == null || !segments.stream().allMatch(RouteIndex::isSegmentLocal)) {
+      fallback.add(route);
+      fallbackOrder.add(order);
+      return;
+    }
+    Node node =
+        tries.computeIfAbsent(route.getMethod().toUpperCase(Locale.ROOT), m -> new Node(null));
+    node.first = Math.min(node.first, order);
+    int captures = 0;
+    for (String segment : segments) {
+      if (isStatic(segment)) {
+        node = node.statics.computeIfAbsent(segment, s -> new Node(null));
+      } else if (isParam(segment)) {
+        if (node.param == null) node.param = new Node(null);
+        node = node.param;
+        captures += 2;
+      } else {
+        String regex = Route.convertRawUriToRegex(segment);
+        node = node.patterns.computeIfAbsent(regex, r -> new Node(Pattern.compile(r)));
+        captures += 2 * node.pattern.matcher("").groupCount();
+      }
+      node.first = Math.min(node.first, order);
+    }
+    maxCaptures = Math.max(maxCaptures, captures);
+    if (node.route == null) {
+      node.route = route;
+      node.order = order;
+    }
+  }
+
+  /**
+   * Splits a route template on {@code /}, ignoring any that appear inside of a {@code {name:
+   * regex}} variable.
+   *
+   * @return the segments, or null if a variable contains a {@code /} or the braces don't balance
+   */
+  static List<String> splitTemplate(String template) {
+    List<String> segments = new ArrayList<String>();
+    int depth = 0;
+    int start = 0;
+    for (int i = 0; i < template.length(); i++) {
+      char c = template.charAt(i);
+      if (c == '{') {
+        depth++;
+      } else if (c == '}') {
+        if (--depth < 0) return null;
+      } else if (c == '/') {
+        if (depth > 0) return null;
+        segments.add(template.substring(start, i));
+        start = i + 1;
+      }
+    }
+    if (depth != 0) return null;
+    segments.add(template.substring(start));
+    return segments;
+  }
+
+  static boolean isStatic(String segment) {
+    for (int i = 0; i < segment.length(); i++) {
+      if (REGEX_META.indexOf(segment.charAt(i)) >= 0) return false;
+    }
+    return true;
+  }
+
+  static boolean isParam(String segment) {
+    Matcher m = Route.PATTERN_FOR_VARIABLE_PARTS_OF_ROUTE.matcher(segment);
+    return m.matches() && m.group(3) == null && m.group(1).indexOf('{') < 0;
+  }
+
+  /**
+   * Decides whether a template segment can be matched on its own. The literal parts and any
+   * variable regexes are checked conservatively for anything that could match a {@code /} or
+   * otherwise reach into a neighbouring segment.
+   */
+  static boolean isSegmentLocal(String segment) {
+    if (isStatic(segment) || isParam(segment)) {
+      return true;
+    }
+    Matcher m = Route.PATTERN_FOR_VARIABLE_PARTS_OF_ROUTE.matcher(segment);
+    StringBuilder literal = new StringBuilder();
+    int last = 0;
+    while (m.find()) {
+      literal.append(segment, last, m.start());
+      // stands in for the variable's group, which is always local when its regex is
+      literal.append('x');
+      if (m.group(3) != null && !isLocalRegex(m.group(3), true)) {
+        return false;
+      }
+      last = m.end();
+    }
+    literal.append(segment, last, segment.length());
+    return isLocalRegex(literal.toString(), false);
+  }
+
+  private static boolean isLocalRegex(String regex, boolean grouped) {
+    if (regex.isEmpty()) {
+      return true;
+    }
+    if ("*+?{".indexOf(regex.charAt(0)) >= 0) {
+      // a leading quantifier would apply to the preceding '/'
+      return false;
+    }
+    int parens = 0;
+    boolean inClass = false;
+    for (int i = 0; i < regex.length(); i++) {
+      char c = regex.charAt(i);
+      if (c == '\\') {
+        if (++i == regex.length()) return false;
+        char e = regex.charAt(i);
+        if ("dwsbB".indexOf(e) < 0 && (Character.isLetterOrDigit(e) || e == '/')) return false;
+      } else if (c == '/') {
+        return false;
+      } else if (inClass) {
+        if (c == ']') inClass = false;
+      } else if (c == '[') {
+        if (i + 1 < regex.length() && regex.charAt(i + 1) == '^') return false;
+        inClass = true;
+      } else if (c == '.' || c == '^' || c == '$') {
+        return false;
+      } else if (c == '(') {
+        parens++;
+      } else if (c == ')') {
+        if (--parens < 0) return false;
+      } else if (c == '|' && parens == 0 && !grouped) {
+        return false;
+      }
+    }
+    return parens == 0 && !inClass;
+  }
+
+  /** The state of a single lookup. */
+  private static final class Search {
+    final String path;
+    // offsets of each path segment, excluding the slashes
+    final int[] starts;
+    final int[] ends;
+    // parameter offsets along the branch currently being searched
+    final int[] captures;
+    int depth;
+    Node best;
+    int[] bestCaptures;
+    int bound = Integer.MAX_VALUE;
+
+    Search(String path, int maxCaptures) {
+      this.path = path;
+      int count = 1;
+      for (int i = 0; i < path.length(); i++) {
+        if (path.charAt(i) == '/') count++;
+      }
+      this.starts = new int[count];
+      this.ends = new int[count];
+      int segment = 0;
+      for (int i = 0; i < path.length(); i++) {
+        if (path.charAt(i) == '/') {
+          ends[segment] = i;
+          starts[++segment] = i + 1;
+        }
+      }
+      ends[segment] = path.length();
+      this.captures = new int[maxCaptures];
+    }
+  }
+
+  private static final class Node {
+    final Pattern pattern;
+    final Map<String, Node> statics = new HashMap<String, Node>();
+    final Map<String, Node> patterns = new LinkedHashMap<String, Node>();
+    Node param;
+    // lowest order of any route at or below this node, used to prune the search
+    int first = Integer.MAX_VALUE;
+    Route route;
+    int order = Integer.MAX_VALUE;
+
+    Node(Pattern pattern) {
+      this.pattern = pattern;
+    }
+  }
+}
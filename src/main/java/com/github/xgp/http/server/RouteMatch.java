@@ -0,0 +1,65 @@
+package com.github.xgp.http.server;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The result of routing a request: the matched {@link Route} and the offsets of its path parameters
+ * in the request path. The parameter map is only built if someone asks for it.
+ */
+final class RouteMatch {
+
+  private final Route route;
+  private final String path;
+  // start and end offsets into path for each parameter, in the order of Route.getParameters()
+  private final int[] offsets;
+  private Map<String, String> parameters;
+
+  RouteMatch(Route route, String path, int[] offsets) {
+    this.route = route;
+    this.path = path;
+    this.offsets = offsets;
+  }
+
+  Route route() {
+    return route;
+  }
+
+  /**
+   * Path parameters as they appear in the request path. This does not do any decoding, like {@link
+   * Route#getPathParametersEncoded}.
+   */
+  Map<String, String> parameters() {
+    if (parameters == null) {
+      List<String> names = route.getParameters();
+      if (names == null) {
+        parameters = Collections.emptyMap();
+      } else {
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < names.size() && 2 * i + 1 < offsets.length; i++) {
+          int start = offsets[2 * i];
+          map.put(names.get(i), start < 0 ? null : path.substring(start, offsets[2 * i + 1]));
+        }
+        parameters = map;
+      }
+    }
+    return parameters;
+  }
+
+  /** A single path parameter, as it appears in the request path, without building the map. */
+  String parameter(String name) {
+    if (parameters != null) {
+      return parameters.get(name);
+    }
+    List<String> names = route.getParameters();
+    // The last of repeated names wins, as in the map
+    int i = names == null ? -1 : names.lastIndexOf(name);
+    if (i < 0 || 2 * i + 1 >= offsets.length) {
+      return null;
+    }
+    int start = offsets[2 * i];
+    return start < 0 ? null : path.substring(start, offsets[2 * i + 1]);
+  }
+}
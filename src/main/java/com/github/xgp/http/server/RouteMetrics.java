@@ -0,0 +1,92 @@
+package com.github.xgp.http.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts and times the requests to a {@link Route}, by its template rather than the URIs it
+ * matched. A request is recorded when its exchange is closed, so the latency includes rendering and
+ * sending the response, and the completion of {@link AsyncHandler}s.
+ */
+public final class RouteMetrics {
+  private final String method;
+  private final String route;
+  private final LongAdder requests = new LongAdder();
+  // By the first digit of the status, 0 for responses that were never started
+  private final LongAdder[] statuses = new LongAdder[6];
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final LatencyHistogram latency = new LatencyHistogram();
+
+  RouteMetrics(String method, String route) {
+    this.method = method;
+    this.route = route;
+    for (int i = 0; i < statuses.length; i++) {
+      statuses[i] = new LongAdder();
+    }
+  }
+
+  public String getMethod() {
+    return method;
+  }
+
+  /** The route's template, such as {@code /users/{id}}. */
+  public String getRoute() {
+    return route;
+  }
+
+  /** The number of requests that have completed. */
+  public long getRequests() {
+    return requests.sum();
+  }
+
+  /**
+   * @param statusClass the first digit of the status, from 1 to 5, or 0 for requests that ended
+   *     without a response, such as when the client went away
+   * @return the number of completed requests with a status of the class
+   */
+  public long getStatusCount(int statusClass) {
+    return statusClass >= 0 && statusClass < statuses.length ? statuses[statusClass].sum() : 0;
+  }
+
+  /** The number of requests being handled now. */
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  /** The time from routing each request to closing its exchange. */
+  public LatencyHistogram getLatency() {
+    return latency;
+  }
+
+  void started() {
+    inFlight.incrementAndGet();
+  }
+
+  void finished(int status, long nanos) {
+    inFlight.decrementAndGet();
+    requests.increment();
+    int statusClass = status / 100;
+    statuses[statusClass > 0 && statusClass < statuses.length ? statusClass : 0].increment();
+    latency.record(nanos);
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%s %s requests=%d 1xx=%d 2xx=%d 3xx=%d 4xx=%d 5xx=%d inFlight=%d"
+            + " p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms",
+        method,
+        route,
+        getRequests(),
+        getStatusCount(1),
+        getStatusCount(2),
+        getStatusCount(3),
+        getStatusCount(4),
+        getStatusCount(5),
+        getInFlight(),
+        latency.getPercentile(50) / 1e6,
+        latency.getPercentile(90) / 1e6,
+        latency.getPercentile(99) / 1e6,
+        latency.getMax() / 1e6);
+  }
+}
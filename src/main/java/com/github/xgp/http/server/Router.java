@@ -1,26 +1,42 @@
 package com.github.xgp.http.server;
 
+import static java.net.HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
 import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
 import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 public class Router implements HttpHandler {
 
+  /** The default size, in bytes, of the largest body a {@link Handler} sends with its length. */
+  public static final int DEFAULT_MAX_BUFFERED_SIZE = 64 * 1024;
+
+  /** The default time, in milliseconds, an {@link AsyncHandler} has to complete its response. */
+  public static final long DEFAULT_ASYNC_TIMEOUT = 30000;
+
   private final List<Route> routes;
   private final Map<String, Transformer> transformers;
+  private volatile RouteIndex index;
+  private volatile Negotiator negotiator;
+  private Compression compression;
+  private int maxBufferedSize = DEFAULT_MAX_BUFFERED_SIZE;
+  private long asyncTimeout = DEFAULT_ASYNC_TIMEOUT;
+  private int asyncTimeoutStatus = HTTP_GATEWAY_TIMEOUT;
+  private boolean metricsEnabled = true;
 
   public Router() {
     this.routes = new ArrayList<Route>();
-    this.transformers = new HashMap<String, Transformer>();
+    this.transformers = new LinkedHashMap<String, Transformer>();
   }
 
   public List<Route> getRoutes() {
@@ -31,24 +47,124 @@ public class Router implements HttpHandler {
     return transformers;
   }
 
+  /**
+   * Adds a transformer for its content type. A route without its own transformer, whose handler
+   * doesn't set a {@code Content-Type}, uses the one that best matches the request's {@code
+   * Accept} header, or the first added if it is equally acceptable.
+   */
   public Router addTransformer(Transformer transformer) {
     transformers.put(transformer.contentType(), transformer);
     return this;
   }
 
+  public Compression getCompression() {
+    return compression;
+  }
+
+  /**
+   * Compress the bodies that {@link Handler}s render, when the client supports it. Null, the
+   * default, disables compression.
+   */
+  public Router setCompression(Compression compression) {
+    this.compression = compression;
+    return this;
+  }
+
+  public int getMaxBufferedSize() {
+    return maxBufferedSize;
+  }
+
+  /**
+   * Sets the size, in bytes, of the largest body that {@link Handler}s buffer, to send with a
+   * {@code Content-Length}. Larger bodies are streamed with chunked encoding. 0 streams them all.
+   */
+  public Router setMaxBufferedSize(int maxBufferedSize) {
+    this.maxBufferedSize = maxBufferedSize;
+    return this;
+  }
+
+  public long getAsyncTimeout() {
+    return asyncTimeout;
+  }
+
+  public int getAsyncTimeoutStatus() {
+    return asyncTimeoutStatus;
+  }
+
+  /**
+   * Sets how long an {@link AsyncHandler} has to complete its response, before a 504 is sent
+   * instead. 0 waits for as long as it takes.
+   */
+  public Router setAsyncTimeout(long timeout, TimeUnit unit) {
+    this.asyncTimeout = unit.toMillis(timeout);
+    return this;
+  }
+
+  /**
+   * Sets the status sent when an {@link AsyncHandler} times out: 504, the default, or 503 for
+   * clients that should retry.
+   */
+  public Router setAsyncTimeoutStatus(int status) {
+    if (status != HTTP_GATEWAY_TIMEOUT && status != HTTP_UNAVAILABLE) {
+      throw new IllegalArgumentException("The timeout status must be 503 or 504");
+    }
+    this.asyncTimeoutStatus = status;
+    return this;
+  }
+
+  public boolean isMetricsEnabled() {
+    return metricsEnabled;
+  }
+
+  /**
+   * Keeps {@link RouteMetrics} for each route, which is the default. Disabling them saves a couple
+   * of clock reads and counter updates per request.
+   */
+  public Router setMetricsEnabled(boolean metricsEnabled) {
+    this.metricsEnabled = metricsEnabled;
+    return this;
+  }
+
+  /** @return the metrics of each route, in the order the routes were added */
+  public List<RouteMetrics> getMetrics() {
+    List<RouteMetrics> metrics = new ArrayList<RouteMetrics>(routes.size());
+    for (Route route : routes) {
+      metrics.add(route.getMetrics());
+    }
+    return metrics;
+  }
+
+  /** Serves a plain text summary of the metrics of each route, a line per route, at the path. */
+  public Router addMetricsRoute(String path) {
+    return GET(
+        path,
+        (request, response) -> {
+          StringBuilder sb = new StringBuilder();
+          for (RouteMetrics metrics : getMetrics()) {
+            sb.append(metrics).append('\n');
+          }
+          response.header("Cache-Control", "no-store");
+          response.body(sb.toString());
+        },
+        Transformers.string());
+  }
+
   @Override
   public void handle(HttpExchange exchange) throws IOException {
-    Optional<Route> route = getRouteFor(exchange.getRequestMethod(), exchange.getRequestURI());
-    if (route.isPresent()) {
+    Optional<RouteMatch> match =
+        getRouteFor(exchange.getRequestMethod(), exchange.getRequestURI());
+    if (match.isPresent()) {
+      InternalHttpExchange ex = new InternalHttpExchange(exchange, match.get(), this);
       try {
-        route
-            .get()
-            .getHandler()
-            .handle(new InternalHttpExchange(exchange, route.get(), transformers));
+        match.get().route().getHandler().handle(ex);
       } catch (Exception e) {
         e.printStackTrace();
-        HttpExchanges.cannedRespond(
-            exchange, HTTP_INTERNAL_ERROR, "500 Internal Server Error: " + e.getMessage());
+        try {
+          HttpExchanges.cannedRespond(
+              ex, HTTP_INTERNAL_ERROR, "500 Internal Server Error: " + e.getMessage());
+        } finally {
+          ex.close();
+        }
       }
     } else {
       HttpExchanges.cannedRespond(
@@ -56,13 +172,41 @@ public class Router implements HttpHandler {
     }
   }
 
-  private Optional<Route> getRouteFor(String method, URI uri) {
-    for (Route route : routes) {
-      if (route.matches(method, uri.getPath())) {
-        return Optional.of(route);
+  private Optional<RouteMatch> getRouteFor(String method, URI uri) {
+    return index().find(method, uri.getPath());
+  }
+
+  /**
+   * The routes are compiled into a {@link RouteIndex} on first use. It is recompiled if routes have
+   * been added since, including directly to {@link #getRoutes()}.
+   */
+  private RouteIndex index() {
+    RouteIndex index = this.index;
+    if (index == null || index.size() != routes.size()) {
+      synchronized (this) {
+        index = this.index;
+        if (index == null || index.size() != routes.size()) {
+          index = new RouteIndex(routes);
+          this.index = index;
+        }
+      }
+    }
+    return index;
+  }
+
+  /** As with the routes, rebuilt if transformers have been added since it was last used. */
+  Negotiator negotiator() {
+    Negotiator negotiator = this.negotiator;
+    if (negotiator == null || negotiator.size() != transformers.size()) {
+      synchronized (this) {
+        negotiator = this.negotiator;
+        if (negotiator == null || negotiator.size() != transformers.size()) {
+          negotiator = new Negotiator(transformers);
+          this.negotiator = negotiator;
+        }
       }
     }
-    return Optional.empty();
+    return negotiator;
   }
 
   public Router addHandler(String method, String path, HttpHandler handler) {
@@ -4,27 +4,46 @@ import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpServer;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-/** Simple web framework server for the JDK built-in {@link com.sun.net.httpserver.HttpServer} */
+/**
+ * Simple web framework server for the JDK built-in {@link com.sun.net.httpserver.HttpServer}
+ *
+ * <p>Handlers run on an {@link Executor}. Unless one is provided, the server creates a {@link
+ * ServerExecutors#fixed()} pool and shuts it down when stopped. A provided executor, such as one
+ * from {@link ServerExecutors#virtual()}, is the caller's to shut down. Requests that an executor
+ * sheds under load are answered with a 503 by an {@link AbortImmediatelyFilter}.
+ */
 public class Server {
 
   private final int port;
   private final AtomicBoolean started;
   private final HttpServer server;
+  private final HttpContext context;
   private final Router router;
+  private final Executor executor;
+  private final boolean ownsExecutor;
 
   public Server(int port) {
     this(new Router(), port);
   }
 
   public Server(Router router, int port) {
+    this(router, port, null);
+  }
+
+  public Server(Router router, int port, Executor executor) {
     this.port = port;
     this.router = router;
     this.started = new AtomicBoolean(false);
+    this.ownsExecutor = executor == null;
+    this.executor = executor == null ? ServerExecutors.fixed() : executor;
     try {
       this.server = HttpServer.create(new InetSocketAddress(port), 0);
-      this.server.createContext("/", this.router);
+      this.context = this.server.createContext("/", this.router);
+      this.context.getFilters().add(new AbortImmediatelyFilter());
+      this.server.setExecutor(this.executor);
     } catch (IOException e) {
       throw new IllegalStateException("Unable to start HTTP server on port " + port, e);
     }
@@ -43,6 +62,23 @@ public class Server {
     }
   }
 
+  /**
+   * Serves the server's metrics in the Prometheus text format at the path, and starts counting the
+   * requests and bytes that pass through the router. See {@link MetricsHandler}.
+   *
+   * @return the handler, which can also render the metrics directly
+   */
+  public MetricsHandler enableMetrics(String path) {
+    if (started.get()) {
+      throw new IllegalStateException("Cannot enable metrics after server is started");
+    }
+    MetricsFilter filter = new MetricsFilter();
+    context.getFilters().add(filter);
+    MetricsHandler handler = new MetricsHandler(router, executor, filter);
+    router.addHandler("GET", path, handler);
+    return handler;
+  }
+
   /** Exposes the underlying HttpServer. */
   public HttpServer httpServer() {
     return this.server;
@@ -52,6 +88,11 @@ public class Server {
     return this.router;
   }
 
+  /** The executor that handlers run on. */
+  public Executor executor() {
+    return this.executor;
+  }
+
   public boolean isStarted() {
     return started.get();
   }
@@ -68,6 +109,9 @@ public class Server {
   public void stop() {
     if (started.get()) {
       server.stop(0);
+      if (ownsExecutor) {
+        ServerExecutors.shutdown(executor);
+      }
       started.set(false);
     }
   }
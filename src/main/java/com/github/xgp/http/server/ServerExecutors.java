@@ -0,0 +1,226 @@
+package com.github.xgp.http.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Static factories for the {@link Executor}s a {@link Server} can run its handlers on. All of them
+ * are bounded, and what happens when one is saturated is decided by its {@link OverloadPolicy}.
+ */
+public final class ServerExecutors {
+
+  /** What a saturated executor does with a new request. */
+  public enum OverloadPolicy {
+    /**
+     * Run the request on the calling thread, which is the server's dispatcher thread, so the server
+     * stops accepting new work until it catches up.
+     */
+    CALLER_RUNS,
+    /**
+     * Reject the request immediately with a 503 and a {@code Retry-After}. This relies on the
+     * {@link AbortImmediatelyFilter}, which {@link Server} installs.
+     */
+    SHED
+  }
+
+  /** Default number of threads for {@link #fixed()}. */
+  public static final int DEFAULT_THREADS =
+      Math.max(8, 2 * Runtime.getRuntime().availableProcessors());
+
+  /** Default number of requests that may wait for a thread in {@link #fixed()}. */
+  public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+  /** Default number of concurrent requests for {@link #virtual()}. */
+  public static final int DEFAULT_MAX_CONCURRENT = 10000;
+
+  // Prevent construction
+  private ServerExecutors() {}
+
+  /** A platform thread pool with {@link #DEFAULT_THREADS} and {@link #DEFAULT_QUEUE_CAPACITY}. */
+  public static ExecutorService fixed() {
+    return fixed(DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * A platform thread pool.
+   *
+   * @param threads number of handler threads
+   * @param queueCapacity number of requests that may wait for a thread
+   * @return the executor
+   */
+  public static ExecutorService fixed(int threads, int queueCapacity) {
+    return fixed(threads, queueCapacity, OverloadPolicy.CALLER_RUNS);
+  }
+
+  /**
+   * A platform thread pool.
+   *
+   * @param threads number of handler threads, which is also the in-flight limit
+   * @param queueCapacity number of requests that may wait for a thread
+   * @param policy what to do with requests once the threads and queue are full
+   * @return the executor
+   */
+  public static ExecutorService fixed(int threads, int queueCapacity, OverloadPolicy policy) {
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            60L,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(queueCapacity),
+            threadFactory("http-server-"),
+            (r, e) -> rejected(r, policy));
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /** @return true if this JDK can create virtual threads. */
+  public static boolean isVirtualSupported() {
+    return newVirtualThreadPerTaskExecutor != null;
+  }
+
+  /** A virtual thread per request, with at most {@link #DEFAULT_MAX_CONCURRENT} in flight. */
+  public static Executor virtual() {
+    return virtual(DEFAULT_MAX_CONCURRENT);
+  }
+
+  /**
+   * A virtual thread per request.
+   *
+   * @param maxConcurrent number of requests that may be in flight at once
+   * @return the executor
+   * @throws UnsupportedOperationException if this JDK does not support virtual threads
+   */
+  public static Executor virtual(int maxConcurrent) {
+    return virtual(maxConcurrent, OverloadPolicy.CALLER_RUNS);
+  }
+
+  /**
+   * A virtual thread per request.
+   *
+   * @param maxConcurrent number of requests that may be in flight at once
+   * @param policy what to do with requests over the limit
+   * @return the executor
+   * @throws UnsupportedOperationException if this JDK does not support virtual threads
+   */
+  public static Executor virtual(int maxConcurrent, OverloadPolicy policy) {
+    if (!isVirtualSupported()) {
+      throw new UnsupportedOperationException("Virtual threads are not supported by this JDK");
+    }
+    final ExecutorService executor;
+    try {
+      executor = (ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      throw new UnsupportedOperationException("Unable to create virtual thread executor", e);
+    }
+    return new LimitedExecutor(executor, maxConcurrent, policy);
+  }
+
+  /**
+   * Handles a request the executor had no room for. When shedding, the request still runs on the
+   * calling thread, but with {@link HttpExchanges#abortImmediately} set so that the {@link
+   * AbortImmediatelyFilter} responds before any handler does real work. This is required because
+   * the HttpServer can't handle the Executor rejecting execution of a runnable.
+   */
+  static void rejected(Runnable command, OverloadPolicy policy) {
+    if (policy == OverloadPolicy.SHED) {
+      HttpExchanges.abortImmediately.set(Boolean.TRUE);
+      try {
+        command.run();
+      } finally {
+        HttpExchanges.abortImmediately.remove();
+      }
+    } else {
+      command.run();
+    }
+  }
+
+  /** Limits the number of in flight tasks on an executor that doesn't queue. */
+  static class LimitedExecutor implements Executor {
+    private final ExecutorService executor;
+    private final int maxConcurrent;
+    private final Semaphore permits;
+    private final OverloadPolicy policy;
+
+    LimitedExecutor(ExecutorService executor, int maxConcurrent, OverloadPolicy policy) {
+      this.executor = executor;
+      this.maxConcurrent = maxConcurrent;
+      this.permits = new Semaphore(maxConcurrent);
+      this.policy = policy;
+    }
+
+    ExecutorService delegate() {
+      return executor;
+    }
+
+    /** The number of tasks in flight. */
+    int active() {
+      return maxConcurrent - permits.availablePermits();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+      if (!permits.tryAcquire()) {
+        rejected(command, policy);
+        return;
+      }
+      try {
+        executor.execute(
+            () -> {
+              try {
+                command.run();
+              } finally {
+                permits.release();
+              }
+            });
+      } catch (RuntimeException e) {
+        permits.release();
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Shuts down an executor created by this class.
+   *
+   * @param executor the executor
+   */
+  static void shutdown(Executor executor) {
+    if (executor instanceof LimitedExecutor) {
+      ((LimitedExecutor) executor).delegate().shutdown();
+    } else if (executor instanceof ExecutorService) {
+      ((ExecutorService) executor).shutdown();
+    }
+  }
+
+  static ThreadFactory threadFactory(final String prefix) {
+    final AtomicInteger count = new AtomicInteger(0);
+    return r -> {
+      Thread thread = new Thread(r, prefix + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  // Looked up reflectively so that this still runs on Java 8
+  private static final Method newVirtualThreadPerTaskExecutor;
+
+  static {
+    Method method = null;
+    try {
+      method = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      ((ExecutorService) method.invoke(null)).shutdown();
+    } catch (Throwable t) {
+      // Not available, or a preview feature that hasn't been enabled
+      method = null;
+    }
+    newVirtualThreadPerTaskExecutor = method;
+  }
+}
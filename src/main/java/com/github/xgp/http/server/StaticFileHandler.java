@@ -0,0 +1,292 @@
+package com.github.xgp.http.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * HTTP Handler that serves files from a directory. The request path, less this handler's context
+ * path, is resolved against the root directory. Requests that would escape the root are 404s.
+ *
+ * <p>Small files are kept in memory, in a cache bounded by total size and evicted least recently
+ * used first. Larger files are sent with {@link FileChannel#transferTo}, which leaves the JDK to
+ * pick the cheapest way to move the bytes to the response stream. {@code If-Modified-Since} and
+ * single byte {@code Range} requests are supported. Given {@link Compression} settings, cached
+ * files are also sent compressed to clients that accept it.
+ */
+public class StaticFileHandler implements HttpHandler {
+  private static final Logger log = Logger.getLogger(StaticFileHandler.class.getName());
+
+  /** Default size, in bytes, of the largest file that will be cached in memory. */
+  public static final int DEFAULT_MAX_CACHED_FILE_SIZE = 64 * 1024;
+
+  /** Default total size, in bytes, of all files cached in memory. */
+  public static final long DEFAULT_MAX_CACHE_SIZE = 16 * 1024 * 1024;
+
+  private final Path root;
+  private final int maxCachedFileSize;
+  private final long maxCacheSize;
+  private final Map<Path, CachedFile> cache;
+  private long cacheSize;
+  private final Compression compression;
+
+  /** @param root directory to serve files from */
+  public StaticFileHandler(Path root) {
+    this(root, DEFAULT_MAX_CACHED_FILE_SIZE, DEFAULT_MAX_CACHE_SIZE);
+  }
+
+  /**
+   * @param root directory to serve files from
+   * @param maxCachedFileSize size, in bytes, of the largest file to cache in memory. 0 disables
+   *     caching.
+   * @param maxCacheSize total size, in bytes, of all files cached in memory
+   */
+  public StaticFileHandler(Path root, int maxCachedFileSize, long maxCacheSize) {
+    this(root, maxCachedFileSize, maxCacheSize, null);
+  }
+
+  /**
+   * @param root directory to serve files from
+   * @param maxCachedFileSize size, in bytes, of the largest file to cache in memory. 0 disables
+   *     caching.
+   * @param maxCacheSize total size, in bytes, of all files cached in memory
+   * @param compression settings for compressing cached files, or null to never compress
+   */
+  public StaticFileHandler(
+      Path root, int maxCachedFileSize, long maxCacheSize, Compression compression) {
+    this.compression = compression;
+    this.root = root.toAbsolutePath().normalize();
+    this.maxCachedFileSize = maxCachedFileSize;
+    this.maxCacheSize = maxCacheSize;
+    this.cache = new LinkedHashMap<Path, CachedFile>(16, 0.75f, true);
+  }
+
+  @Override
+  public void handle(HttpExchange ex) throws IOException {
+    String method = ex.getRequestMethod();
+    if (!"GET".equals(method) && !"HEAD".equals(method)) {
+      ex.getResponseHeaders().set("Allow", "GET, HEAD");
+      HttpExchanges.cannedRespond(
+          ex, HttpURLConnection.HTTP_BAD_METHOD, "405: Method Not Allowed.");
+      return;
+    }
+
+    Path path = resolve(ex);
+    BasicFileAttributes attrs = null;
+    if (path != null) {
+      try {
+        attrs = Files.readAttributes(path, BasicFileAttributes.class);
+      } catch (NoSuchFileException e) {
+        // 404 below
+      }
+    }
+    if (attrs == null || !attrs.isRegularFile()) {
+      HttpExchanges.cannedRespond(ex, HttpURLConnection.HTTP_NOT_FOUND, "404: Not Found.");
+      return;
+    }
+
+    long lastModified = attrs.lastModifiedTime().toMillis();
+    long length = attrs.size();
+    HttpExchanges.setLastModified(ex, new Date(lastModified));
+    ex.getResponseHeaders().set("Accept-Ranges", "bytes");
+    Date ifModifiedSince = HttpExchanges.getIfModifiedSince(ex);
+    if (ifModifiedSince != null && lastModified / 1000 <= ifModifiedSince.getTime() / 1000) {
+      ex.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+      ex.close();
+      return;
+    }
+
+    long start = 0;
+    long end = length - 1;
+    int code = HttpURLConnection.HTTP_OK;
+    long[] range = parseRange(ex, length);
+    if (range == UNSATISFIABLE) {
+      ex.getResponseHeaders().set("Content-Range", "bytes */" + length);
+      ex.sendResponseHeaders(416, -1);
+      ex.close();
+      return;
+    } else if (range != null) {
+      start = range[0];
+      end = range[1];
+      code = HttpURLConnection.HTTP_PARTIAL;
+      ex.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + length);
+    }
+    long count = end - start + 1;
+
+    ex.getResponseHeaders().set("Content-Type", contentType(path));
+    if ("HEAD".equals(method)) {
+      // HttpServer won't take a length for HEAD, so the header has to be set by hand
+      ex.getResponseHeaders().set("Content-Length", Long.toString(count));
+      ex.sendResponseHeaders(code, -1);
+      ex.close();
+      return;
+    }
+    if (count == 0) {
+      ex.sendResponseHeaders(code, -1);
+      ex.close();
+      return;
+    }
+    CachedFile cached = cached(path, lastModified, length);
+    if (cached != null && compression != null && range == null) {
+      compression.send(ex, code, cached.bytes, cached.bytes.length);
+      ex.getResponseBody().close();
+      ex.close();
+      return;
+    }
+    ex.sendResponseHeaders(code, count);
+    OutputStream out = ex.getResponseBody();
+    if (cached != null) {
+      out.write(cached.bytes, (int) start, (int) count);
+    } else {
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        WritableByteChannel target = Channels.newChannel(out);
+        long position = start;
+        while (position <= end) {
+          long sent = channel.transferTo(position, end - position + 1, target);
+          if (sent <= 0) {
+            throw new IOException("File was truncated while being sent: " + path);
+          }
+          position += sent;
+        }
+      }
+    }
+    out.close();
+    ex.close();
+  }
+
+  /** @return the file for the request, or null if it would be outside of the root */
+  private Path resolve(HttpExchange ex) {
+    String requestPath = ex.getRequestURI().getPath();
+    String contextPath = ex.getHttpContext().getPath();
+    if (requestPath == null || !requestPath.startsWith(contextPath)) {
+      return null;
+    }
+    String relative = requestPath.substring(contextPath.length());
+    while (relative.startsWith("/")) {
+      relative = relative.substring(1);
+    }
+    Path path;
+    try {
+      path = root.resolve(relative).normalize();
+    } catch (InvalidPathException e) {
+      log.log(Level.FINE, "Invalid path requested: " + requestPath, e);
+      return null;
+    }
+    return path.startsWith(root) ? path : null;
+  }
+
+  static String contentType(Path path) {
+    String type = URLConnection.getFileNameMap().getContentTypeFor(path.getFileName().toString());
+    return type == null ? "application/octet-stream" : type;
+  }
+
+  private static final long[] UNSATISFIABLE = new long[0];
+
+  /**
+   * Parses a single byte range. Multiple ranges, and anything we don't understand, are ignored so
+   * the whole file is sent, as allowed by RFC 7233.
+   *
+   * @return the first and last byte positions, {@link #UNSATISFIABLE}, or null to send everything
+   */
+  static long[] parseRange(HttpExchange ex, long length) {
+    String range = ex.getRequestHeaders().getFirst("Range");
+    if (range == null || !range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+      return null;
+    }
+    String ifRange = ex.getRequestHeaders().getFirst("If-Range");
+    if (ifRange != null && !ifRange.equals(ex.getResponseHeaders().getFirst("Last-Modified"))) {
+      return null;
+    }
+    String spec = range.substring("bytes=".length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    try {
+      long start;
+      long end;
+      if (dash == 0) {
+        long suffix = Long.parseLong(spec.substring(1));
+        if (suffix == 0) {
+          return UNSATISFIABLE;
+        }
+        start = Math.max(0, length - suffix);
+        end = length - 1;
+      } else {
+        start = Long.parseLong(spec.substring(0, dash));
+        end = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+        if (end < start) {
+          return null;
+        }
+        if (start >= length) {
+          return UNSATISFIABLE;
+        }
+        end = Math.min(end, length - 1);
+      }
+      return new long[] {start, end};
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /** @return the cached contents of the file, loading them if they are small enough */
+  private CachedFile cached(Path path, long lastModified, long length) throws IOException {
+    // A file that can't fit in the cache would only evict everything else, and then itself
+    if (length > maxCachedFileSize || length > maxCacheSize) {
+      return null;
+    }
+    synchronized (cache) {
+      CachedFile cached = cache.get(path);
+      if (cached != null && cached.lastModified == lastModified && cached.bytes.length == length) {
+        return cached;
+      }
+    }
+    byte[] bytes = Files.readAllBytes(path);
+    if (bytes.length != length) {
+      // changed while we were looking at it. serve it from disk this time.
+      return null;
+    }
+    CachedFile cached = new CachedFile(bytes, lastModified);
+    synchronized (cache) {
+      CachedFile old = cache.put(path, cached);
+      if (old != null) {
+        cacheSize -= old.bytes.length;
+      }
+      cacheSize += bytes.length;
+      Iterator<CachedFile> it = cache.values().iterator();
+      while (cacheSize > maxCacheSize && it.hasNext()) {
+        cacheSize -= it.next().bytes.length;
+        it.remove();
+      }
+    }
+    return cached;
+  }
+
+  private static class CachedFile {
+    final byte[] bytes;
+    final long lastModified;
+
+    CachedFile(byte[] bytes, long lastModified) {
+      this.bytes = bytes;
+      this.lastModified = lastModified;
+    }
+  }
+}
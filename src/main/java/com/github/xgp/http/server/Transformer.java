@@ -2,11 +2,26 @@ package com.github.xgp.http.server;
 
 import java.io.IOException;
 
+/**
+ * Renders a response body to {@link Response#stream}. The stream is buffered by the {@link
+ * Handler}, so a transformer can write as it goes rather than building the whole body first.
+ */
 public interface Transformer {
 
   default String contentType() {
     return "application/octet-stream";
   }
 
+  /**
+   * The number of bytes {@link #render} will write for the object, if it can be told without
+   * rendering it. A large body of known length is sent with it, rather than chunked, and must then
+   * be exactly that long.
+   *
+   * @return the length, or -1 if it isn't known
+   */
+  default long contentLength(Object object) {
+    return -1;
+  }
+
   void render(Object object, Response response) throws IOException;
 }
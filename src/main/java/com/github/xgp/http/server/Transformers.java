@@ -1,10 +1,28 @@
 package com.github.xgp.http.server;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.stream.BaseStream;
 
 public class Transformers {
 
+  // Strings longer than this are encoded a piece at a time, rather than copied whole into bytes
+  private static final int MAX_ENCODED_SIZE = 8192;
+
+  /**
+   * Writes the {@code toString()} of the body as UTF-8. An {@link Iterator} or {@link
+   * java.util.stream.Stream} body is written one element per line, as with {@link #lines}.
+   */
   public static Transformer string() {
     return new Transformer() {
       @Override
@@ -14,10 +32,122 @@ public class Transformers {
 
       @Override
       public void render(Object object, Response response) throws IOException {
-        OutputStream output = response.stream();
-        output.write(object.toString().getBytes());
-        output.flush();
+        if (object instanceof Iterator || object instanceof BaseStream) {
+          lines().render(object, response);
+        } else {
+          write(object.toString(), response.stream());
+        }
+      }
+    };
+  }
+
+  /**
+   * Writes a {@code byte[]}, {@link ByteBuffer}, {@link InputStream} or file {@link Path} body as
+   * it is. The length of all but a stream is known up front.
+   */
+  public static Transformer bytes() {
+    return new Transformer() {
+      @Override
+      public long contentLength(Object object) {
+        if (object instanceof byte[]) {
+          return ((byte[]) object).length;
+        } else if (object instanceof ByteBuffer) {
+          return ((ByteBuffer) object).remaining();
+        } else if (object instanceof Path) {
+          try {
+            return Files.size((Path) object);
+          } catch (IOException e) {
+            return -1;
+          }
+        }
+        return -1;
+      }
+
+      @Override
+      public void render(Object object, Response response) throws IOException {
+        if (object instanceof byte[]) {
+          response.stream().write((byte[]) object);
+        } else if (object instanceof ByteBuffer) {
+          ByteBuffer buffer = ((ByteBuffer) object).duplicate();
+          while (buffer.hasRemaining()) {
+            response.channel().write(buffer);
+          }
+        } else if (object instanceof InputStream) {
+          try (InputStream in = (InputStream) object) {
+            byte[] buf = new byte[MAX_ENCODED_SIZE];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+              response.stream().write(buf, 0, n);
+            }
+          }
+        } else if (object instanceof Path) {
+          Files.copy((Path) object, response.stream());
+        } else {
+          throw new IllegalArgumentException("Not a byte body: " + object.getClass().getName());
+        }
+      }
+    };
+  }
+
+  /** Writes the elements of a body one per line, as with {@link #stream}. */
+  public static Transformer lines() {
+    return stream(string(), "\n");
+  }
+
+  /**
+   * Writes the elements of an {@link Iterator}, {@link Iterable}, array or {@link
+   * java.util.stream.Stream} body one at a time with another transformer, so a large result is
+   * never held in memory whole. A stream is closed once it has been written.
+   *
+   * @param element the transformer for each element, which also gives the content type
+   * @param separator written between elements
+   */
+  public static Transformer stream(Transformer element, String separator) {
+    final byte[] sep = separator.getBytes(StandardCharsets.UTF_8);
+    return new Transformer() {
+      @Override
+      public String contentType() {
+        return element.contentType();
+      }
+
+      @Override
+      public void render(Object object, Response response) throws IOException {
+        try {
+          Iterator<?> it = iterator(object);
+          OutputStream output = response.stream();
+          boolean first = true;
+          while (it.hasNext()) {
+            if (!first) output.write(sep);
+            element.render(it.next(), response);
+            first = false;
+          }
+        } finally {
+          if (object instanceof BaseStream) ((BaseStream<?, ?>) object).close();
+        }
       }
     };
   }
+
+  private static Iterator<?> iterator(Object object) {
+    if (object instanceof Iterator) {
+      return (Iterator<?>) object;
+    } else if (object instanceof BaseStream) {
+      return ((BaseStream<?, ?>) object).iterator();
+    } else if (object instanceof Iterable) {
+      return ((Iterable<?>) object).iterator();
+    } else if (object instanceof Object[]) {
+      return Arrays.asList((Object[]) object).iterator();
+    }
+    return Collections.singleton(object).iterator();
+  }
+
+  private static void write(String s, OutputStream output) throws IOException {
+    if (s.length() <= MAX_ENCODED_SIZE) {
+      output.write(s.getBytes(StandardCharsets.UTF_8));
+    } else {
+      Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+      writer.write(s);
+      writer.flush();
+    }
+  }
 }
@@ -0,0 +1,403 @@
+package com.github.xgp.http.server;
+
+import com.github.xgp.util.BackOff;
+import com.github.xgp.util.ExponentialBackOff;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The servers a {@link ReverseProxyHandler} balances requests across, and their health.
+ *
+ * <p>An upstream that fails {@code maxFailures} requests in a row, by not answering or answering
+ * with a 502, 503 or 504, is ejected. It is let back in after a delay from its {@link BackOff},
+ * which grows each time it is ejected again and is reset by a successful request. If every
+ * upstream is ejected, the one due back soonest is used rather than failing outright. Optionally,
+ * each upstream is also probed with a GET on a fixed interval, ejecting it when the probe fails and
+ * letting it back in as soon as one succeeds.
+ *
+ * <pre>{@code
+ * Upstreams upstreams =
+ *     new Upstreams.Builder()
+ *         .add(URI.create("http://backend-1:8080/api"))
+ *         .add(URI.create("http://backend-2:8080/api"))
+ *         .strategy(Upstreams.Strategy.LEAST_IN_FLIGHT)
+ *         .healthCheck("/health", 5000)
+ *         .build();
+ * }</pre>
+ */
+public class Upstreams implements Closeable {
+  private static final Logger log = Logger.getLogger(Upstreams.class.getName());
+
+  /** How an upstream is chosen for a request. */
+  public enum Strategy {
+    /** Each upstream in turn. */
+    ROUND_ROBIN,
+    /** The upstream with the fewest requests in flight, taking turns between ties. */
+    LEAST_IN_FLIGHT,
+    /**
+     * The upstream the request's hash key maps to on a hash ring, so that the same key keeps going
+     * to the same upstream while it is available.
+     */
+    CONSISTENT_HASH
+  }
+
+  /** Default number of consecutive failures after which an upstream is ejected. */
+  public static final int DEFAULT_MAX_FAILURES = 3;
+
+  /** Default timeout, in milliseconds, for health probes. */
+  public static final int DEFAULT_PROBE_TIMEOUT = 2000;
+
+  // Points on the hash ring per upstream, to spread keys evenly
+  private static final int VIRTUAL_NODES = 160;
+
+  private final List<Upstream> upstreams;
+  private final Strategy strategy;
+  private final int maxFailures;
+  private final NavigableMap<Integer, Upstream> ring;
+  private final AtomicInteger next = new AtomicInteger();
+  private final String healthCheckPath;
+  private final ScheduledExecutorService prober;
+
+  protected Upstreams(Builder builder) {
+    if (builder.uris.isEmpty()) {
+      throw new IllegalArgumentException("At least one upstream is required");
+    }
+    List<Upstream> list = new ArrayList<Upstream>();
+    for (URI uri : builder.uris) {
+      list.add(new Upstream(uri, builder.backOff.get()));
+    }
+    this.upstreams = Collections.unmodifiableList(list);
+    this.strategy = builder.strategy;
+    this.maxFailures = builder.maxFailures;
+    this.ring = new TreeMap<Integer, Upstream>();
+    if (strategy == Strategy.CONSISTENT_HASH) {
+      for (Upstream upstream : upstreams) {
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+          ring.put(hash(upstream.uri + "#" + i), upstream);
+        }
+      }
+    }
+    this.healthCheckPath = builder.healthCheckPath;
+    if (healthCheckPath != null) {
+      this.prober =
+          Executors.newSingleThreadScheduledExecutor(
+              ServerExecutors.threadFactory("upstream-health-"));
+      prober.scheduleWithFixedDelay(
+          this::probeAll, 0, builder.healthCheckInterval, TimeUnit.MILLISECONDS);
+    } else {
+      this.prober = null;
+    }
+  }
+
+  /** @return a single upstream, which is never ejected as there is nothing to fall back to */
+  public static Upstreams of(URI uri) {
+    return new Builder().add(uri).build();
+  }
+
+  public List<Upstream> getUpstreams() {
+    return upstreams;
+  }
+
+  public Strategy getStrategy() {
+    return strategy;
+  }
+
+  /**
+   * Chooses an upstream for a request.
+   *
+   * @param key the request's hash key, which is only used by {@link Strategy#CONSISTENT_HASH}
+   * @param exclude an upstream to avoid if there is any other, or null
+   * @return the upstream
+   */
+  public Upstream choose(String key, Upstream exclude) {
+    if (upstreams.size() == 1) {
+      return upstreams.get(0);
+    }
+    long now = System.currentTimeMillis();
+    Upstream chosen = null;
+    switch (strategy) {
+      case ROUND_ROBIN:
+        int start = next.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0; i < upstreams.size() && chosen == null; i++) {
+          Upstream upstream = upstreams.get((start + i) % upstreams.size());
+          if (upstream != exclude && upstream.isAvailable(now)) chosen = upstream;
+        }
+        break;
+      case LEAST_IN_FLIGHT:
+        int offset = next.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0; i < upstreams.size(); i++) {
+          Upstream upstream = upstreams.get((offset + i) % upstreams.size());
+          if (upstream != exclude
+              && upstream.isAvailable(now)
+              && (chosen == null || upstream.inFlight() < chosen.inFlight())) {
+            chosen = upstream;
+          }
+        }
+        break;
+      case CONSISTENT_HASH:
+        int h = hash(key == null ? "" : key);
+        for (Map.Entry<Integer, Upstream> e : ring.tailMap(h, true).entrySet()) {
+          if (e.getValue() != exclude && e.getValue().isAvailable(now)) {
+            chosen = e.getValue();
+            break;
+          }
+        }
+        for (Map.Entry<Integer, Upstream> e : ring.headMap(h, false).entrySet()) {
+          if (chosen != null) break;
+          if (e.getValue() != exclude && e.getValue().isAvailable(now)) chosen = e.getValue();
+        }
+        break;
+    }
+    if (chosen != null) {
+      return chosen;
+    }
+    // Everything is ejected. Fall back to whichever is due back soonest.
+    for (Upstream upstream : upstreams) {
+      if (upstream != exclude && (chosen == null || upstream.ejectedUntil < chosen.ejectedUntil)) {
+        chosen = upstream;
+      }
+    }
+    return chosen != null ? chosen : exclude;
+  }
+
+  /** Records the outcome of a request that was sent to an upstream. */
+  void completed(Upstream upstream, boolean success) {
+    upstream.inFlight.decrementAndGet();
+    if (success) {
+      upstream.succeeded();
+    } else {
+      upstream.failed.increment();
+      upstream.failed(maxFailures);
+    }
+  }
+
+  private void probeAll() {
+    for (Upstream upstream : upstreams) {
+      boolean healthy = probe(upstream);
+      if (healthy) {
+        upstream.succeeded();
+      } else {
+        upstream.failed(1);
+      }
+    }
+  }
+
+  private boolean probe(Upstream upstream) {
+    HttpURLConnection conn = null;
+    try {
+      URI uri = upstream.uri;
+      String base = uri.getPath();
+      if (base.endsWith("/")) base = base.substring(0, base.length() - 1);
+      URI probe = new URI(uri.getScheme(), uri.getAuthority(), base + healthCheckPath, null, null);
+      conn = (HttpURLConnection) probe.toURL().openConnection();
+      conn.setConnectTimeout(DEFAULT_PROBE_TIMEOUT);
+      conn.setReadTimeout(DEFAULT_PROBE_TIMEOUT);
+      conn.setInstanceFollowRedirects(false);
+      int code = conn.getResponseCode();
+      InputStream in = code >= 400 ? conn.getErrorStream() : conn.getInputStream();
+      if (in != null) {
+        // Read the body so that the connection can be kept alive
+        byte[] buf = new byte[1024];
+        while (in.read(buf) != -1) {}
+        in.close();
+      }
+      return code < 500;
+    } catch (IOException | URISyntaxException | RuntimeException e) {
+      log.log(Level.FINE, "Health check failed for " + upstream, e);
+      if (conn != null) conn.disconnect();
+      return false;
+    }
+  }
+
+  /** Stops the health probes, if there are any. */
+  @Override
+  public void close() {
+    if (prober != null) {
+      prober.shutdownNow();
+    }
+  }
+
+  /** FNV-1a, with a final mix so that similar keys land far apart on the ring. */
+  static int hash(String key) {
+    int h = 0x811c9dc5;
+    byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+    for (byte b : bytes) {
+      h ^= b;
+      h *= 0x01000193;
+    }
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  /** One upstream server, and what is known of its health. */
+  public static class Upstream {
+    private final URI uri;
+    private final BackOff backOff;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private int failures = 0;
+    private volatile long ejectedUntil = 0;
+
+    Upstream(URI uri, BackOff backOff) {
+      if (uri.getScheme() == null || uri.getHost() == null || uri.getPath() == null) {
+        throw new IllegalArgumentException("upstreams must contain a scheme, host, and path");
+      }
+      this.uri = uri;
+      this.backOff = backOff;
+    }
+
+    /** @return the scheme, host, and path requests are proxied to */
+    public URI uri() {
+      return uri;
+    }
+
+    /** @return the number of requests to this upstream that haven't completed */
+    public int inFlight() {
+      return inFlight.get();
+    }
+
+    /** @return the number of requests sent to this upstream */
+    public long requests() {
+      return requests.sum();
+    }
+
+    /** @return the number of requests to this upstream that failed */
+    public long failures() {
+      return failed.sum();
+    }
+
+    /** @return true if requests may be sent to this upstream */
+    public boolean isAvailable() {
+      return isAvailable(System.currentTimeMillis());
+    }
+
+    boolean isAvailable(long now) {
+      return ejectedUntil <= now;
+    }
+
+    /** Counts a request that is about to be sent. */
+    void started() {
+      inFlight.incrementAndGet();
+      requests.increment();
+    }
+
+    synchronized void succeeded() {
+      failures = 0;
+      if (ejectedUntil != 0) {
+        log.info("Upstream " + uri + " is back in service");
+        ejectedUntil = 0;
+        try {
+          backOff.reset();
+        } catch (IOException e) {
+          // ExponentialBackOff doesn't throw
+        }
+      }
+    }
+
+    synchronized void failed(int maxFailures) {
+      long now = System.currentTimeMillis();
+      if (ejectedUntil > now) {
+        // Already ejected, by requests that were in flight together
+        return;
+      }
+      failures++;
+      // Once ejected, a single failure on readmission ejects it again, for longer
+      if (failures >= maxFailures || ejectedUntil != 0 && ejectedUntil <= now) {
+        long delay = backOff.nextBackOffMillis();
+        if (delay == BackOff.STOP) {
+          delay = ExponentialBackOff.DEFAULT_MAX_INTERVAL_MILLIS;
+        }
+        ejectedUntil = now + delay;
+        failures = 0;
+        log.warning("Ejected upstream " + uri + " for " + delay + "ms");
+      }
+    }
+
+    @Override
+    public String toString() {
+      return uri.toString();
+    }
+  }
+
+  /** Builder for {@link Upstreams}. */
+  public static class Builder {
+    private final List<URI> uris = new ArrayList<URI>();
+    private Strategy strategy = Strategy.ROUND_ROBIN;
+    private int maxFailures = DEFAULT_MAX_FAILURES;
+    private Supplier<BackOff> backOff = ExponentialBackOff::new;
+    private String healthCheckPath;
+    private long healthCheckInterval;
+
+    public Builder() {}
+
+    public Upstreams build() {
+      return new Upstreams(this);
+    }
+
+    /** Adds an upstream, which must contain a scheme, host, and path. */
+    public Builder add(URI uri) {
+      uris.add(uri);
+      return this;
+    }
+
+    /** Sets how upstreams are chosen. Defaults to {@link Strategy#ROUND_ROBIN}. */
+    public Builder strategy(Strategy strategy) {
+      this.strategy = strategy;
+      return this;
+    }
+
+    /** Sets the number of consecutive failures after which an upstream is ejected. */
+    public Builder maxFailures(int maxFailures) {
+      if (maxFailures < 1) {
+        throw new IllegalArgumentException("maxFailures must be at least 1");
+      }
+      this.maxFailures = maxFailures;
+      return this;
+    }
+
+    /**
+     * Sets the back off each upstream is given, which decides how long it stays ejected. Defaults
+     * to an {@link ExponentialBackOff}.
+     */
+    public Builder backOff(Supplier<BackOff> backOff) {
+      this.backOff = backOff;
+      return this;
+    }
+
+    /**
+     * Probes each upstream with a GET on a fixed interval. Any response below 500 is healthy.
+     *
+     * @param path path of the probe, relative to the upstream's path
+     * @param intervalMillis time between probes
+     */
+    public Builder healthCheck(String path, long intervalMillis) {
+      this.healthCheckPath = path;
+      this.healthCheckInterval = intervalMillis;
+      return this;
+    }
+  }
+}
@@ -0,0 +1,339 @@
+package com.github.xgp.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * A bounded pool of {@link Deflater}s and {@link Inflater}s, and gzip streams that use them. Each
+ * one holds a native zlib context that is otherwise only freed by {@code end()} or the garbage
+ * collector, so allocating one per request lets native memory grow under load. Borrowed instances
+ * must be released. The streams do this when they are closed. Instances released to a full pool
+ * are ended immediately.
+ *
+ * <p>The size of the {@link #shared()} pool can be set with the {@value #POOL_SIZE_PROPERTY} system
+ * property.
+ */
+public class ZlibPool {
+
+  public static final String POOL_SIZE_PROPERTY = "zlib.pool.size";
+
+  /** Default number of idle deflaters, and of idle inflaters, that are kept. */
+  public static final int DEFAULT_POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+
+  private static final ZlibPool shared =
+      new ZlibPool(Integer.getInteger(POOL_SIZE_PROPERTY, DEFAULT_POOL_SIZE));
+
+  /** @return the pool shared by the http client and server. */
+  public static ZlibPool shared() {
+    return shared;
+  }
+
+  private final BlockingQueue<Deflater> deflaters;
+  private final BlockingQueue<Inflater> inflaters;
+
+  /** @param size the number of idle deflaters, and of idle inflaters, to keep */
+  public ZlibPool(int size) {
+    this.deflaters = new ArrayBlockingQueue<Deflater>(Math.max(1, size));
+    this.inflaters = new ArrayBlockingQueue<Inflater>(Math.max(1, size));
+  }
+
+  /**
+   * Borrows a deflater that writes raw deflate data, with no zlib header or checksum.
+   *
+   * @param level the compression level
+   * @return the deflater
+   */
+  public Deflater deflater(int level) {
+    Deflater deflater = deflaters.poll();
+    if (deflater == null) {
+      deflater = new Deflater(level, true);
+    } else {
+      deflater.setLevel(level);
+    }
+    return deflater;
+  }
+
+  /** Returns a deflater to the pool. It must not be used afterwards. */
+  public void release(Deflater deflater) {
+    deflater.reset();
+    if (!deflaters.offer(deflater)) {
+      deflater.end();
+    }
+  }
+
+  /** @return a borrowed inflater that reads raw deflate data, with no zlib header or checksum */
+  public Inflater inflater() {
+    Inflater inflater = inflaters.poll();
+    return inflater == null ? new Inflater(true) : inflater;
+  }
+
+  /** Returns an inflater to the pool. It must not be used afterwards. */
+  public void release(Inflater inflater) {
+    inflater.reset();
+    if (!inflaters.offer(inflater)) {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Like {@link java.util.zip.GZIPOutputStream}, but with a pooled deflater that is released when
+   * the stream is closed.
+   *
+   * @param out stream to write the compressed data to
+   * @param level the compression level
+   * @return the stream
+   * @throws IOException if the gzip header can't be written
+   */
+  public OutputStream gzip(OutputStream out, int level) throws IOException {
+    Deflater deflater = deflater(level);
+    try {
+      return new GzipOutputStream(out, deflater);
+    } catch (IOException e) {
+      release(deflater);
+      throw e;
+    }
+  }
+
+  /**
+   * Like {@link java.util.zip.GZIPInputStream}, but with a pooled inflater that is released when
+   * the stream is closed.
+   *
+   * @param in stream to read compressed data from
+   * @return the stream
+   * @throws IOException if the gzip header can't be read
+   */
+  public InputStream gunzip(InputStream in) throws IOException {
+    Inflater inflater = inflater();
+    try {
+      return new GzipInputStream(in, inflater);
+    } catch (IOException e) {
+      release(inflater);
+      throw e;
+    }
+  }
+
+  private static final int GZIP_MAGIC = 0x8b1f;
+  private static final int FHCRC = 2;
+  private static final int FEXTRA = 4;
+  private static final int FNAME = 8;
+  private static final int FCOMMENT = 16;
+  private static final byte[] GZIP_HEADER = {
+    (byte) GZIP_MAGIC, (byte) (GZIP_MAGIC >> 8), Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+  };
+
+  private class GzipOutputStream extends DeflaterOutputStream {
+    private final CRC32 crc = new CRC32();
+    private boolean closed = false;
+
+    GzipOutputStream(OutputStream out, Deflater deflater) throws IOException {
+      super(out, deflater, 512);
+      out.write(GZIP_HEADER);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      ensureOpen();
+      super.write(b, off, len);
+      crc.update(b, off, len);
+    }
+
+    @Override
+    public void finish() throws IOException {
+      ensureOpen();
+      if (!def.finished()) {
+        def.finish();
+        while (!def.finished()) {
+          deflate();
+        }
+        byte[] trailer = new byte[8];
+        writeInt((int) crc.getValue(), trailer, 0);
+        writeInt((int) def.getBytesRead(), trailer, 4);
+        out.write(trailer);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!closed) {
+        try {
+          super.close();
+        } finally {
+          closed = true;
+          release(def);
+        }
+      }
+    }
+
+    // Once closed, the deflater is back in the pool, and may belong to another stream
+    private void ensureOpen() throws IOException {
+      if (closed) {
+        throw new IOException("Stream closed");
+      }
+    }
+
+    private void writeInt(int i, byte[] buf, int offset) {
+      buf[offset] = (byte) i;
+      buf[offset + 1] = (byte) (i >> 8);
+      buf[offset + 2] = (byte) (i >> 16);
+      buf[offset + 3] = (byte) (i >> 24);
+    }
+  }
+
+  private class GzipInputStream extends InflaterInputStream {
+    private final CRC32 crc = new CRC32();
+    private boolean eos = false;
+    private boolean closed = false;
+
+    GzipInputStream(InputStream in, Inflater inflater) throws IOException {
+      super(in, inflater, 512);
+      readHeader(in);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (closed) {
+        throw new IOException("Stream closed");
+      }
+      if (eos) {
+        return -1;
+      }
+      int n = super.read(b, off, len);
+      if (n == -1) {
+        if (readTrailer()) {
+          eos = true;
+        } else {
+          return read(b, off, len);
+        }
+      } else {
+        crc.update(b, off, n);
+      }
+      return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!closed) {
+        try {
+          super.close();
+        } finally {
+          closed = true;
+          eos = true;
+          release(inf);
+        }
+      }
+    }
+
+    /** @return the number of bytes in the header */
+    private int readHeader(InputStream stream) throws IOException {
+      CheckedInputStream in = new CheckedInputStream(stream, crc);
+      crc.reset();
+      if (readUShort(in) != GZIP_MAGIC) {
+        throw new ZipException("Not in GZIP format");
+      }
+      if (readUByte(in) != Deflater.DEFLATED) {
+        throw new ZipException("Unsupported compression method");
+      }
+      int flags = readUByte(in);
+      // modification time, extra flags and operating system
+      skipBytes(in, 6);
+      int n = 10;
+      if ((flags & FEXTRA) == FEXTRA) {
+        int m = readUShort(in);
+        skipBytes(in, m);
+        n += m + 2;
+      }
+      if ((flags & FNAME) == FNAME) {
+        do {
+          n++;
+        } while (readUByte(in) != 0);
+      }
+      if ((flags & FCOMMENT) == FCOMMENT) {
+        do {
+          n++;
+        } while (readUByte(in) != 0);
+      }
+      if ((flags & FHCRC) == FHCRC) {
+        int v = (int) crc.getValue() & 0xffff;
+        if (readUShort(in) != v) {
+          throw new ZipException("Corrupt GZIP header");
+        }
+        n += 2;
+      }
+      crc.reset();
+      return n;
+    }
+
+    /** @return true if this was the last member of the stream */
+    private boolean readTrailer() throws IOException {
+      InputStream stream = this.in;
+      int remaining = inf.getRemaining();
+      if (remaining > 0) {
+        stream =
+            new SequenceInputStream(
+                new ByteArrayInputStream(buf, len - remaining, remaining),
+                new FilterInputStream(stream) {
+                  @Override
+                  public void close() throws IOException {}
+                });
+      }
+      if (readUInt(stream) != crc.getValue()
+          || readUInt(stream) != (inf.getBytesWritten() & 0xffffffffL)) {
+        throw new ZipException("Corrupt GZIP trailer");
+      }
+      // If there are more bytes, they may be another gzip member
+      if (this.in.available() > 0 || remaining > 26) {
+        int m = 8;
+        try {
+          m += readHeader(stream);
+        } catch (IOException e) {
+          return true;
+        }
+        inf.reset();
+        if (remaining > m) {
+          inf.setInput(buf, len - remaining + m, remaining - m);
+        }
+        return false;
+      }
+      return true;
+    }
+
+    private long readUInt(InputStream in) throws IOException {
+      long s = readUShort(in);
+      return ((long) readUShort(in) << 16) | s;
+    }
+
+    private int readUShort(InputStream in) throws IOException {
+      int b = readUByte(in);
+      return (readUByte(in) << 8) | b;
+    }
+
+    private int readUByte(InputStream in) throws IOException {
+      int b = in.read();
+      if (b == -1) {
+        throw new EOFException();
+      }
+      return b;
+    }
+
+    private void skipBytes(InputStream in, int n) throws IOException {
+      while (n > 0) {
+        readUByte(in);
+        n--;
+      }
+    }
+  }
+}
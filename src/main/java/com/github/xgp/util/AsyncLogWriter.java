@@ -0,0 +1,190 @@
+package com.github.xgp.util;
+
+import java.io.PrintWriter;
+import java.text.DateFormat;
+import java.text.FieldPosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes {@link Log} records on a background thread. Callers queue a record holding the formatted
+ * message and the time in a {@link RingBuffer}, and the thread formats the timestamp and writes
+ * records in batches, flushing once the buffer has been drained, so that logging never locks the
+ * stream on the calling thread.
+ */
+final class AsyncLogWriter implements Runnable {
+  /** The most records written between flushes, so a flood of logging still reaches the stream. */
+  static final int MAX_BATCH = 1024;
+
+  private static final long MAX_PARK = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final long BLOCK_PARK = TimeUnit.MICROSECONDS.toNanos(100);
+
+  private final RingBuffer<Record> buffer;
+  private final boolean block;
+  private final PrintWriter out;
+  private final PrintWriter err;
+  private final Thread thread;
+  private final LongAdder dropped = new LongAdder();
+  private volatile boolean running = true;
+  private volatile boolean sleeping;
+
+  // Only used by the writer thread
+  private final DateFormat dateFormat = new SimpleDateFormat(Log.DATE_FORMAT);
+  private final Date date = new Date();
+  private final StringBuffer line = new StringBuffer(256);
+  private final FieldPosition field = new FieldPosition(0);
+  private long reportedDrops;
+
+  /**
+   * @param capacity the number of records that may be queued
+   * @param block true to wait for room when the buffer is full, false to drop the record
+   */
+  AsyncLogWriter(int capacity, boolean block, PrintWriter out, PrintWriter err) {
+    this.buffer = new RingBuffer<Record>(capacity);
+    this.block = block;
+    this.out = out;
+    this.err = err;
+    this.thread = new Thread(this, "log-writer");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /** @return false if the writer has stopped, and the caller should write the record itself */
+  boolean log(String category, Log.Level level, Throwable throwable, String message) {
+    return offer(new Record(null, category, level, throwable, message));
+  }
+
+  /** @return false if the writer has stopped, and the caller should write the line itself */
+  boolean println(PrintWriter target, String msg) {
+    return offer(new Record(target, null, null, null, msg));
+  }
+
+  private boolean offer(Record record) {
+    if (!running) {
+      return false;
+    }
+    while (!buffer.offer(record)) {
+      if (!block) {
+        dropped.increment();
+        return true;
+      }
+      wake();
+      LockSupport.parkNanos(BLOCK_PARK);
+      if (!running) {
+        return false;
+      }
+    }
+    if (sleeping) {
+      wake();
+    }
+    return true;
+  }
+
+  private void wake() {
+    LockSupport.unpark(thread);
+  }
+
+  /** The number of records dropped because the buffer was full. */
+  long getDropped() {
+    return dropped.sum();
+  }
+
+  /** Stops the writer once it has written what is queued, waiting up to the timeout. */
+  void close(long timeout, TimeUnit unit) {
+    running = false;
+    wake();
+    try {
+      thread.join(unit.toMillis(timeout));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void run() {
+    int batch = 0;
+    while (true) {
+      Record record = buffer.poll();
+      if (record != null) {
+        write(record);
+        if (++batch >= MAX_BATCH) {
+          flush();
+          batch = 0;
+        }
+        continue;
+      }
+      if (batch > 0) {
+        flush();
+        batch = 0;
+      }
+      if (!running) {
+        // Records offered while stopping may still be landing
+        if (buffer.isEmpty()) break;
+        continue;
+      }
+      sleeping = true;
+      if (buffer.isEmpty()) {
+        LockSupport.parkNanos(this, MAX_PARK);
+      }
+      sleeping = false;
+    }
+  }
+
+  private void write(Record record) {
+    try {
+      if (record.level == null) {
+        record.target.println(record.msg);
+        return;
+      }
+      header(record.level, record.millis, record.category);
+      err.println(line.append(record.msg));
+      if (record.throwable != null) {
+        record.throwable.printStackTrace(err);
+      }
+    } catch (RuntimeException e) {
+      // A failing toString in a stack trace mustn't stop the writer
+      err.println("Unable to write log record: " + e);
+    }
+  }
+
+  /** Starts the line with the level, time and category, as {@link Log} does. */
+  private void header(Log.Level level, long millis, String category) {
+    line.setLength(0);
+    line.append(level.abbr()).append(" [");
+    date.setTime(millis);
+    dateFormat.format(date, line, field);
+    line.append("] ").append(category).append(": ");
+  }
+
+  private void flush() {
+    long drops = dropped.sum();
+    if (drops != reportedDrops) {
+      header(Log.Level.ERROR, System.currentTimeMillis(), Log.LOG_BOOTSTRAP_CATEGORY);
+      err.println(line.append(drops - reportedDrops).append(" log records dropped"));
+      reportedDrops = drops;
+    }
+    out.flush();
+    err.flush();
+  }
+
+  private static final class Record {
+    final PrintWriter target;
+    final String category;
+    final Log.Level level;
+    final long millis;
+    final Throwable throwable;
+    final String msg;
+
+    Record(PrintWriter target, String category, Log.Level level, Throwable throwable, String msg) {
+      this.target = target;
+      this.category = category;
+      this.level = level;
+      this.millis = System.currentTimeMillis();
+      this.throwable = throwable;
+      this.msg = msg;
+    }
+  }
+}
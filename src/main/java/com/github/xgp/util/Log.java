@@ -9,8 +9,18 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.ServiceLoader;
-
-/** Simple logger that sends everything to stderr. */
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simple logger that sends everything to stderr.
+ *
+ * <p>By default, records are written on the calling thread. Setting the {@value
+ * #LOG_ASYNC_PROPERTY} property to {@code true} instead queues each formatted message, with the
+ * time it was logged, for a background thread that writes them in batches, so that callers don't
+ * contend for the stream. The queue holds {@value #LOG_ASYNC_CAPACITY_PROPERTY} records, 8192 by
+ * default, and once it is full callers wait for room, or with {@value #LOG_ASYNC_OVERFLOW_PROPERTY}
+ * set to {@code DROP}, their records are dropped and counted.
+ */
 public class Log {
 
   public static Log get(String category) {
@@ -52,15 +62,31 @@ public class Log {
       new ThreadLocal<DateFormat>() {
         @Override
         protected DateFormat initialValue() {
-          return new SimpleDateFormat("yyyyMMdd-HH:mm:ss.SSS");
+          return new SimpleDateFormat(DATE_FORMAT);
         }
       };
 
+  static final String DATE_FORMAT = "yyyyMMdd-HH:mm:ss.SSS";
+
+  public static final String LOG_LEVEL_PROPERTY = "log.level";
+  public static final String LOG_BOOTSTRAP_CATEGORY = "log.bootstrap";
+  public static final String LOG_ASYNC_PROPERTY = "log.async";
+  public static final String LOG_ASYNC_CAPACITY_PROPERTY = "log.async.capacity";
+  public static final String LOG_ASYNC_OVERFLOW_PROPERTY = "log.async.overflow";
+
+  private static volatile Level systemLevel =
+      levelForName(System.getProperty(LOG_LEVEL_PROPERTY, "DEBUG"));
+
+  private static final AsyncLogWriter writer = asyncWriter();
+
   static {
     Runtime.getRuntime()
         .addShutdownHook(
             new Thread() {
               public void run() {
+                if (writer != null) {
+                  writer.close(1, TimeUnit.SECONDS);
+                }
                 out.flush();
                 out.close();
                 err.flush();
@@ -85,11 +111,15 @@ public class Log {
   }
 
   public static void _err(String msg) {
-    err.println(msg);
+    if (writer == null || !writer.println(err, msg)) {
+      err.println(msg);
+    }
   }
 
   public static void _out(String msg) {
-    out.println(msg);
+    if (writer == null || !writer.println(out, msg)) {
+      out.println(msg);
+    }
   }
 
   public static void _debug(String category, String msg, Object... args) {
@@ -110,14 +140,16 @@ public class Log {
 
   public static void _log(
       String category, Level level, Throwable throwable, String msg, Object... args) {
-    if (level.ordinal() >= systemLevel().ordinal()) {
-      _err(
+    if (level.ordinal() < systemLevel.ordinal()) {
+      return;
+    }
+    // Formatted here, while the arguments are still the caller's to read
+    String message = String.format(msg, args);
+    if (writer == null || !writer.log(category, level, throwable, message)) {
+      err.println(
           String.format(
               "%s [%s] %s: %s",
-              level.abbr(),
-              dateFormat.get().format(new Date()),
-              category,
-              String.format(msg, args)));
+              level.abbr(), dateFormat.get().format(new Date()), category, message));
       if (throwable != null) {
         throwable.printStackTrace(err);
       }
@@ -132,11 +164,21 @@ public class Log {
     return Level.DEBUG;
   }
 
-  public static final String LOG_LEVEL_PROPERTY = "log.level";
-  public static final String LOG_BOOTSTRAP_CATEGORY = "log.bootstrap";
+  /**
+   * Sets the level below which records are ignored, which is otherwise read from the {@value
+   * #LOG_LEVEL_PROPERTY} property once, at startup.
+   */
+  public static void setLevel(String name) {
+    systemLevel = levelForName(name);
+  }
 
-  private static Level systemLevel() {
-    return levelForName(System.getProperty(LOG_LEVEL_PROPERTY, "DEBUG"));
+  private static AsyncLogWriter asyncWriter() {
+    if (!Boolean.getBoolean(LOG_ASYNC_PROPERTY)) {
+      return null;
+    }
+    int capacity = Integer.getInteger(LOG_ASYNC_CAPACITY_PROPERTY, 8192);
+    boolean block = !"DROP".equalsIgnoreCase(System.getProperty(LOG_ASYNC_OVERFLOW_PROPERTY));
+    return new AsyncLogWriter(capacity, block, out, err);
   }
 
   private static final LogFactory logFactory;
@@ -147,7 +189,7 @@ public class Log {
       _error(
           LOG_BOOTSTRAP_CATEGORY,
           "No LogFactory present. Using stderr at %s level.",
-          systemLevel());
+          systemLevel);
       logFactory =
           new LogFactory() {
             @Override
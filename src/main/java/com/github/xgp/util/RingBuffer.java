@@ -0,0 +1,72 @@
+package com.github.xgp.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded queue for many producers and a single consumer. Producers claim a slot with one
+ * compare-and-set and never lock, and the consumer takes items without any atomic updates at all.
+ */
+final class RingBuffer<T> {
+  private final AtomicReferenceArray<T> slots;
+  private final int mask;
+  // The next slot to claim, by producers
+  private final AtomicLong tail = new AtomicLong();
+  // The next slot to take, written only by the consumer
+  private final AtomicLong head = new AtomicLong();
+
+  /** @param capacity rounded up to a power of two */
+  RingBuffer(int capacity) {
+    if (capacity < 1 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("capacity must be between 1 and 2^30");
+    }
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) size <<= 1;
+    this.slots = new AtomicReferenceArray<T>(size);
+    this.mask = size - 1;
+  }
+
+  int capacity() {
+    return slots.length();
+  }
+
+  /** @return false if the buffer is full */
+  boolean offer(T item) {
+    long t;
+    do {
+      t = tail.get();
+      if (t - head.get() >= slots.length()) {
+        return false;
+      }
+    } while (!tail.compareAndSet(t, t + 1));
+    slots.lazySet((int) t & mask, item);
+    return true;
+  }
+
+  /** Takes the oldest item, or returns null if there are none. Only one thread may call this. */
+  T poll() {
+    long h = head.get();
+    int i = (int) h & mask;
+    T item = slots.get(i);
+    if (item == null) {
+      if (h == tail.get()) {
+        return null;
+      }
+      // A producer has claimed the slot, and is about to fill it
+      while ((item = slots.get(i)) == null) {
+        Thread.yield();
+      }
+    }
+    slots.lazySet(i, null);
+    head.lazySet(h + 1);
+    return item;
+  }
+
+  boolean isEmpty() {
+    return head.get() == tail.get();
+  }
+
+  int size() {
+    return (int) (tail.get() - head.get());
+  }
+}
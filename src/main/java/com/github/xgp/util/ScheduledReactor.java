@@ -5,6 +5,7 @@ import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
@@ -21,10 +22,17 @@ public class ScheduledReactor<T> implements Reactor<T>, Managed {
   }
 
   public ScheduledReactor(Function<T, ? extends Object> function, int threads) {
+    this(function, threads, Executors.defaultThreadFactory());
+  }
+
+  public ScheduledReactor(
+      Function<T, ? extends Object> function, int threads, ThreadFactory threadFactory) {
     this.function = function;
     this.threads = threads;
-    this.processing = Collections.newSetFromMap(new WeakHashMap<T, Boolean>());
-    this.pending = Executors.newScheduledThreadPool(threads);
+    // Added to and removed from by every thread
+    this.processing =
+        Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<T, Boolean>()));
+    this.pending = Executors.newScheduledThreadPool(threads, threadFactory);
   }
 
   @Override
@@ -0,0 +1,198 @@
+package com.github.xgp.http.client;
+
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+import static java.net.HttpURLConnection.HTTP_OK;
+import static org.junit.Assert.*;
+
+import com.github.xgp.http.client.HttpRequest.HttpRequestException;
+import com.github.xgp.http.server.Server;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HttpClientTest {
+
+  private Server server;
+  private String base;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+
+  private static int getFreePort() throws Exception {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      socket.setReuseAddress(true);
+      return socket.getLocalPort();
+    }
+  }
+
+  @Before
+  public void start() throws Exception {
+    int port = getFreePort();
+    base = "http://localhost:" + port;
+    server = new Server(port);
+    server
+        .router()
+        .GET(
+            "/test/{id}",
+            (request, response) -> {
+              response.body("id: " + request.param("id"));
+            })
+        .POST(
+            "/echo",
+            (request, response) -> {
+              response.body(request.body());
+            })
+        .GET(
+            "/slow",
+            (request, response) -> {
+              maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+              try {
+                Thread.sleep(20);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              } finally {
+                inFlight.decrementAndGet();
+              }
+              response.body("slow");
+            });
+    server.start();
+  }
+
+  @After
+  public void stop() throws Exception {
+    server.stop();
+  }
+
+  @Test
+  public void reusesConnections() throws Exception {
+    try (HttpClient client = new HttpClient.Builder().build()) {
+      for (int i = 0; i < 10; i++) {
+        HttpRequest req = client.GET(base + "/test/" + i);
+        assertEquals(HTTP_OK, req.code());
+        assertEquals("id: " + i, req.body());
+        assertEquals(1, client.idleConnections());
+      }
+      HttpRequest req = client.POST(base + "/echo").send("hello");
+      assertEquals("hello", req.body());
+      req = client.GET(base + "/nothing");
+      assertEquals(HTTP_NOT_FOUND, req.code());
+      assertTrue(req.body().contains("404"));
+      assertEquals(1, client.idleConnections());
+    }
+  }
+
+  @Test(timeout = 30000)
+  public void codeOnlyWithHostLimit() throws Exception {
+    HttpClient.Builder builder = new HttpClient.Builder().maxConnectionsPerHost(2);
+    try (HttpClient client = builder.acquireTimeout(500).build()) {
+      for (int i = 0; i < 5; i++) {
+        assertEquals(HTTP_OK, client.GET(base + "/test/" + i).code());
+      }
+      assertEquals(1, client.idleConnections());
+      // Large bodies hold their connection until read, so a third request times out
+      char[] big = new char[16 * 1024];
+      Arrays.fill(big, 'x');
+      for (int i = 0; i < 2; i++) {
+        assertEquals(HTTP_OK, client.POST(base + "/echo").send(new String(big)).code());
+      }
+      try {
+        client.GET(base + "/test/5").code();
+        fail();
+      } catch (HttpRequestException e) {
+        assertTrue(e.getCause() instanceof SocketTimeoutException);
+      }
+    }
+  }
+
+  @Test
+  public void sendWithHostLimit() throws Exception {
+    try (HttpClient client = new HttpClient.Builder().maxConnectionsPerHost(4).build()) {
+      List<CompletableFuture<HttpResponse>> futures =
+          new ArrayList<CompletableFuture<HttpResponse>>();
+      for (int i = 0; i < 100; i++) {
+        futures.add(client.send(client.GET(base + "/slow")));
+      }
+      for (CompletableFuture<HttpResponse> future : futures) {
+        HttpResponse response = future.get(30, TimeUnit.SECONDS);
+        assertEquals(HTTP_OK, response.code());
+        assertEquals("slow", response.body());
+      }
+      assertTrue(maxInFlight.get() <= 4);
+      assertTrue(client.idleConnections() <= 4);
+    }
+  }
+
+  @Test
+  public void batchInOrder() throws Exception {
+    try (HttpClient client = new HttpClient.Builder().build()) {
+      List<HttpRequest> requests = new ArrayList<HttpRequest>();
+      for (int i = 0; i < 50; i++) {
+        requests.add(client.POST(base + "/echo").send("body " + i));
+      }
+      requests.add(client.GET(base + "/slow"));
+      requests.add(client.GET(base + "/slow"));
+      requests.add(client.GET(base + "/slow"));
+      List<BatchResult> results = client.batch(requests, 2).get(30, TimeUnit.SECONDS);
+      assertEquals(requests.size(), results.size());
+      for (int i = 0; i < results.size(); i++) {
+        BatchResult result = results.get(i);
+        assertSame(requests.get(i), result.request());
+        assertTrue(result.completed());
+        assertEquals(HTTP_OK, result.response().code());
+        assertEquals(i < 50 ? "body " + i : "slow", result.response().body());
+        assertTrue(result.waitNanos() >= 0);
+        assertTrue(result.durationNanos() >= 0);
+      }
+      assertTrue(maxInFlight.get() <= 2);
+      assertTrue(client.idleConnections() <= 2);
+    }
+  }
+
+  @Test
+  public void batchOfImmediateFailures() throws Exception {
+    HttpClient client = new HttpClient.Builder().build();
+    client.close();
+    // Rejected requests complete as they are sent, which mustn't nest a call per request
+    List<HttpRequest> requests = new ArrayList<HttpRequest>();
+    for (int i = 0; i < 100000; i++) {
+      requests.add(client.GET(base + "/test/" + i));
+    }
+    List<BatchResult> results = client.batch(requests, 4).get(30, TimeUnit.SECONDS);
+    assertEquals(requests.size(), results.size());
+    for (BatchResult result : results) {
+      assertFalse(result.completed());
+      assertNotNull(result.error());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void batchSingleOrigin() throws Exception {
+    try (HttpClient client = new HttpClient.Builder().build()) {
+      List<HttpRequest> requests = new ArrayList<HttpRequest>();
+      requests.add(client.GET(base + "/test/1"));
+      requests.add(client.GET("http://127.0.0.2:1/test/1"));
+      client.batch(requests, 2);
+    }
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void trustAllCertsOnPooledHttps() throws Exception {
+    try (HttpClient client = new HttpClient.Builder().build()) {
+      client.GET("https://localhost:1/").trustAllCerts();
+    }
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void trustAllHostsOnPooledHttps() throws Exception {
+    try (HttpClient client = new HttpClient.Builder().build()) {
+      client.GET("https://localhost:1/").trustAllHosts();
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package com.github.xgp.http.server;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void buckets() throws Exception {
+    // Every value falls in a bucket whose bounds hold it, within the precision
+    Random random = new Random(7);
+    for (int i = 0; i < 100000; i++) {
+      long value = random.nextLong() & LatencyHistogram.MAX_VALUE;
+      value >>>= random.nextInt(40);
+      int index = LatencyHistogram.index(value);
+      assertTrue(value <= LatencyHistogram.upperBound(index));
+      assertTrue(index == 0 || value > LatencyHistogram.upperBound(index - 1));
+      assertTrue(LatencyHistogram.upperBound(index) - value <= value / 32);
+    }
+  }
+
+  @Test
+  public void percentiles() throws Exception {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getPercentile(99));
+    for (long ms = 1; ms <= 100; ms++) {
+      histogram.record(ms * 1000000);
+    }
+    assertEquals(100, histogram.getCount());
+    assertEquals(100000000, histogram.getMax());
+    assertEquals(50500000, histogram.getMean(), 1);
+    assertEquals(50000000, histogram.getPercentile(50), 50000000 / 32);
+    assertEquals(99000000, histogram.getPercentile(99), 99000000 / 32);
+    assertEquals(100000000, histogram.getPercentile(100));
+    assertEquals(10, histogram.getCountAtOrBelow(10000000));
+    histogram.record(-5);
+    histogram.record(Long.MAX_VALUE);
+    assertEquals(LatencyHistogram.MAX_VALUE, histogram.getMax());
+    assertEquals(1, histogram.getCountAtOrBelow(0));
+  }
+}
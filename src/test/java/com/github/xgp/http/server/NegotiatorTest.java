@@ -0,0 +1,74 @@
+package com.github.xgp.http.server;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+
+public class NegotiatorTest {
+
+  private static Transformer transformer(String contentType) {
+    return new Transformer() {
+      @Override
+      public String contentType() {
+        return contentType;
+      }
+
+      @Override
+      public void render(Object object, Response response) throws IOException {}
+    };
+  }
+
+  private static final Transformer JSON = transformer("application/json");
+  private static final Transformer XML = transformer("application/xml; charset=utf-8");
+  private static final Transformer TEXT = transformer("text/plain");
+
+  private static Negotiator negotiator() {
+    Map<String, Transformer> transformers = new LinkedHashMap<String, Transformer>();
+    for (Transformer transformer : new Transformer[] {JSON, XML, TEXT}) {
+      transformers.put(transformer.contentType(), transformer);
+    }
+    return new Negotiator(transformers);
+  }
+
+  private static Transformer negotiate(String accept) {
+    return negotiator().negotiate(accept).orElse(null);
+  }
+
+  @Test
+  public void qualities() throws Exception {
+    assertSame(XML, negotiate("application/xml"));
+    assertSame(XML, negotiate("application/json;q=0.5, application/xml"));
+    assertSame(TEXT, negotiate("text/html, text/*;q=0.9, application/*;q=0.8"));
+    assertSame(JSON, negotiate("Application/JSON; charset=utf-8"));
+    assertNull(negotiate("image/png"));
+  }
+
+  @Test
+  public void wildcards() throws Exception {
+    // Equally acceptable, so the first added
+    assertSame(JSON, negotiate("*/*"));
+    // No header at all accepts anything
+    assertSame(JSON, negotiate(null));
+    assertSame(JSON, negotiate("text/html, image/gif, image/jpeg, *; q=.2, */*; q=.2"));
+    // The most specific range gives the quality, so a wildcard can't bring back an excluded type
+    assertSame(XML, negotiate("application/json;q=0, */*"));
+    assertSame(TEXT, negotiate("application/*;q=0, */*;q=0.1"));
+    // An exact match beats a wildcard of the same quality
+    assertSame(XML, negotiate("application/*, application/xml"));
+    // Invalid qualities are ignored
+    assertSame(TEXT, negotiate("application/json;q=2, text/plain"));
+  }
+
+  @Test
+  public void caches() throws Exception {
+    Negotiator negotiator = negotiator();
+    assertSame(negotiator.negotiate("application/xml"), negotiator.negotiate("application/xml"));
+    for (int i = 0; i < 2 * Negotiator.MAX_CACHED; i++) {
+      assertFalse(negotiator.negotiate("image/x-" + i).isPresent());
+    }
+    assertSame(XML, negotiator.negotiate("application/xml").get());
+  }
+}
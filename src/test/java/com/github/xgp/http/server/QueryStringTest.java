@@ -0,0 +1,85 @@
+package com.github.xgp.http.server;
+
+import static org.junit.Assert.*;
+
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.junit.Test;
+
+public class QueryStringTest {
+
+  private static final Charset UTF_8 = StandardCharsets.UTF_8;
+
+  // The previous implementation, to compare against
+  private static Map<String, List<String>> reference(String raw) throws Exception {
+    Map<String, List<String>> map = new TreeMap<String, List<String>>();
+    for (String param : raw.split("&")) {
+      if (param.isEmpty()) continue;
+      String[] parts = param.split("=", 2);
+      String key = URLDecoder.decode(parts[0], "UTF-8");
+      String value = parts.length == 2 ? URLDecoder.decode(parts[1], "UTF-8") : "";
+      map.computeIfAbsent(key, k -> new ArrayList<String>()).add(value);
+    }
+    return map;
+  }
+
+  @Test
+  public void parsesLikeUrlDecoder() throws Exception {
+    for (String raw :
+        Arrays.asList(
+            "a=1",
+            "a=1&b=2&a=3",
+            "q=hello+world&lang=en",
+            "name=%E2%82%AC%20and%20%C3%A9",
+            "flag&empty=&=novalue",
+            "&&a=1&&",
+            "k%3Dx=v%26y",
+            "a==b")) {
+      assertEquals(raw, reference(raw), QueryString.parse(raw, UTF_8).toMap());
+    }
+  }
+
+  @Test
+  public void lookups() throws Exception {
+    QueryString query = QueryString.parse("id=7&tag=a&tag=b+c", UTF_8);
+    assertEquals(3, query.size());
+    assertEquals("7", query.first("id"));
+    assertEquals(Arrays.asList("7"), query.get("id"));
+    assertEquals(Arrays.asList("a", "b c"), query.get("tag"));
+    assertNull(query.get("missing"));
+    assertNull(query.first("missing"));
+    assertSame(QueryString.EMPTY, QueryString.parse(null, UTF_8));
+  }
+
+  @Test
+  public void largeQueries() throws Exception {
+    // Enough parameters to be looked up through the index, with some names repeated
+    StringBuilder raw = new StringBuilder();
+    for (int i = 0; i < 4 * QueryString.INDEX_THRESHOLD; i++) {
+      raw.append(i == 0 ? "" : "&").append("p").append(i % 40).append('=').append(i);
+    }
+    QueryString query = QueryString.parse(raw.toString(), UTF_8);
+    Map<String, List<String>> expected = reference(raw.toString());
+    assertEquals(expected, query.toMap());
+    for (Map.Entry<String, List<String>> e : expected.entrySet()) {
+      assertEquals(e.getValue(), query.get(e.getKey()));
+      assertEquals(e.getValue().get(0), query.first(e.getKey()));
+    }
+    assertNull(query.get("missing"));
+    assertNull(query.first("missing"));
+  }
+
+  @Test
+  public void keepsMalformedEscapes() throws Exception {
+    QueryString query = QueryString.parse("a=100%&b=%zz&c=%4", UTF_8);
+    assertEquals("100%", query.first("a"));
+    assertEquals("%zz", query.first("b"));
+    assertEquals("%4", query.first("c"));
+  }
+}
@@ -0,0 +1,98 @@
+package com.github.xgp.http.server;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import org.junit.Test;
+
+public class RouteIndexTest {
+
+  private static List<Route> routes(String... templates) {
+    List<Route> routes = new ArrayList<Route>();
+    for (String template : templates) {
+      routes.add(new Route("GET", template, null, Optional.empty()));
+    }
+    return routes;
+  }
+
+  private static Optional<Route> linear(List<Route> routes, String method, String path) {
+    for (Route route : routes) {
+      if (route.matches(method, path)) return Optional.of(route);
+    }
+    return Optional.empty();
+  }
+
+  @Test
+  public void matchesLikeLinearScan() throws Exception {
+    List<Route> routes =
+        routes(
+            "/test",
+            "/test/{id}",
+            "/test/{id: [0-9]+}/edit",
+            "/test/{id}/edit",
+            "/user/{name: [a-z]+}",
+            "/user/{name}",
+            "/files/{path: .*}",
+            "/index.html",
+            "/v{version}/status",
+            "/p/{a}-{b: [0-9]+}/{c}",
+            "/",
+            "/a|/b");
+    RouteIndex index = new RouteIndex(routes);
+    for (String path :
+        Arrays.asList(
+            "/test",
+            "/test/",
+            "/test/1234",
+            "/test/1234/edit",
+            "/test/abc/edit",
+            "/test/some/1234",
+            "/user/bob",
+            "/user/Bob",
+            "/files/a/b/c",
+            "/index.html",
+            "/indexXhtml",
+            "/v2/status",
+            "/p/x-12/y",
+            "/p/x-y/z",
+            "/",
+            "/a",
+            "/b",
+            "/nothing")) {
+      Optional<Route> expected = linear(routes, "GET", path);
+      Optional<RouteMatch> match = index.find("GET", path);
+      assertEquals(path, expected, match.map(RouteMatch::route));
+      assertEquals(path, expected, index.find("get", path).map(RouteMatch::route));
+      if (expected.isPresent()) {
+        assertEquals(
+            path, expected.get().getPathParametersEncoded(path), match.get().parameters());
+      }
+      assertFalse(path, index.find("POST", path).isPresent());
+    }
+  }
+
+  @Test
+  public void firstAddedWins() throws Exception {
+    List<Route> routes = routes("/x/{a}", "/x/{b: [0-9]+}", "/x/1", "/{c: .*}");
+    RouteIndex index = new RouteIndex(routes);
+    assertSame(routes.get(0), index.find("GET", "/x/1").get().route());
+    assertSame(routes.get(3), index.find("GET", "/y/1").get().route());
+  }
+
+  @Test
+  public void segmentLocality() throws Exception {
+    assertTrue(RouteIndex.isSegmentLocal("abc"));
+    assertTrue(RouteIndex.isSegmentLocal("{id}"));
+    assertTrue(RouteIndex.isSegmentLocal("{id: [0-9]+}"));
+    assertTrue(RouteIndex.isSegmentLocal("{id: a|b}"));
+    assertTrue(RouteIndex.isSegmentLocal("v{version}"));
+    assertFalse(RouteIndex.isSegmentLocal("{path: .*}"));
+    assertFalse(RouteIndex.isSegmentLocal("{id: [^x]+}"));
+    assertFalse(RouteIndex.isSegmentLocal("*"));
+    assertFalse(RouteIndex.isSegmentLocal("a|b"));
+    assertNull(RouteIndex.splitTemplate("/a/{b: x/y}"));
+  }
+}
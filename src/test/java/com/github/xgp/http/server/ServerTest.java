@@ -1,15 +1,42 @@
 package com.github.xgp.http.server;
 
+import static java.net.HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
 import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
 import static java.net.HttpURLConnection.HTTP_OK;
+import static java.net.HttpURLConnection.HTTP_PARTIAL;
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.*;
 
+import com.github.xgp.http.client.HttpClient;
 import com.github.xgp.http.client.HttpRequest;
+import com.github.xgp.http.client.HttpResponse;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.net.HttpCookie;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 import org.hamcrest.Matcher;
 import org.junit.Test;
 
@@ -175,6 +202,184 @@ public class ServerTest {
     server.stop();
   }
 
+  @Test
+  public void slowHandlerDoesNotBlock() throws Exception {
+    int port = getFreePort();
+    CountDownLatch latch = new CountDownLatch(1);
+    Server server = new Server(new Router(), port, ServerExecutors.fixed(2, 10));
+    server
+        .router()
+        .GET(
+            "/slow",
+            (request, response) -> {
+              try {
+                latch.await(5, TimeUnit.SECONDS);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+              response.body("slow");
+            })
+        .GET(
+            "/fast",
+            (request, response) -> {
+              response.body("fast");
+            });
+    server.start();
+
+    CompletableFuture<String> slow =
+        CompletableFuture.supplyAsync(
+            () -> HttpRequest.GET("http://localhost:" + port + "/slow").body());
+    HttpRequest req = HttpRequest.GET("http://localhost:" + port + "/fast");
+    checkResponse(req, HTTP_OK, "text/plain", is("fast"));
+    assertFalse(slow.isDone());
+    latch.countDown();
+    assertThat(slow.get(5, TimeUnit.SECONDS), is("slow"));
+
+    server.stop();
+    ServerExecutors.shutdown(server.executor());
+  }
+
+  @Test
+  public void shedWhenOverloaded() throws Exception {
+    int port = getFreePort();
+    CountDownLatch entered = new CountDownLatch(1);
+    CountDownLatch latch = new CountDownLatch(1);
+    ThreadPoolExecutor executor =
+        (ThreadPoolExecutor) ServerExecutors.fixed(1, 1, ServerExecutors.OverloadPolicy.SHED);
+    Server server = new Server(new Router(), port, executor);
+    server
+        .router()
+        .GET(
+            "/slow",
+            (request, response) -> {
+              entered.countDown();
+              try {
+                latch.await(5, TimeUnit.SECONDS);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+              response.body("slow");
+            });
+    server.start();
+
+    CompletableFuture<Integer> first =
+        CompletableFuture.supplyAsync(
+            () -> HttpRequest.GET("http://localhost:" + port + "/slow").code());
+    assertTrue(entered.await(5, TimeUnit.SECONDS));
+    CompletableFuture<Integer> second =
+        CompletableFuture.supplyAsync(
+            () -> HttpRequest.GET("http://localhost:" + port + "/slow").code());
+    for (int i = 0; i < 100 && executor.getQueue().isEmpty(); i++) {
+      Thread.sleep(50L);
+    }
+    HttpRequest req = HttpRequest.GET("http://localhost:" + port + "/slow");
+    checkResponse(req, HTTP_UNAVAILABLE, "text/plain", containsString("503"));
+    assertThat(req.header("Retry-After"), is("1"));
+    latch.countDown();
+    assertThat(first.get(5, TimeUnit.SECONDS), is(HTTP_OK));
+    assertThat(second.get(5, TimeUnit.SECONDS), is(HTTP_OK));
+
+    server.stop();
+    executor.shutdown();
+  }
+
+  @Test
+  public void staticFiles() throws Exception {
+    Path dir = Files.createTempDirectory("static");
+    Files.write(dir.resolve("small.txt"), "small".getBytes());
+    Files.write(dir.resolve("large.txt"), "0123456789".getBytes());
+    int port = getFreePort();
+    Server server = new Server(port);
+    server.createContext("/static").setHandler(new StaticFileHandler(dir, 5, 1024));
+    server.start();
+    String base = "http://localhost:" + port + "/static/";
+
+    checkResponse(HttpRequest.GET(base + "small.txt"), HTTP_OK, "text/plain", is("small"));
+    checkResponse(HttpRequest.GET(base + "small.txt"), HTTP_OK, "text/plain", is("small"));
+    checkResponse(HttpRequest.GET(base + "large.txt"), HTTP_OK, "text/plain", is("0123456789"));
+    HttpRequest head = HttpRequest.HEAD(base + "large.txt");
+    assertThat(head.code(), is(HTTP_OK));
+    assertThat(head.contentLength(), is(10));
+
+    HttpRequest req = HttpRequest.GET(base + "large.txt").header("Range", "bytes=2-4");
+    checkResponse(req, HTTP_PARTIAL, "text/plain", is("234"));
+    assertThat(req.header("Content-Range"), is("bytes 2-4/10"));
+    req = HttpRequest.GET(base + "small.txt").header("Range", "bytes=-2");
+    checkResponse(req, HTTP_PARTIAL, "text/plain", is("ll"));
+    assertThat(HttpRequest.GET(base + "small.txt").header("Range", "bytes=9-").code(), is(416));
+
+    long lastModified = HttpRequest.GET(base + "small.txt").lastModified();
+    assertThat(
+        HttpRequest.GET(base + "small.txt").ifModifiedSince(lastModified).code(),
+        is(HTTP_NOT_MODIFIED));
+
+    assertThat(HttpRequest.GET(base + "missing.txt").code(), is(HTTP_NOT_FOUND));
+    assertThat(HttpRequest.GET(base + "%2e%2e/etc/passwd").code(), is(HTTP_NOT_FOUND));
+
+    server.stop();
+  }
+
+  @Test
+  public void compressedResponse() throws Exception {
+    int port = getFreePort();
+    String big = new String(new char[100]).replace('\0', 'x');
+    Server server = new Server(port);
+    server
+        .router()
+        .setCompression(new Compression.Builder().minSize(50).cacheSize(1024).build())
+        .GET(
+            "/big",
+            (request, response) -> {
+              response.body(big);
+            })
+        .GET(
+            "/small",
+            (request, response) -> {
+              response.body("small");
+            })
+        .GET(
+            "/items",
+            (request, response) -> {
+              response.header("ETag", "\"same\"").body(request.queryFirst("id") + big);
+            });
+    server.start();
+
+    for (int i = 0; i < 2; i++) {
+      HttpRequest req =
+          HttpRequest.GET("http://localhost:" + port + "/big")
+              .acceptGzipEncoding()
+              .uncompress(true);
+      checkResponse(req, HTTP_OK, "text/plain", is(big));
+      assertThat(req.contentEncoding(), is("gzip"));
+      assertThat(req.header("Vary"), is("Accept-Encoding"));
+    }
+
+    // The same ETag on a different query is a different cache entry
+    for (int i = 0; i < 4; i++) {
+      String id = Integer.toString(i % 2);
+      HttpRequest req =
+          HttpRequest.GET("http://localhost:" + port + "/items?id=" + id)
+              .acceptGzipEncoding()
+              .uncompress(true);
+      checkResponse(req, HTTP_OK, "text/plain", is(id + big));
+      assertThat(req.contentEncoding(), is("gzip"));
+    }
+
+    HttpRequest req = HttpRequest.GET("http://localhost:" + port + "/big");
+    checkResponse(req, HTTP_OK, "text/plain", is(big));
+    assertNull(req.contentEncoding());
+
+    req =
+        HttpRequest.GET("http://localhost:" + port + "/small")
+            .acceptGzipEncoding()
+            .uncompress(true);
+    checkResponse(req, HTTP_OK, "text/plain", is("small"));
+    assertNull(req.contentEncoding());
+    assertThat(req.contentLength(), is(5));
+
+    server.stop();
+  }
+
   public class TestHandler {
     public void test(Request request, Response response) {
       response.body("test");
@@ -220,6 +425,52 @@ public class ServerTest {
     checkResponse(req, HTTP_OK, "text/plain", is("test"));
   }
 
+  @Test
+  public void negotiatedTransformers() throws Exception {
+    int port = getFreePort();
+    Server server = new Server(port);
+    server
+        .router()
+        .GET(
+            "/test",
+            (request, response) -> {
+              response.body("test");
+            })
+        .addTransformer(transformer("foo"))
+        .addTransformer(transformer("bar"));
+    server.start();
+
+    HttpRequest req = HttpRequest.GET("http://localhost:" + port + "/test");
+    req.header("Accept", "text/foo;q=0.5, text/bar");
+    checkResponse(req, HTTP_OK, "text/bar", is("testbar"));
+    assertThat(req.header("Vary"), is("Accept"));
+
+    req = HttpRequest.GET("http://localhost:" + port + "/test");
+    req.header("Accept", "text/*");
+    checkResponse(req, HTTP_OK, "text/foo", is("testfoo"));
+
+    req = HttpRequest.GET("http://localhost:" + port + "/test");
+    req.header("Accept", "application/json");
+    checkResponse(req, HTTP_OK, "text/plain", is("test"));
+
+    // HttpURLConnection always sends an Accept header, so leave it out by hand
+    try (Socket socket = new Socket("localhost", port)) {
+      String request = "GET /test HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+      OutputStream out = socket.getOutputStream();
+      out.write(request.getBytes("UTF-8"));
+      out.flush();
+      BufferedReader reader =
+          new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+      StringBuilder response = new StringBuilder();
+      for (String line; (line = reader.readLine()) != null; ) {
+        response.append(line.toLowerCase()).append('\n');
+      }
+      assertThat(response.toString(), containsString("content-type: text/foo\n"));
+      assertThat(response.toString(), containsString("\ntestfoo"));
+    }
+    server.stop();
+  }
+
   private static Transformer transformer(String s) {
     return new Transformer() {
       @Override
@@ -236,4 +487,628 @@ public class ServerTest {
       }
     };
   }
+
+  @Test
+  public void reverseProxy() throws Exception {
+    int upstreamPort = getFreePort();
+    Server upstream = new Server(upstreamPort);
+    upstream
+        .router()
+        .GET(
+            "/api/test/{id}",
+            (request, response) -> {
+              response.body("id: " + request.param("id"));
+            })
+        .POST(
+            "/api/echo",
+            (request, response) -> {
+              response.body(request.body());
+            });
+    upstream.start();
+
+    int port = getFreePort();
+    URI destination = URI.create("http://localhost:" + upstreamPort + "/api");
+    HttpClient client = new HttpClient.Builder().maxConnectionsPerHost(2).build();
+    Server server = new Server(port);
+    server.createContext("/direct").setHandler(new ReverseProxyHandler(destination));
+    server
+        .createContext("/pooled")
+        .setHandler(
+            new ReverseProxyHandler.Builder(destination).client(client).bufferSize(16).build());
+    server.start();
+
+    for (String mode : new String[] {"/direct", "/pooled"}) {
+      String base = "http://localhost:" + port + mode;
+      for (int i = 0; i < 5; i++) {
+        checkResponse(HttpRequest.GET(base + "/test/" + i), HTTP_OK, "text/plain", is("id: " + i));
+      }
+      String body = new String(new char[100]).replace('\0', 'x');
+      checkResponse(HttpRequest.POST(base + "/echo").send(body), HTTP_OK, "text/plain", is(body));
+      checkResponse(
+          HttpRequest.GET(base + "/missing"), HTTP_NOT_FOUND, "text/plain", containsString("404"));
+    }
+    assertThat(client.idleConnections(), is(1));
+
+    upstream.stop();
+    assertThat(
+        HttpRequest.GET("http://localhost:" + port + "/pooled/test/1").code(),
+        is(HttpURLConnection.HTTP_BAD_GATEWAY));
+
+    server.stop();
+    client.close();
+  }
+
+  @Test
+  public void loadBalancedProxy() throws Exception {
+    Server[] backends = new Server[2];
+    URI[] uris = new URI[3];
+    for (int i = 0; i < backends.length; i++) {
+      String name = "backend " + i;
+      int backendPort = getFreePort();
+      backends[i] = new Server(backendPort);
+      backends[i]
+          .router()
+          .GET(
+              "/api/{path: .*}",
+              (request, response) -> {
+                response.body(name);
+              });
+      backends[i].start();
+      uris[i] = URI.create("http://localhost:" + backendPort + "/api");
+    }
+    // nothing listens here
+    uris[2] = URI.create("http://localhost:" + getFreePort() + "/api");
+
+    int port = getFreePort();
+    Server server = new Server(port);
+    Upstreams roundRobin =
+        new Upstreams.Builder().add(uris[0]).add(uris[1]).add(uris[2]).maxFailures(1).build();
+    server.createContext("/rr").setHandler(new ReverseProxyHandler.Builder(roundRobin).build());
+    Upstreams hashed =
+        new Upstreams.Builder()
+            .add(uris[0])
+            .add(uris[1])
+            .strategy(Upstreams.Strategy.CONSISTENT_HASH)
+            .build();
+    HttpClient client = new HttpClient.Builder().build();
+    server
+        .createContext("/hash")
+        .setHandler(new ReverseProxyHandler.Builder(hashed).client(client).build());
+    Upstreams probed =
+        new Upstreams.Builder().add(uris[0]).add(uris[2]).healthCheck("/health", 50).build();
+    server.start();
+    String base = "http://localhost:" + port;
+
+    // the dead upstream is retried elsewhere, then ejected
+    Set<String> seen = new HashSet<String>();
+    for (int i = 0; i < 6; i++) {
+      HttpRequest req = HttpRequest.GET(base + "/rr/x");
+      assertThat(req.code(), is(HTTP_OK));
+      seen.add(req.body());
+    }
+    assertThat(seen.size(), is(2));
+    assertFalse(roundRobin.getUpstreams().get(2).isAvailable());
+
+    // the same key always goes to the same upstream
+    for (String key : new String[] {"a", "b", "c", "d"}) {
+      String first = HttpRequest.GET(base + "/hash/" + key).body();
+      for (int i = 0; i < 3; i++) {
+        assertThat(HttpRequest.GET(base + "/hash/" + key).body(), is(first));
+      }
+    }
+
+    for (int i = 0; i < 100 && probed.getUpstreams().get(1).isAvailable(); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(probed.getUpstreams().get(0).isAvailable());
+    assertFalse(probed.getUpstreams().get(1).isAvailable());
+
+    probed.close();
+    server.stop();
+    client.close();
+    for (Server backend : backends) backend.stop();
+  }
+
+  @Test
+  public void cachingProxy() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    AtomicInteger notModified = new AtomicInteger();
+    int upstreamPort = getFreePort();
+    Server upstream = new Server(upstreamPort);
+    upstream
+        .router()
+        .GET(
+            "/api/fresh",
+            (request, response) -> {
+              calls.incrementAndGet();
+              response.header("Cache-Control", "max-age=60").header("ETag", "\"f\"").body("fresh");
+            })
+        .GET(
+            "/api/swr",
+            (request, response) -> {
+              calls.incrementAndGet();
+              response
+                  .header("Cache-Control", "max-age=0, stale-while-revalidate=60")
+                  .header("ETag", "\"s\"")
+                  .body("swr");
+            })
+        .GET(
+            "/api/private",
+            (request, response) -> {
+              calls.incrementAndGet();
+              response.header("Cache-Control", "private, max-age=60").body("private");
+            })
+        .GET(
+            "/api/large",
+            (request, response) -> {
+              calls.incrementAndGet();
+              response
+                  .header("Cache-Control", "max-age=60")
+                  .body(new String(new char[1000]).replace('\0', 'x'));
+            });
+    upstream
+        .createContext("/api/validated")
+        .setHandler(
+            ex -> {
+              calls.incrementAndGet();
+              ex.getResponseHeaders().set("Cache-Control", "no-cache");
+              ex.getResponseHeaders().set("ETag", "\"v\"");
+              if ("\"v\"".equals(ex.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModified.incrementAndGet();
+                ex.sendResponseHeaders(HTTP_NOT_MODIFIED, -1);
+              } else {
+                ex.getResponseHeaders().set("Content-Type", "text/plain");
+                byte[] body = "validated".getBytes();
+                ex.sendResponseHeaders(HTTP_OK, body.length);
+                ex.getResponseBody().write(body);
+              }
+              ex.close();
+            });
+    upstream.start();
+
+    Path dir = Files.createTempDirectory("proxy-cache-test");
+    ProxyCache cache =
+        new ProxyCache.Builder().maxEntrySize(100).directory(dir, 1024 * 1024).build();
+    int port = getFreePort();
+    Server server = new Server(port);
+    server
+        .createContext("/cached")
+        .setHandler(
+            new ReverseProxyHandler.Builder(URI.create("http://localhost:" + upstreamPort + "/api"))
+                .cache(cache)
+                .build());
+    server.start();
+    String base = "http://localhost:" + port + "/cached";
+
+    // fresh responses don't go upstream again
+    for (int i = 0; i < 3; i++) {
+      checkResponse(HttpRequest.GET(base + "/fresh"), HTTP_OK, "text/plain", is("fresh"));
+    }
+    assertThat(calls.get(), is(1));
+    HttpRequest req = HttpRequest.GET(base + "/fresh").header("If-None-Match", "\"f\"");
+    assertThat(req.code(), is(HTTP_NOT_MODIFIED));
+    assertThat(calls.get(), is(1));
+
+    // no-cache responses are revalidated every time
+    for (int i = 0; i < 3; i++) {
+      checkResponse(
+          HttpRequest.GET(base + "/validated"), HTTP_OK, "text/plain", is("validated"));
+    }
+    assertThat(calls.get(), is(4));
+    assertThat(notModified.get(), is(2));
+
+    // stale responses are served while they are revalidated in the background
+    for (int i = 0; i < 2; i++) {
+      checkResponse(HttpRequest.GET(base + "/swr"), HTTP_OK, "text/plain", is("swr"));
+    }
+    for (int i = 0; i < 100 && calls.get() < 6; i++) {
+      Thread.sleep(10);
+    }
+    assertThat(calls.get(), is(6));
+
+    // private responses are never stored
+    for (int i = 0; i < 2; i++) {
+      checkResponse(HttpRequest.GET(base + "/private"), HTTP_OK, "text/plain", is("private"));
+    }
+    assertThat(calls.get(), is(8));
+
+    // responses too large for memory are kept on disk
+    for (int i = 0; i < 2; i++) {
+      assertThat(HttpRequest.GET(base + "/large").body().length(), is(1000));
+    }
+    assertThat(calls.get(), is(9));
+    assertTrue(cache.getHits() >= 6);
+
+    server.stop();
+    upstream.stop();
+    cache.close();
+    assertFalse(Files.list(dir).findAny().isPresent());
+    Files.delete(dir);
+  }
+
+  @Test
+  public void coalescedProxy() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    int upstreamPort = getFreePort();
+    Server upstream = new Server(upstreamPort);
+    upstream
+        .router()
+        .GET(
+            "/api/hot",
+            (request, response) -> {
+              calls.incrementAndGet();
+              try {
+                Thread.sleep(300);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+              response.body("hot");
+            });
+    upstream.start();
+
+    int port = getFreePort();
+    URI destination = URI.create("http://localhost:" + upstreamPort + "/api");
+    HttpClient upstreamClient = new HttpClient.Builder().build();
+    Server server = new Server(port);
+    server
+        .createContext("/direct")
+        .setHandler(new ReverseProxyHandler.Builder(destination).coalesce(1024).build());
+    server
+        .createContext("/pooled")
+        .setHandler(
+            new ReverseProxyHandler.Builder(destination)
+                .client(upstreamClient)
+                .coalesce(1024)
+                .build());
+    server.start();
+
+    HttpClient client = new HttpClient.Builder().maxConnectionsPerHost(6).build();
+    for (String mode : new String[] {"/direct", "/pooled"}) {
+      calls.set(0);
+      List<CompletableFuture<HttpResponse>> futures =
+          new ArrayList<CompletableFuture<HttpResponse>>();
+      for (int i = 0; i < 6; i++) {
+        futures.add(client.send(client.GET("http://localhost:" + port + mode + "/hot")));
+      }
+      for (CompletableFuture<HttpResponse> future : futures) {
+        HttpResponse response = future.get(10, TimeUnit.SECONDS);
+        assertThat(response.code(), is(HTTP_OK));
+        assertThat(response.body(), is("hot"));
+      }
+      assertTrue(calls.get() <= 2);
+    }
+
+    client.close();
+    server.stop();
+    upstreamClient.close();
+    upstream.stop();
+  }
+
+  @Test
+  public void requestParsing() throws Exception {
+    int port = getFreePort();
+    Server server = new Server(port);
+    server
+        .router()
+        .GET(
+            "/req/{a}/{b}",
+            (request, response) -> {
+              StringBuilder body = new StringBuilder();
+              body.append(request.param("b")).append(' ').append(request.param("a"));
+              for (HttpCookie cookie : request.cookies()) {
+                body.append(' ').append(cookie.getName()).append('=').append(cookie.getValue());
+              }
+              body.append(' ').append(request.queryFirst("q"));
+              response.body(body.toString());
+            });
+    server.start();
+    String base = "http://localhost:" + port;
+
+    checkResponse(
+        HttpRequest.GET(base + "/req/1/2?q=a+b"), HTTP_OK, "text/plain", is("2 1 a b"));
+    checkResponse(
+        HttpRequest.GET(base + "/req/1/2").header("Cookie", "x=1; y=\"2\"; $Version=1"),
+        HTTP_OK,
+        "text/plain",
+        is("2 1 x=1 y=2 null"));
+    server.stop();
+  }
+
+  @Test
+  public void bufferedResponses() throws Exception {
+    int port = getFreePort();
+    Server server = new Server(port);
+    server.router().setMaxBufferedSize(1024);
+    server
+        .router()
+        .GET(
+            "/small",
+            (request, response) -> {
+              response.body("caf\u00e9 \u20ac");
+            })
+        .GET(
+            "/large",
+            (request, response) -> {
+              response.body(new String(new char[4096]).replace('\0', 'x'));
+            })
+        .GET(
+            "/bytewise",
+            (request, response) -> {
+              response.body(2000);
+            },
+            (body, response) -> {
+              for (int i = 0; i < (Integer) body; i++) response.stream().write('x');
+            });
+    server.start();
+    String base = "http://localhost:" + port;
+
+    HttpRequest req = HttpRequest.GET(base + "/small");
+    assertThat(req.code(), is(HTTP_OK));
+    assertThat(req.contentLength(), is(9));
+    assertNull(req.header("Transfer-Encoding"));
+    assertThat(new String(req.bytes(), "UTF-8"), is("caf\u00e9 \u20ac"));
+
+    req = HttpRequest.GET(base + "/large");
+    assertThat(req.code(), is(HTTP_OK));
+    assertThat(req.header("Transfer-Encoding"), is("chunked"));
+    assertThat(req.body().length(), is(4096));
+
+    // Single bytes respect the limit too, even when the pooled buffer is larger
+    req = HttpRequest.GET(base + "/bytewise");
+    assertThat(req.code(), is(HTTP_OK));
+    assertThat(req.header("Transfer-Encoding"), is("chunked"));
+    assertThat(req.body().length(), is(2000));
+    server.stop();
+  }
+
+  @Test
+  public void compressedSpilledResponse() throws Exception {
+    int port = getFreePort();
+    String big = new String(new char[60000]).replace('\0', 'x');
+    Server server = new Server(port);
+    server.router().setCompression(new Compression.Builder().build()).setMaxBufferedSize(1024);
+    server.router().GET("/big", (request, response) -> response.body(big));
+    server.start();
+
+    HttpRequest req =
+        HttpRequest.GET("http://localhost:" + port + "/big").acceptGzipEncoding().uncompress(true);
+    assertThat(req.code(), is(HTTP_OK));
+    assertThat(req.contentEncoding(), is("gzip"));
+    assertThat(req.header("Transfer-Encoding"), is("chunked"));
+    assertThat(req.body(), is(big));
+    server.stop();
+  }
+
+  @Test
+  public void streamingTransformers() throws Exception {
+    int port = getFreePort();
+    Server server = new Server(port);
+    server
+        .router()
+        .GET(
+            "/lines",
+            (request, response) -> {
+              response.body(IntStream.range(0, 20000).mapToObj(Integer::toString));
+            })
+        .GET(
+            "/bytes",
+            (request, response) -> {
+              response.body(new byte[200 * 1024]);
+            },
+            Transformers.bytes());
+    server.start();
+    String base = "http://localhost:" + port;
+
+    HttpRequest req = HttpRequest.GET(base + "/lines");
+    assertThat(req.code(), is(HTTP_OK));
+    assertThat(req.header("Transfer-Encoding"), is("chunked"));
+    String[] lines = req.body().split("\n");
+    assertThat(lines.length, is(20000));
+    assertThat(lines[19999], is("19999"));
+
+    req = HttpRequest.GET(base + "/bytes");
+    assertThat(req.code(), is(HTTP_OK));
+    assertThat(req.contentLength(), is(200 * 1024));
+    assertThat(req.header("Content-Type"), is("application/octet-stream"));
+    assertThat(req.bytes().length, is(200 * 1024));
+    server.stop();
+  }
+
+  @Test
+  public void eventStreams() throws Exception {
+    int port = getFreePort();
+    Server server = new Server(port);
+    EventHub hub =
+        new EventHub.Builder()
+            .heartbeat(200, TimeUnit.MILLISECONDS)
+            .onSubscribe(s -> s.send("hello"))
+            .build();
+    server.router().addHandler("GET", "/events", hub);
+    server.start();
+
+    URI uri = URI.create("http://localhost:" + port + "/events");
+    HttpURLConnection conn = (HttpURLConnection) uri.toURL().openConnection();
+    assertThat(conn.getResponseCode(), is(HTTP_OK));
+    assertThat(conn.getContentType(), is("text/event-stream; charset=utf-8"));
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
+    assertThat(reader.readLine(), is("data: hello"));
+    assertThat(reader.readLine(), is(""));
+    assertThat(hub.size(), is(1));
+
+    assertThat(hub.broadcast("update", "1", "a\nb"), is(1));
+    assertThat(reader.readLine(), is("event: update"));
+    assertThat(reader.readLine(), is("id: 1"));
+    assertThat(reader.readLine(), is("data: a"));
+    assertThat(reader.readLine(), is("data: b"));
+    assertThat(reader.readLine(), is(""));
+
+    // Idle, so a heartbeat follows
+    assertThat(reader.readLine(), is(":"));
+
+    conn.disconnect();
+    hub.close();
+    assertThat(hub.size(), is(0));
+    server.stop();
+  }
+
+  @Test(timeout = 30000)
+  public void stuckEventStreams() throws Exception {
+    int port = getFreePort();
+    Server server = new Server(port);
+    EventHub hub =
+        new EventHub.Builder()
+            .threads(1)
+            .queueSize(1024)
+            .heartbeat(0, TimeUnit.MILLISECONDS)
+            .writeTimeout(200, TimeUnit.MILLISECONDS)
+            .build();
+    server.router().addHandler("GET", "/events", hub);
+    server.start();
+
+    // A client that subscribes and never reads
+    Socket stuck = new Socket();
+    stuck.setReceiveBufferSize(4096);
+    stuck.connect(new InetSocketAddress("localhost", port));
+    OutputStream request = stuck.getOutputStream();
+    request.write("GET /events HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("UTF-8"));
+    request.flush();
+    while (hub.size() < 1) {
+      Thread.sleep(10);
+    }
+    // Far more than the socket buffers hold, so the hub's only thread blocks writing
+    String big = new String(new char[64 * 1024]).replace('\0', 'x');
+    for (int i = 0; i < 256; i++) {
+      hub.broadcast(big);
+    }
+    while (hub.size() > 0) {
+      Thread.sleep(10);
+    }
+
+    // The thread is free for other subscribers again
+    URI uri = URI.create("http://localhost:" + port + "/events");
+    HttpURLConnection conn = (HttpURLConnection) uri.toURL().openConnection();
+    assertThat(conn.getResponseCode(), is(HTTP_OK));
+    while (hub.size() < 1) {
+      Thread.sleep(10);
+    }
+    assertThat(hub.broadcast("after"), is(1));
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
+    assertThat(reader.readLine(), is("data: after"));
+
+    stuck.close();
+    conn.disconnect();
+    hub.close();
+    server.stop();
+  }
+
+  @Test
+  public void asyncHandlers() throws Exception {
+    int port = getFreePort();
+    Server server = new Server(port);
+    CompletableFuture<String> never = new CompletableFuture<String>();
+    AsyncHandler later =
+        (request, response) ->
+            CompletableFuture.supplyAsync(() -> "later " + request.queryFirst("n"));
+    AsyncHandler failed =
+        (request, response) -> {
+          CompletableFuture<String> f = new CompletableFuture<String>();
+          f.completeExceptionally(new IllegalStateException("boom"));
+          return f;
+        };
+    AsyncHandler timeout = (request, response) -> never;
+    server
+        .router()
+        .setAsyncTimeout(300, TimeUnit.MILLISECONDS)
+        .addHandler("GET", "/later", later)
+        .addHandler("GET", "/failed", failed)
+        .addHandler("GET", "/timeout", timeout);
+    server.start();
+    String base = "http://localhost:" + port;
+
+    HttpRequest req = HttpRequest.GET(base + "/later?n=1");
+    checkResponse(req, HTTP_OK, "text/plain", is("later 1"));
+
+    req = HttpRequest.GET(base + "/failed");
+    assertThat(req.code(), is(HTTP_INTERNAL_ERROR));
+    assertThat(req.body(), containsString("boom"));
+
+    req = HttpRequest.GET(base + "/timeout");
+    assertThat(req.code(), is(HTTP_GATEWAY_TIMEOUT));
+    // Completing after the timeout is ignored
+    never.complete("too late");
+    server.stop();
+  }
+
+  @Test
+  public void routeMetrics() throws Exception {
+    int port = getFreePort();
+    Server server = new Server(port);
+    server
+        .router()
+        .GET(
+            "/users/{id}",
+            (request, response) -> {
+              if (request.param("id").equals("0")) throw new IllegalStateException("no");
+              response.body("user " + request.param("id"));
+            })
+        .addMetricsRoute("/metrics");
+    server.start();
+    String base = "http://localhost:" + port;
+
+    for (int i = 0; i < 5; i++) {
+      assertThat(HttpRequest.GET(base + "/users/" + i).code(), is(i == 0 ? 500 : HTTP_OK));
+    }
+    RouteMetrics metrics = server.router().getMetrics().get(0);
+    assertThat(metrics.getRoute(), is("/users/{id}"));
+    // Recorded when the exchange closes, which may be just after the client has the response
+    for (int i = 0; i < 100 && metrics.getRequests() < 5; i++) Thread.sleep(10);
+    assertThat(metrics.getRequests(), is(5L));
+    assertThat(metrics.getStatusCount(2), is(4L));
+    assertThat(metrics.getStatusCount(5), is(1L));
+    assertThat(metrics.getInFlight(), is(0));
+    assertThat(metrics.getLatency().getCount(), is(5L));
+    assertTrue(metrics.getLatency().getPercentile(50) > 0);
+
+    HttpRequest req = HttpRequest.GET(base + "/metrics");
+    assertThat(req.code(), is(HTTP_OK));
+    assertThat(req.body(), containsString("GET /users/{id} requests=5 1xx=0 2xx=4"));
+    server.stop();
+  }
+
+  @Test
+  public void prometheusMetrics() throws Exception {
+    int port = getFreePort();
+    Server server = new Server(port);
+    server.router().setCompression(Compression.DEFAULT);
+    String text = String.join("", Collections.nCopies(1000, "metrics "));
+    server.router().GET("/text", (request, response) -> response.body(text));
+    server.enableMetrics("/metrics");
+    server.start();
+    String base = "http://localhost:" + port;
+
+    for (int i = 0; i < 3; i++) {
+      HttpRequest req = HttpRequest.GET(base + "/text").acceptGzipEncoding().uncompress(true);
+      assertThat(req.code(), is(HTTP_OK));
+      assertThat(req.body().length(), is(8000));
+    }
+    RouteMetrics metrics = server.router().getMetrics().get(0);
+    for (int i = 0; i < 100 && metrics.getRequests() < 3; i++) Thread.sleep(10);
+
+    HttpRequest req = HttpRequest.GET(base + "/metrics");
+    assertThat(req.code(), is(HTTP_OK));
+    assertThat(req.contentType(), is(MetricsHandler.CONTENT_TYPE));
+    String body = req.body();
+    assertThat(body, containsString("# TYPE http_route_latency_seconds histogram\n"));
+    String labels = "{method=\"GET\",route=\"/text\"";
+    assertThat(body, containsString("http_route_requests_total" + labels + ",code=\"2xx\"} 3\n"));
+    assertThat(
+        body, containsString("http_route_latency_seconds_bucket" + labels + ",le=\"+Inf\"} 3\n"));
+    assertThat(body, containsString("http_compression_input_bytes_total 24000\n"));
+    assertThat(body, containsString("http_executor_queue_depth 0\n"));
+    // The scrape itself is the one request in flight
+    assertThat(body, containsString("http_requests_in_flight 1\n"));
+    server.stop();
+  }
 }
@@ -0,0 +1,101 @@
+package com.github.xgp.io;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Test;
+
+public class ZlibPoolTest {
+
+  private static byte[] data(int size) {
+    byte[] data = new byte[size];
+    Random random = new Random(size);
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) ('a' + random.nextInt(8));
+    }
+    return data;
+  }
+
+  @Test
+  public void compatibleWithJdkGzip() throws Exception {
+    ZlibPool pool = new ZlibPool(1);
+    for (int size : new int[] {0, 1, 1000, 100000}) {
+      byte[] data = data(size);
+
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      try (OutputStream out = pool.gzip(compressed, Deflater.BEST_SPEED)) {
+        out.write(data);
+      }
+      try (InputStream in =
+          new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+        assertArrayEquals(data, Streams.readInputStreamToByteArray(in));
+      }
+
+      compressed = new ByteArrayOutputStream();
+      try (OutputStream out = new GZIPOutputStream(compressed)) {
+        out.write(data);
+      }
+      try (InputStream in = pool.gunzip(new ByteArrayInputStream(compressed.toByteArray()))) {
+        assertArrayEquals(data, Streams.readInputStreamToByteArray(in));
+      }
+    }
+  }
+
+  @Test
+  public void concatenatedMembers() throws Exception {
+    ZlibPool pool = new ZlibPool(1);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    for (String part : new String[] {"foo", "bar"}) {
+      try (OutputStream out = new GZIPOutputStream(compressed) {
+            @Override
+            public void close() throws java.io.IOException {
+              finish();
+            }
+          }) {
+        out.write(part.getBytes());
+      }
+    }
+    try (InputStream in = pool.gunzip(new ByteArrayInputStream(compressed.toByteArray()))) {
+      assertEquals("foobar", new String(Streams.readInputStreamToByteArray(in)));
+    }
+  }
+
+  @Test
+  public void releasedOnClose() throws Exception {
+    ZlibPool pool = new ZlibPool(1);
+    Deflater deflater = pool.deflater(Deflater.DEFAULT_COMPRESSION);
+    pool.release(deflater);
+    OutputStream out = pool.gzip(new ByteArrayOutputStream(), Deflater.DEFAULT_COMPRESSION);
+    assertNotSame(deflater, pool.deflater(Deflater.DEFAULT_COMPRESSION));
+    out.close();
+    assertSame(deflater, pool.deflater(Deflater.DEFAULT_COMPRESSION));
+  }
+
+  @Test
+  public void unusableAfterClose() throws Exception {
+    ZlibPool pool = new ZlibPool(1);
+    DeflaterOutputStream out =
+        (DeflaterOutputStream) pool.gzip(new ByteArrayOutputStream(), Deflater.DEFAULT_COMPRESSION);
+    out.close();
+    out.close();
+    try {
+      out.finish();
+      fail("finish after close");
+    } catch (IOException expected) {
+    }
+    try {
+      out.write(1);
+      fail("write after close");
+    } catch (IOException expected) {
+    }
+  }
+}
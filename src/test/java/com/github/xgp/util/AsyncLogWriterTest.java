@@ -0,0 +1,122 @@
+package com.github.xgp.util;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class AsyncLogWriterTest {
+
+  /** Collects what is written, once it is let through. */
+  private static class GatedWriter extends Writer {
+    final StringWriter written = new StringWriter();
+    final CountDownLatch open = new CountDownLatch(1);
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      try {
+        open.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      synchronized (written) {
+        written.write(cbuf, off, len);
+      }
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+
+    String[] lines() {
+      synchronized (written) {
+        return written.toString().split(System.lineSeparator());
+      }
+    }
+  }
+
+  private static AsyncLogWriter writer(int capacity, boolean block, Writer out) {
+    PrintWriter print = new PrintWriter(out);
+    return new AsyncLogWriter(capacity, block, print, print);
+  }
+
+  @Test
+  public void drainsOnClose() throws Exception {
+    GatedWriter out = new GatedWriter();
+    out.open.countDown();
+    AsyncLogWriter writer = writer(2048, true, out);
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(writer.log("test", Log.Level.INFO, null, "line " + i));
+    }
+    writer.close(5, TimeUnit.SECONDS);
+    // Once closed, callers write for themselves
+    assertFalse(writer.log("test", Log.Level.INFO, null, "closed"));
+    String[] lines = out.lines();
+    assertThat(lines.length, is(1000));
+    assertThat(lines[0], startsWith("INF ["));
+    assertThat(lines[999], endsWith("] test: line 999"));
+  }
+
+  @Test
+  public void dropsWhenFull() throws Exception {
+    GatedWriter out = new GatedWriter();
+    AsyncLogWriter writer = writer(4, false, out);
+    for (int i = 0; i < 20; i++) {
+      assertTrue(writer.log("test", Log.Level.INFO, null, "line " + i));
+    }
+    // The writer holds at most one record while it is stuck, and the buffer four
+    assertTrue(writer.getDropped() >= 15);
+    out.open.countDown();
+    writer.close(5, TimeUnit.SECONDS);
+    String[] lines = out.lines();
+    assertThat(lines.length, is(20 - (int) writer.getDropped() + 1));
+    assertThat(lines[lines.length - 1], endsWith(writer.getDropped() + " log records dropped"));
+  }
+
+  @Test
+  public void blocksWhenFull() throws Exception {
+    GatedWriter out = new GatedWriter();
+    AsyncLogWriter writer = writer(4, true, out);
+    Thread producer =
+        new Thread(
+            () -> {
+              for (int i = 0; i < 20; i++) {
+                writer.log("test", Log.Level.INFO, null, "line " + i);
+              }
+            });
+    producer.start();
+    producer.join(200);
+    assertTrue(producer.isAlive());
+    out.open.countDown();
+    producer.join(5000);
+    assertFalse(producer.isAlive());
+    writer.close(5, TimeUnit.SECONDS);
+    assertThat(writer.getDropped(), is(0L));
+    String[] lines = out.lines();
+    assertThat(lines.length, is(20));
+    for (int i = 0; i < 20; i++) {
+      assertThat(lines[i], endsWith("] test: line " + i));
+    }
+  }
+
+  @Test
+  public void writesThrowables() throws Exception {
+    GatedWriter out = new GatedWriter();
+    out.open.countDown();
+    AsyncLogWriter writer = writer(16, true, out);
+    writer.log("test", Log.Level.ERROR, new IllegalStateException("boom"), "failed");
+    writer.close(5, TimeUnit.SECONDS);
+    String[] lines = out.lines();
+    assertThat(lines[0], startsWith("ERR ["));
+    assertThat(lines[0], endsWith("] test: failed"));
+    assertThat(lines[1], is("java.lang.IllegalStateException: boom"));
+    assertThat(lines[2], containsString("AsyncLogWriterTest.writesThrowables"));
+  }
+}
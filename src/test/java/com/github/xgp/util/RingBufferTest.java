@@ -0,0 +1,67 @@
+package com.github.xgp.util;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class RingBufferTest {
+
+  @Test
+  public void offerAndPoll() throws Exception {
+    RingBuffer<Integer> buffer = new RingBuffer<Integer>(3);
+    assertThat(buffer.capacity(), is(4));
+    assertNull(buffer.poll());
+    // Wrap around the slots a few times
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < 4; i++) {
+        assertTrue(buffer.offer(i));
+      }
+      assertFalse(buffer.offer(4));
+      assertThat(buffer.size(), is(4));
+      for (int i = 0; i < 4; i++) {
+        assertThat(buffer.poll(), is(i));
+      }
+      assertNull(buffer.poll());
+      assertTrue(buffer.isEmpty());
+    }
+  }
+
+  @Test
+  public void concurrentProducers() throws Exception {
+    RingBuffer<long[]> buffer = new RingBuffer<long[]>(64);
+    int producers = 4;
+    int perProducer = 20000;
+    Thread[] threads = new Thread[producers];
+    for (int p = 0; p < producers; p++) {
+      final int producer = p;
+      threads[p] =
+          new Thread(
+              () -> {
+                for (int i = 0; i < perProducer; i++) {
+                  while (!buffer.offer(new long[] {producer, i})) {
+                    Thread.yield();
+                  }
+                }
+              });
+      threads[p].start();
+    }
+    // Each producer's items arrive once each, and in the order it offered them
+    long[] next = new long[producers];
+    int taken = 0;
+    while (taken < producers * perProducer) {
+      long[] item = buffer.poll();
+      if (item == null) {
+        Thread.yield();
+        continue;
+      }
+      assertThat(item[1], is(next[(int) item[0]]));
+      next[(int) item[0]]++;
+      taken++;
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(buffer.poll());
+  }
+}